@@ -0,0 +1,106 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares {@link DebugServerBenchmark} results, in JMH's CSV format, to a baseline. Raw scores depend on the machine, so this compares each
+ * config's overhead instead: how many times slower it is than <code>noop</code> in the same run. It prints each config's overhead in both, and exits
+ * with 1 if any got worse by more than the tolerance (default 0.5, meaning 50%).
+ *
+ * <pre>
+ * java -jar effesvm_j-bench/target/effesvm_j-bench-1.0-SNAPSHOT-jar-with-dependencies.jar DebugServerBenchmark -rf csv -rff current.csv
+ * java -cp ... com.yuvalshavit.effesvm.bench.BaselineCheck effesvm_j-bench/baseline/debug-servers.csv current.csv [tolerance]
+ * </pre>
+ *
+ * To update the baseline, run the benchmark on an otherwise idle machine with <code>-rff effesvm_j-bench/baseline/debug-servers.csv</code> and commit
+ * it. Keep the benchmark's default forks and iterations for both runs, so that the two are equally noisy.
+ */
+public class BaselineCheck {
+  static final String BASELINE_CONFIG = "noop";
+  private static final double DEFAULT_TOLERANCE = 0.5;
+  private static final String CONFIG_COLUMN = "Param: config";
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3) {
+      System.err.println("usage: BaselineCheck <baseline.csv> <current.csv> [tolerance]");
+      System.exit(2);
+    }
+    Map<String, Double> baseline = overheads(Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8));
+    Map<String, Double> current = overheads(Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8));
+    double tolerance = args.length == 3 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+    List<String> regressions = regressions(baseline, current, tolerance);
+    System.out.printf("%-16s %10s %10s%n", "config", "baseline", "current");
+    current.forEach((config, overhead) -> System.out.printf("%-16s %9.2fx %9.2fx%n", config, baseline.getOrDefault(config, Double.NaN), overhead));
+    if (!regressions.isEmpty()) {
+      System.out.println("got slower relative to " + BASELINE_CONFIG + ": " + regressions);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * The configs whose overhead grew by more than the tolerance. Configs that aren't in both are skipped.
+   */
+  static List<String> regressions(Map<String, Double> baseline, Map<String, Double> current, double tolerance) {
+    List<String> result = new ArrayList<>();
+    current.forEach((config, overhead) -> {
+      Double baselineOverhead = baseline.get(config);
+      if (baselineOverhead != null && overhead > baselineOverhead * (1 + tolerance)) {
+        result.add(config);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Reads JMH's CSV results (throughput) and returns each config's overhead: the noop score divided by its score.
+   */
+  static Map<String, Double> overheads(List<String> csv) {
+    if (csv.isEmpty()) {
+      throw new IllegalArgumentException("no results");
+    }
+    List<String> header = columns(csv.get(0));
+    int benchmarkIdx = header.indexOf("Benchmark");
+    int scoreIdx = header.indexOf("Score");
+    int configIdx = header.indexOf(CONFIG_COLUMN);
+    if (benchmarkIdx < 0 || scoreIdx < 0 || configIdx < 0) {
+      throw new IllegalArgumentException("not DebugServerBenchmark results: " + header);
+    }
+    Map<String, Double> scores = new TreeMap<>();
+    for (String line : csv.subList(1, csv.size())) {
+      List<String> columns = columns(line);
+      // skip secondary results, like the GC profiler's
+      if (columns.size() > configIdx && columns.get(benchmarkIdx).endsWith(".run")) {
+        scores.put(columns.get(configIdx), Double.parseDouble(columns.get(scoreIdx)));
+      }
+    }
+    Double noop = scores.get(BASELINE_CONFIG);
+    if (noop == null) {
+      throw new IllegalArgumentException("no results for " + BASELINE_CONFIG);
+    }
+    Map<String, Double> overheads = new TreeMap<>();
+    scores.forEach((config, score) -> overheads.put(config, noop / score));
+    return overheads;
+  }
+
+  /**
+   * Splits a line of JMH's CSV. Its values are never quoted with commas inside them, so this doesn't need to handle that.
+   */
+  private static List<String> columns(String line) {
+    List<String> columns = new ArrayList<>();
+    for (String column : line.split(",", -1)) {
+      column = column.trim();
+      if (column.length() >= 2 && column.startsWith("\"") && column.endsWith("\"")) {
+        column = column.substring(1, column.length() - 1);
+      }
+      columns.add(column);
+    }
+    return columns;
+  }
+}
@@ -0,0 +1,45 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.yuvalshavit.effesvm.runtime.EffesInput;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesOutput;
+
+/**
+ * IO for benchmarks: stdin is empty, and anything written is dropped, so that the terminal doesn't become part of what's measured.
+ */
+class BenchIo implements EffesIo {
+  static final BenchIo instance = new BenchIo();
+
+  private static final EffesInput empty = () -> null;
+  private static final EffesOutput dropped = text -> {};
+
+  private BenchIo() {}
+
+  @Override
+  public EffesInput in() {
+    return empty;
+  }
+
+  @Override
+  public EffesOutput out() {
+    return dropped;
+  }
+
+  @Override
+  public EffesOutput err() {
+    return dropped;
+  }
+
+  @Override
+  public InputStream readFile(String name) {
+    throw new UnsupportedOperationException("benchmarks don't read files");
+  }
+
+  @Override
+  public OutputStream writeFile(String name) {
+    throw new UnsupportedOperationException("benchmarks don't write files");
+  }
+}
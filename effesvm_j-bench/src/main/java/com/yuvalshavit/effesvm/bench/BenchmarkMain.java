@@ -0,0 +1,35 @@
+package com.yuvalshavit.effesvm.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks. This takes the usual JMH command line options, but always adds the GC profiler, so that each benchmark also reports how much
+ * it allocates per op; and unless told otherwise, it writes the results as JSON to <code>jmh-result.json</code>, for comparing one build to another.
+ *
+ * <pre>
+ * mvn install
+ * java -jar effesvm_j-bench/target/effesvm_j-bench-1.0-SNAPSHOT-jar-with-dependencies.jar [benchmark regex] [jmh options]
+ * </pre>
+ */
+public class BenchmarkMain {
+  private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class);
+    if (!commandLine.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    if (!commandLine.getResult().hasValue()) {
+      options.result(DEFAULT_RESULT_FILE);
+    }
+    new Runner(options.build()).run();
+  }
+}
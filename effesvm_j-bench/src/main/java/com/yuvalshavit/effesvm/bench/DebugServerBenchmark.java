@@ -0,0 +1,200 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionParser;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.Parser;
+import com.yuvalshavit.effesvm.load.StackVerifier;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.DebugServer;
+import com.yuvalshavit.effesvm.runtime.DebugServerContext;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EffesRef;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.MultiDebugServer;
+import com.yuvalshavit.effesvm.runtime.OperationsInterpreter;
+import com.yuvalshavit.effesvm.runtime.coverage.CodeCoverageDebugServer;
+import com.yuvalshavit.effesvm.runtime.debugger.DebugClient;
+import com.yuvalshavit.effesvm.runtime.debugger.SockDebugServer;
+import com.yuvalshavit.effesvm.runtime.profiler.InstrumentingProfiler;
+import com.yuvalshavit.effesvm.runtime.profiler.SamplingProfiler;
+
+/**
+ * What each debug server costs. Every config runs the same program through the {@link OperationsInterpreter}; each score is Effes ops per second, and
+ * the GC profiler's allocation is per Effes op. Compare each config to <code>noop</code>, which is {@link DebugServer#noop}. That takes the
+ * interpreter's fast loop, and so does <code>sampling</code>, which is only asked for samples on jumps, calls and returns. The other configs take its
+ * instrumented loop, so each one's ratio to <code>noop</code> is the cost of the server plus the cost of the instrumented loop itself. (A real run with
+ * no debug server or just a sampling one would also fuse ops, so it's faster still.)
+ *
+ * <ul>
+ *   <li><code>sock</code>: a {@link SockDebugServer} with a {@link DebugClient} attached, and not suspended</li>
+ *   <li><code>coverage</code>: a {@link CodeCoverageDebugServer}</li>
+ *   <li><code>multi</code>: a {@link MultiDebugServer} fanning out to four servers that just count</li>
+ *   <li><code>sampling</code>: a {@link SamplingProfiler} at its default interval</li>
+ *   <li><code>instrumenting</code>: an {@link InstrumentingProfiler}</li>
+ * </ul>
+ *
+ * The results are kept as a baseline in <code>baseline/debug-servers.csv</code>; see {@link BaselineCheck}. That baseline was produced on an otherwise
+ * idle machine with this class's defaults of 3 forks of 10 warmup and 10 measurement iterations each (the same as <code>-f 3 -wi 10 -i 10</code>), which
+ * keeps each config's error well below the differences between configs. Fewer forks or iterations make too noisy a baseline to compare against.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class DebugServerBenchmark {
+  static final int ITERATIONS = 10_000;
+  /** 5 ops to set up, 18 per iteration (including 4 in the call), and 2 to return. */
+  static final int OPS_PER_RUN = 7 + 18 * ITERATIONS;
+  private static final int MULTI_FAN_OUT = 4;
+  private static final long CONNECT_TIMEOUT_MS = 10_000;
+
+  @Param({"noop", "sock", "coverage", "multi", "sampling", "instrumenting"})
+  public String config;
+
+  private EffesFunction main;
+  private DebugServer debugServer;
+  private DebugClient debugClient;
+  private Path outDir;
+
+  static Map<EffesModule.Id, List<String>> program() {
+    return Programs.loop(
+      Collections.singletonList("TYPE 0 Box value"),
+      Arrays.asList("str  x", "call :Box Box", "svar 2"),
+      Arrays.asList("pvar 2", "pfld :Box value", "pop", "pvar 1", "call : inc", "pop"),
+      ITERATIONS,
+      Arrays.asList("FUNC : inc 1 1 0", "pvar 0", "int  1", "call_Integer:add", "rtrn"));
+  }
+
+  /**
+   * Links the program without the link-time passes, so that the call isn't inlined.
+   */
+  static Map<EffesModule.Id, EffesModule> link() {
+    Map<EffesModule.Id, EffesModule> modules = EffesFunctionParser.parse(
+      Collections.singletonMap(Programs.MAIN, Parser.parse(Programs.MAIN, program().get(Programs.MAIN))),
+      OperationFactories.fromInstance(new EffesOpsImpl(BenchIo.instance)));
+    StackVerifier.verifyAll(modules);
+    return modules;
+  }
+
+  @Setup
+  public void setUp() throws IOException, InterruptedException {
+    Map<EffesModule.Id, EffesModule> modules = link();
+    main = Programs.mainFunction(modules);
+    DebugServerContext context = new DebugServerContext(Collections.unmodifiableMap(modules));
+    outDir = Files.createTempDirectory("effes-bench");
+    switch (config) {
+      case "noop":
+        debugServer = DebugServer.noop;
+        break;
+      case "sock":
+        int port = freePort();
+        SockDebugServer sock = new SockDebugServer(context, port, false);
+        sock.start();
+        debugServer = sock;
+        debugClient = connect(port);
+        break;
+      case "coverage":
+        debugServer = new CodeCoverageDebugServer(context, outDir.resolve("coverage").toString());
+        break;
+      case "multi":
+        MultiDebugServer.Builder builder = new MultiDebugServer.Builder();
+        for (int i = 0; i < MULTI_FAN_OUT; ++i) {
+          builder.add(new CountingDebugServer());
+        }
+        debugServer = builder.build();
+        break;
+      case "sampling":
+        debugServer = new SamplingProfiler(outDir.resolve("profile.collapsed").toString(), SamplingProfiler.DEFAULT_INTERVAL_MS);
+        break;
+      case "instrumenting":
+        debugServer = new InstrumentingProfiler(outDir.resolve("profile").toString());
+        break;
+      default:
+        throw new IllegalArgumentException("unknown config: " + config);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    if (debugClient != null) {
+      debugClient.close();
+    }
+    debugServer.close();
+    try (Stream<Path> files = Files.walk(outDir)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(OPS_PER_RUN)
+  public EffesRef<?> run() {
+    return Programs.runMain(main, debugServer);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * The server only starts listening once its worker thread is up, so retry until it is.
+   */
+  private static DebugClient connect(int port) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+    while (true) {
+      try {
+        return DebugClient.start(port);
+      } catch (ConnectException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw e;
+        }
+        TimeUnit.MILLISECONDS.sleep(10);
+      }
+    }
+  }
+
+  static class CountingDebugServer implements DebugServer {
+    long count;
+
+    @Override
+    public void beforeAction(EffesState state) {
+      ++count;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
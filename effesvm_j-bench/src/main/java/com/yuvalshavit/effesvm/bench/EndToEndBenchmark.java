@@ -0,0 +1,54 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+/**
+ * Whole runs of a program through {@link EvmRunner#run}, including parsing and linking it, on each engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+  @Param({"fib", "arrays", "regex", "strings"})
+  public String program;
+
+  @Param({"OPERATIONS", "SWITCH", "JIT"})
+  public EvmRunner.Engine engine;
+
+  private Map<EffesModule.Id, List<String>> efct;
+
+  @Setup
+  public void setUp() {
+    efct = Programs.load(program);
+    int exitCode = run();
+    if (exitCode != 0) {
+      throw new IllegalStateException(program + " exited with " + exitCode);
+    }
+  }
+
+  @Benchmark
+  public int run() {
+    return EvmRunner.run(efct, Programs.MAIN, new String[0], BenchIo.instance, null, context -> Collections.emptyList(), engine);
+  }
+}
@@ -0,0 +1,58 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+/**
+ * Loads programs of increasing size from the {@link ProgramGenerator}, and prints how long each took to load and how much heap it holds on to, per
+ * function. This isn't a JMH benchmark, since JMH measures what's allocated rather than what's retained.
+ *
+ * <pre>
+ * java -cp effesvm_j-bench/target/effesvm_j-bench-1.0-SNAPSHOT-jar-with-dependencies.jar com.yuvalshavit.effesvm.bench.Footprint [modules...]
+ * </pre>
+ */
+public class Footprint {
+  private static final int FUNCTIONS_PER_MODULE = 50;
+  private static final int[] DEFAULT_MODULES = { 10, 50, 100, 200, 400 };
+
+  public static void main(String[] args) {
+    int[] moduleCounts = args.length == 0
+      ? DEFAULT_MODULES
+      : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    System.out.printf("%8s %10s %12s %14s %16s%n", "modules", "functions", "load ms", "retained MB", "bytes/function");
+    for (int modules : moduleCounts) {
+      ProgramGenerator generator = new ProgramGenerator().modules(modules).functionsPerModule(FUNCTIONS_PER_MODULE);
+      Map<EffesModule.Id, List<String>> efct = generator.generate();
+      long before = usedHeap(memory);
+      long start = System.nanoTime();
+      Map<EffesModule.Id, EffesModule> linked = EvmRunner.parseAndLink(BenchIo.instance, efct);
+      long loadNanos = System.nanoTime() - start;
+      long retained = usedHeap(memory) - before;
+      System.out.printf(
+        "%8d %10d %12.1f %14.1f %16d%n",
+        modules,
+        generator.functionCount(),
+        loadNanos / (double) TimeUnit.MILLISECONDS.toNanos(1),
+        retained / (1024.0 * 1024.0),
+        retained / generator.functionCount());
+      if (linked.size() != modules + 1) { // also keeps the linked program reachable until now
+        throw new AssertionError("expected " + (modules + 1) + " modules, but linked " + linked.size());
+      }
+    }
+  }
+
+  private static long usedHeap(MemoryMXBean memory) {
+    for (int i = 0; i < 3; ++i) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,77 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yuvalshavit.effesvm.load.EffesFunctionParser;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.OutlinedModule;
+import com.yuvalshavit.effesvm.load.Parser;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+/**
+ * Loading large programs from the {@link ProgramGenerator}: {@link Parser#parse} outlines each module, and {@link EffesFunctionParser#parse} builds
+ * and links every function's ops. The time per function should stay about the same as the number of modules grows; if it doesn't, something is
+ * superlinear.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+  @Param({"10", "100", "300"})
+  public int modules;
+
+  @Param({"50"})
+  public int functionsPerModule;
+
+  private Map<EffesModule.Id, List<String>> efct;
+  private Map<EffesModule.Id, OutlinedModule> outline;
+  private Function<String, OperationFactories.ReflectiveOperationBuilder> ops;
+
+  @Setup
+  public void setUp() {
+    efct = new ProgramGenerator().modules(modules).functionsPerModule(functionsPerModule).generate();
+    outline = parse();
+    ops = OperationFactories.fromInstance(new EffesOpsImpl(BenchIo.instance));
+  }
+
+  @Benchmark
+  public Map<EffesModule.Id, OutlinedModule> parse() {
+    Map<EffesModule.Id, OutlinedModule> result = new HashMap<>(efct.size());
+    efct.forEach((id, lines) -> result.put(id, Parser.parse(id, lines)));
+    return result;
+  }
+
+  @Benchmark
+  public Map<EffesModule.Id, EffesModule> link() {
+    return EffesFunctionParser.parse(outline, ops);
+  }
+
+  /**
+   * Everything {@link EvmRunner} does before it runs main, including the link-time passes.
+   */
+  @Benchmark
+  public Map<EffesModule.Id, EffesModule> parseAndLink() {
+    return EvmRunner.parseAndLink(BenchIo.instance, efct);
+  }
+}
@@ -0,0 +1,98 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionParser;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.Parser;
+import com.yuvalshavit.effesvm.load.StackVerifier;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EffesRef;
+import com.yuvalshavit.effesvm.runtime.OperationsInterpreter;
+
+/**
+ * Single ops, each run in a loop by the {@link OperationsInterpreter}. Each score is per loop iteration, which includes the loop itself and pushing
+ * the op's args and popping its result; the <code>baseline</code> op is just that overhead, so subtract it to get the op's own cost.
+ *
+ * The program is linked without the link-time passes that would otherwise inline the call or fold the arithmetic away; only the
+ * {@link StackVerifier} runs, as it does for every program, since which op implementations get used depends on it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpsBenchmark {
+  private static final int ITERATIONS = 1000;
+
+  @Param({"baseline", "call", "pfld", "call_Integer:add", "call_String:regex"})
+  public String op;
+
+  private EffesFunction main;
+
+  @Setup
+  public void setUp() {
+    List<String> none = Collections.emptyList();
+    Map<EffesModule.Id, List<String>> efct;
+    switch (op) {
+      case "baseline":
+        efct = Programs.loop(none, none, none, ITERATIONS, none);
+        break;
+      case "call":
+        efct = Programs.loop(none, none, Collections.singletonList("call : nop"), ITERATIONS, Arrays.asList("FUNC : nop 0 0 0", "rtrn"));
+        break;
+      case "pfld":
+        efct = Programs.loop(
+          Collections.singletonList("TYPE 0 Box value"),
+          Arrays.asList("str  x", "call :Box Box", "svar 2"),
+          Arrays.asList("pvar 2", "pfld :Box value", "pop"),
+          ITERATIONS,
+          none);
+        break;
+      case "call_Integer:add":
+        efct = Programs.loop(none, none, Arrays.asList("pvar 1", "pvar 1", "call_Integer:add", "pop"), ITERATIONS, none);
+        break;
+      case "call_String:regex":
+        efct = Programs.loop(
+          none,
+          Arrays.asList("str  \"order=widget42\"", "svar 2", "str  \"([a-z]+)=([a-z]+)([0-9]+)\"", "svar 3"),
+          Arrays.asList("pvar 2", "pvar 3", "call_String:regex", "pop"),
+          ITERATIONS,
+          none);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown op: " + op);
+    }
+    Map<EffesModule.Id, EffesModule> modules = EffesFunctionParser.parse(
+      Collections.singletonMap(Programs.MAIN, Parser.parse(Programs.MAIN, efct.get(Programs.MAIN))),
+      OperationFactories.fromInstance(new EffesOpsImpl(BenchIo.instance)));
+    StackVerifier.verifyAll(modules);
+    main = Programs.mainFunction(modules);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ITERATIONS)
+  public EffesRef<?> run() {
+    return Programs.runMain(main);
+  }
+}
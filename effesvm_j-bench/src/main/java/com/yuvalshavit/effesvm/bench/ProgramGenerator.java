@@ -0,0 +1,211 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.Parser;
+
+/**
+ * Generates large, valid efct programs for load and scaling benchmarks. The same settings and seed always generate the same program.
+ *
+ * The program is {@link Programs#MAIN} plus the given number of modules, each with the given number of types and functions. Each function takes an
+ * int and returns one. It makes an instance of one of its module's types, runs a loop, maybe does some string and regex work, and calls other
+ * functions. Functions are put in levels, one per step of call depth, and only call functions at the next level, which can be in any module; so the
+ * call graph has no cycles, and each call from main runs at most <code>fanOut ^ (callDepth - 1)</code> functions. main calls up to
+ * <code>fanOut</code> functions at the first level, and returns 0.
+ */
+public class ProgramGenerator {
+  private static final String REGEX = "\"([a-z]+)([0-9]+)\"";
+
+  private int modules = 10;
+  private int functionsPerModule = 20;
+  private int typesPerModule = 2;
+  private int callDepth = 4;
+  private int fanOut = 2;
+  private int loopIterations = 10;
+  private double stringFraction = 0.25;
+  private long seed = 1;
+
+  public ProgramGenerator modules(int modules) {
+    this.modules = requireAtLeast(modules, 1, "modules");
+    return this;
+  }
+
+  public ProgramGenerator functionsPerModule(int functionsPerModule) {
+    this.functionsPerModule = requireAtLeast(functionsPerModule, 1, "functionsPerModule");
+    return this;
+  }
+
+  public ProgramGenerator typesPerModule(int typesPerModule) {
+    this.typesPerModule = requireAtLeast(typesPerModule, 0, "typesPerModule");
+    return this;
+  }
+
+  /**
+   * How many levels of functions there are; a call from main goes at most this many functions deep.
+   */
+  public ProgramGenerator callDepth(int callDepth) {
+    this.callDepth = requireAtLeast(callDepth, 1, "callDepth");
+    return this;
+  }
+
+  /**
+   * How many functions each function calls, if it isn't at the last level.
+   */
+  public ProgramGenerator fanOut(int fanOut) {
+    this.fanOut = requireAtLeast(fanOut, 0, "fanOut");
+    return this;
+  }
+
+  public ProgramGenerator loopIterations(int loopIterations) {
+    this.loopIterations = requireAtLeast(loopIterations, 0, "loopIterations");
+    return this;
+  }
+
+  /**
+   * The fraction of functions, from 0 to 1, that build a string and match a regex against it.
+   */
+  public ProgramGenerator stringFraction(double stringFraction) {
+    if (!(stringFraction >= 0 && stringFraction <= 1)) {
+      throw new IllegalArgumentException("stringFraction must be between 0 and 1: " + stringFraction);
+    }
+    this.stringFraction = stringFraction;
+    return this;
+  }
+
+  public ProgramGenerator seed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  public int functionCount() {
+    return modules * functionsPerModule;
+  }
+
+  public Map<EffesModule.Id, List<String>> generate() {
+    Random random = new Random(seed);
+    // levels[level] is the global indexes of the functions at that level; function g is module g / functionsPerModule, function g % functionsPerModule
+    int nFunctions = functionCount();
+    int nLevels = Math.min(callDepth, nFunctions);
+    List<List<Integer>> levels = new ArrayList<>(nLevels);
+    for (int level = 0; level < nLevels; ++level) {
+      levels.add(new ArrayList<>());
+    }
+    int[] levelOf = new int[nFunctions];
+    for (int g = 0; g < nFunctions; ++g) {
+      levelOf[g] = g % nLevels;
+      levels.get(levelOf[g]).add(g);
+    }
+
+    Map<EffesModule.Id, List<String>> program = new LinkedHashMap<>();
+    List<String> main = new ArrayList<>();
+    main.add(Parser.EFCT_0_HEADER);
+    main.add("FUNC : main 1 1 0");
+    List<Integer> roots = levels.get(0);
+    for (int i = 0; i < Math.min(fanOut, roots.size()); ++i) {
+      main.add("int  " + i);
+      main.add("call " + moduleName(roots.get(i) / functionsPerModule) + ": " + functionName(roots.get(i) % functionsPerModule));
+      main.add("pop");
+    }
+    main.add("int  0");
+    main.add("rtrn");
+    program.put(Programs.MAIN, main);
+
+    for (int m = 0; m < modules; ++m) {
+      List<String> lines = new ArrayList<>();
+      lines.add(Parser.EFCT_0_HEADER);
+      for (int t = 0; t < typesPerModule; ++t) {
+        lines.add("TYPE 0 " + typeName(t) + " a b");
+      }
+      for (int f = 0; f < functionsPerModule; ++f) {
+        int g = m * functionsPerModule + f;
+        List<Integer> callees = new ArrayList<>();
+        if (levelOf[g] + 1 < nLevels) {
+          List<Integer> nextLevel = levels.get(levelOf[g] + 1);
+          for (int i = 0; i < fanOut; ++i) {
+            callees.add(nextLevel.get(random.nextInt(nextLevel.size())));
+          }
+        }
+        lines.add("");
+        function(lines, m, f, callees, random.nextDouble() < stringFraction);
+      }
+      program.put(new EffesModule.Id(moduleName(m)), lines);
+    }
+    return program;
+  }
+
+  /**
+   * Var 0 is the arg, var 1 is the accumulator that gets returned, and var 2 is the loop counter.
+   */
+  private void function(List<String> lines, int module, int f, List<Integer> callees, boolean useStrings) {
+    lines.add("FUNC : " + functionName(f) + " 1 1 0");
+    lines.add("pvar 0");
+    lines.add("svar 1");
+    if (typesPerModule > 0) {
+      String type = typeName(f % typesPerModule);
+      lines.add("pvar 0");                                  // acc = new Type(arg, arg).a
+      lines.add("pvar 0");
+      lines.add("call :" + type + " " + type);
+      lines.add("pfld :" + type + " a");
+      lines.add("svar 1");
+    }
+    if (loopIterations > 0) {
+      lines.add("int  0");
+      lines.add("svar 2");
+      lines.add("labl loop");
+      lines.add("pvar 1");                                  // acc += i
+      lines.add("pvar 2");
+      lines.add("call_Integer:add");
+      lines.add("svar 1");
+      lines.add("pvar 2");                                  // ++i
+      lines.add("int  1");
+      lines.add("call_Integer:add");
+      lines.add("svar 2");
+      lines.add("int  " + loopIterations);                  // i < loopIterations
+      lines.add("pvar 2");
+      lines.add("call_Integer:lt");
+      lines.add("goif loop");
+    }
+    if (useStrings) {
+      lines.add("str  item");                               // regex("item" + acc)
+      lines.add("pvar 1");
+      lines.add("call_native:toString");
+      lines.add("call_String:concat");
+      lines.add("str  " + REGEX);
+      lines.add("call_String:regex");
+      lines.add("pop");
+    }
+    for (int callee : callees) {
+      int calleeModule = callee / functionsPerModule;
+      String scope = calleeModule == module ? "" : moduleName(calleeModule);
+      lines.add("pvar 1");                                  // acc = callee(acc)
+      lines.add("call " + scope + ": " + functionName(callee % functionsPerModule));
+      lines.add("svar 1");
+    }
+    lines.add("pvar 1");
+    lines.add("rtrn");
+  }
+
+  private static String moduleName(int m) {
+    return "m" + m;
+  }
+
+  private static String functionName(int f) {
+    return "f" + f;
+  }
+
+  private static String typeName(int t) {
+    return "T" + t;
+  }
+
+  private static int requireAtLeast(int value, int min, String name) {
+    if (value < min) {
+      throw new IllegalArgumentException(name + " must be at least " + min + ": " + value);
+    }
+    return value;
+  }
+}
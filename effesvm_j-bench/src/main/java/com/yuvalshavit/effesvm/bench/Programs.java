@@ -0,0 +1,101 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import com.yuvalshavit.effesvm.load.EfctScope;
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.Parser;
+import com.yuvalshavit.effesvm.runtime.DebugServer;
+import com.yuvalshavit.effesvm.runtime.EffesRef;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.OperationsInterpreter;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+
+/**
+ * The efct programs that benchmarks run.
+ */
+class Programs {
+  static final EffesModule.Id MAIN = new EffesModule.Id("main");
+
+  private Programs() {}
+
+  /**
+   * Reads one of the programs in this package's resources, as the module {@link #MAIN}. Each one's main returns 0 if it computed what it expected to,
+   * and 1 if it didn't.
+   */
+  static Map<EffesModule.Id, List<String>> load(String name) {
+    String resource = name + ".efct";
+    InputStream stream = Programs.class.getResourceAsStream(resource);
+    if (stream == null) {
+      throw new NoSuchElementException(resource);
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+      return Collections.singletonMap(MAIN, reader.lines().collect(Collectors.toList()));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * A main that runs the given setup, and then the given body the given number of times. The loop counter is var 1, so the setup and body can use
+   * vars from 2 on. Other lines go before main (for types) or after it (for functions).
+   */
+  static Map<EffesModule.Id, List<String>> loop(List<String> types, List<String> setup, List<String> body, int iterations, List<String> functions) {
+    List<String> lines = new ArrayList<>();
+    lines.add(Parser.EFCT_0_HEADER);
+    lines.addAll(types);
+    lines.add("FUNC : main 1 1 0");
+    lines.addAll(setup);
+    lines.add("int  0");
+    lines.add("svar 1");
+    lines.add("labl top");
+    lines.addAll(body);
+    lines.add("pvar 1");
+    lines.add("int  1");
+    lines.add("call_Integer:add");
+    lines.add("svar 1");
+    lines.add("int  " + iterations);
+    lines.add("pvar 1");
+    lines.add("call_Integer:lt");
+    lines.add("goif top");
+    lines.add("int  0");
+    lines.add("rtrn");
+    if (!functions.isEmpty()) {
+      lines.add("");
+      lines.addAll(functions);
+    }
+    return Collections.singletonMap(MAIN, lines);
+  }
+
+  static EffesFunction mainFunction(Map<EffesModule.Id, EffesModule> modules) {
+    return modules.get(MAIN).getFunction(new EffesFunctionId(EfctScope.ofStatic(MAIN), "main"));
+  }
+
+  /**
+   * Runs an already linked main with no args and no debug server, and returns what it returned. Unlike {@link
+   * com.yuvalshavit.effesvm.runtime.EvmRunner#run EvmRunner.run}, this doesn't parse or link anything.
+   */
+  static EffesRef<?> runMain(EffesFunction main) {
+    return runMain(main, DebugServer.noop);
+  }
+
+  static EffesRef<?> runMain(EffesFunction main, DebugServer debugServer) {
+    EffesState state = EffesState.forMain(new String[0], EffesState.STACK_SIZE, main.nVars() + 1);
+    state.pc().restore(ProgramCounter.firstLineOfFunction(main));
+    new OperationsInterpreter(state, debugServer).run();
+    return state.getFinalPop();
+  }
+}
@@ -0,0 +1,57 @@
+package com.yuvalshavit.effesvm.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.runtime.EffesRef;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+/**
+ * Runs a program from the {@link ProgramGenerator} that's already been linked, so only the interpreter is measured. The amount of work per run stays
+ * the same as the program grows, since it depends on the call depth and fan-out rather than the number of modules; so the time should too, and if it
+ * doesn't, something about running is sensitive to how much code is loaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThroughputBenchmark {
+  @Param({"10", "100", "300"})
+  public int modules;
+
+  @Param({"0", "0.25"})
+  public double stringFraction;
+
+  private EffesFunction main;
+
+  @Setup
+  public void setUp() {
+    ProgramGenerator generator = new ProgramGenerator()
+      .modules(modules)
+      .functionsPerModule(50)
+      .callDepth(6)
+      .fanOut(3)
+      .loopIterations(20)
+      .stringFraction(stringFraction);
+    main = Programs.mainFunction(EvmRunner.parseAndLink(BenchIo.instance, generator.generate()));
+  }
+
+  @Benchmark
+  public EffesRef<?> run() {
+    return Programs.runMain(main);
+  }
+}
@@ -0,0 +1,50 @@
+package com.yuvalshavit.effesvm.bench;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.runtime.EffesNativeObject;
+
+public class DebugServerBenchmarkTest {
+
+  @Test
+  public void opsPerRun() {
+    DebugServerBenchmark.CountingDebugServer counter = new DebugServerBenchmark.CountingDebugServer();
+    assertEquals(Programs.runMain(Programs.mainFunction(DebugServerBenchmark.link()), counter), EffesNativeObject.forInt(0));
+    assertEquals(counter.count, DebugServerBenchmark.OPS_PER_RUN);
+  }
+
+  @Test
+  public void overheads() {
+    Map<String, Double> overheads = BaselineCheck.overheads(Arrays.asList(
+      "\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\",\"Score Error (99.9%)\",\"Unit\",\"Param: config\"",
+      "\"com.yuvalshavit.effesvm.bench.DebugServerBenchmark.run\",\"thrpt\",1,5,100.0,1.0,\"ops/s\",noop",
+      "\"com.yuvalshavit.effesvm.bench.DebugServerBenchmark.run:gc.alloc.rate.norm\",\"thrpt\",1,5,12.0,1.0,\"B/op\",noop",
+      "\"com.yuvalshavit.effesvm.bench.DebugServerBenchmark.run\",\"thrpt\",1,5,25.0,1.0,\"ops/s\",coverage"));
+    assertEquals(overheads.get("noop"), 1.0);
+    assertEquals(overheads.get("coverage"), 4.0);
+  }
+
+  @Test
+  public void regressions() {
+    Map<String, Double> baseline = map("noop", 1.0, "coverage", 4.0, "sock", 2.0);
+    Map<String, Double> current = map("noop", 1.0, "coverage", 5.0, "sock", 3.5, "new", 10.0);
+    List<String> regressions = BaselineCheck.regressions(baseline, current, 0.5);
+    assertEquals(regressions, Collections.singletonList("sock"));
+  }
+
+  private static Map<String, Double> map(Object... keysAndValues) {
+    Map<String, Double> map = new TreeMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put((String) keysAndValues[i], (Double) keysAndValues[i + 1]);
+    }
+    return map;
+  }
+}
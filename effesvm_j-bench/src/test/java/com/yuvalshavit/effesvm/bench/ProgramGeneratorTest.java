@@ -0,0 +1,51 @@
+package com.yuvalshavit.effesvm.bench;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.runtime.EffesNativeObject;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+public class ProgramGeneratorTest {
+
+  @DataProvider
+  public Object[][] generators() {
+    return new Object[][] {
+      { new ProgramGenerator() },
+      { new ProgramGenerator().modules(1).functionsPerModule(1).typesPerModule(0).callDepth(1).fanOut(0).loopIterations(0).stringFraction(0) },
+      { new ProgramGenerator().modules(30).functionsPerModule(10).callDepth(5).fanOut(3).stringFraction(1) },
+      { new ProgramGenerator().modules(2).functionsPerModule(3).callDepth(10) }, // more levels than functions
+    };
+  }
+
+  @Test(dataProvider = "generators")
+  public void generatesRunnablePrograms(ProgramGenerator generator) {
+    Map<EffesModule.Id, List<String>> efct = generator.generate();
+    Map<EffesModule.Id, EffesModule> linked = EvmRunner.parseAndLink(BenchIo.instance, efct);
+    assertEquals(linked.size(), efct.size());
+    int nFunctions = linked.values().stream().mapToInt(m -> m.functions().size()).sum();
+    assertEquals(nFunctions, generator.functionCount() + 1); // +1 for main
+
+    assertEquals(Programs.runMain(Programs.mainFunction(linked)), EffesNativeObject.forInt(0));
+    assertEquals(EvmRunner.run(efct, Programs.MAIN, new String[0], BenchIo.instance, null, c -> Collections.emptyList()), 0);
+  }
+
+  @Test
+  public void seeds() {
+    assertEquals(new ProgramGenerator().seed(5).generate(), new ProgramGenerator().seed(5).generate());
+    assertNotEquals(new ProgramGenerator().seed(5).generate(), new ProgramGenerator().seed(6).generate());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void badStringFraction() {
+    new ProgramGenerator().stringFraction(1.5);
+  }
+}
@@ -0,0 +1,509 @@
+package com.yuvalshavit.effesvm.aot;
+
+import static com.yuvalshavit.effesvm.runtime.jit.ClassFileWriter.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.yuvalshavit.effesvm.load.EfctScope;
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.OutlinedModule;
+import com.yuvalshavit.effesvm.load.ReachableModules;
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.OperationFactory;
+import com.yuvalshavit.effesvm.runtime.DecodedFunction;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesOps;
+import com.yuvalshavit.effesvm.runtime.EffesRuntimeException;
+import com.yuvalshavit.effesvm.runtime.EffesType;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+import com.yuvalshavit.effesvm.runtime.jit.ClassFileWriter;
+import com.yuvalshavit.effesvm.runtime.jit.ClassFileWriter.Label;
+import com.yuvalshavit.effesvm.runtime.jit.ClassFileWriter.MethodWriter;
+
+/**
+ * Compiles a set of efct modules ahead of time, into a runnable jar.
+ *
+ * Each module becomes a class, and each of its functions becomes a static method on that class that runs against an {@link
+ * com.yuvalshavit.effesvm.runtime.EffesState EffesState}. Calls between functions are plain <code>invokestatic</code>s, and jumps are JVM branches.
+ * Tail calls reuse their caller's frame, and a function's tail calls to itself are jumps back to its first op. Ops that the generated code doesn't
+ * handle itself are built by each module class's static initializer, which calls the same {@link EffesOps} implementation that the interpreter uses.
+ * The only other thing in the jar is a resource describing the program's types.
+ *
+ * Usage: <code>AotCompiler out.jar mainModule</code>, where the modules that main can reach are read from <code>EFFES_CLASSPATH</code>, just as with
+ * {@link EvmRunner}.
+ * The jar includes the VM's runtime classes, so it can be run as-is with <code>java -jar out.jar [args...]</code>.
+ */
+public class AotCompiler {
+  static final String PROGRAM_RESOURCE = "effes/aot/program.bin";
+  static final int PROGRAM_VERSION = 2;
+  static final String MAIN_CLASS = "effes/aot/Main";
+
+  private static final String RUNTIME_CLASSES_PREFIX = "com/yuvalshavit/effesvm/";
+  private static final String STATE = "com/yuvalshavit/effesvm/runtime/EffesState";
+  private static final String TYPE = "com/yuvalshavit/effesvm/runtime/EffesType";
+  private static final String RUNTIME = "com/yuvalshavit/effesvm/aot/AotRuntime";
+  private static final String SUPPORT = "com/yuvalshavit/effesvm/runtime/jit/JitSupport";
+  private static final String OPS_BUILDER = "com/yuvalshavit/effesvm/aot/AotRuntime$OpsBuilder";
+  private static final String OPS_IMPL = "com/yuvalshavit/effesvm/runtime/EffesOpsImpl";
+  private static final String STATE_DESC = 'L' + STATE + ';';
+  private static final String FUNCTION_DESC = '(' + STATE_DESC + ")V";
+  private static final String OPS_DESC = "[Lcom/yuvalshavit/effesvm/ops/Operation$Body;";
+  private static final String TYPES_DESC = "[L" + TYPE + ';';
+
+  // locals in each function's method
+  private static final int STATE_VAR = 0;
+  private static final int PC_VAR = 1;
+  private static final int ERROR_VAR = 2;
+
+  /** The {@link EffesOps} methods that build each opcode. */
+  private static final Map<String,Method> OP_FACTORIES = opFactories();
+
+  private final Map<EffesModule.Id,EffesModule> modules;
+  private final Map<EffesModule.Id,String> classNames = new HashMap<>();
+  private final Map<EffesFunction,String> methodNames = new HashMap<>();
+  private final Map<EffesType,Integer> typeIndexes = new HashMap<>();
+  private final Map<EffesModule.Id,List<OpInfo>> genericOps = new HashMap<>();
+
+  private AotCompiler(Map<EffesModule.Id,EffesModule> modules) {
+    this.modules = new TreeMap<>(modules);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("usage: AotCompiler <out.jar> <main module>");
+      System.exit(1);
+    }
+    EffesModule.Id main = new EffesModule.Id(args[1]);
+    Map<EffesModule.Id,OutlinedModule> outline = ReachableModules.outline(main, EvmRunner.efctClasspath());
+    try (OutputStream out = Files.newOutputStream(Paths.get(args[0]))) {
+      compileLinked(EvmRunner.link(EffesIo.stdio(), outline), main, out);
+    }
+  }
+
+  /**
+   * Parses, links and compiles the given modules, and writes the resulting jar.
+   */
+  public static void compile(Map<EffesModule.Id,List<String>> inputFiles, EffesModule.Id main, OutputStream out) throws IOException {
+    compileLinked(EvmRunner.parseAndLink(EffesIo.stdio(), inputFiles), main, out);
+  }
+
+  private static void compileLinked(Map<EffesModule.Id,EffesModule> linked, EffesModule.Id main, OutputStream out) throws IOException {
+    DecodedFunction.decodeAll(linked);
+    EffesModule mainModule = linked.get(main);
+    if (mainModule == null) {
+      throw new IllegalArgumentException(main + " not found among " + linked.keySet());
+    }
+    EffesFunction mainFunction = mainModule.getFunction(new EffesFunctionId(EfctScope.ofStatic(main), "main"));
+    if (mainFunction.nArgs() != 1) {
+      throw new EffesRuntimeException("::main must take 1 argument");
+    }
+    if (!mainFunction.hasRv()) {
+      throw new EffesRuntimeException("::main must return a value");
+    }
+    new AotCompiler(linked).writeJar(mainFunction, out);
+  }
+
+  private void writeJar(EffesFunction mainFunction, OutputStream out) throws IOException {
+    assignNames();
+    Map<String,byte[]> classes = new TreeMap<>();
+    modules.forEach((id, module) -> classes.put(classNames.get(id), moduleClass(id, module)));
+    classes.put(MAIN_CLASS, mainClass(mainFunction));
+
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS.replace('/', '.'));
+    try (JarOutputStream jar = new JarOutputStream(out, manifest)) {
+      for (Map.Entry<String,byte[]> cls : classes.entrySet()) {
+        writeEntry(jar, cls.getKey() + ".class", cls.getValue());
+      }
+      writeEntry(jar, PROGRAM_RESOURCE, programResource());
+      writeRuntimeClasses(jar);
+    }
+  }
+
+  private void assignNames() {
+    int moduleIdx = 0;
+    for (Map.Entry<EffesModule.Id,EffesModule> entry : modules.entrySet()) {
+      classNames.put(entry.getKey(), "effes/aot/M" + (moduleIdx++) + '_' + sanitize(entry.getKey().getName()));
+      int functionIdx = 0;
+      List<EffesFunction> functions = entry.getValue().functions().stream().sorted(Comparator.comparing(EffesFunction::id)).collect(Collectors.toList());
+      for (EffesFunction function : functions) {
+        String scope = function.id().getScope().map(m -> "", (m, t) -> t + '$');
+        methodNames.put(function, sanitize(scope + function.id().getFunctionName()) + '$' + (functionIdx++));
+      }
+      int typeIdx = 0;
+      for (EffesType type : entry.getValue().types()) {
+        typeIndexes.put(type, typeIdx++);
+      }
+      genericOps.put(entry.getKey(), new ArrayList<>());
+    }
+  }
+
+  private byte[] moduleClass(EffesModule.Id id, EffesModule module) {
+    String className = classNames.get(id);
+    ClassFileWriter cls = new ClassFileWriter(className, "java/lang/Object");
+    cls.addField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, "OPS", OPS_DESC);
+    cls.addField(ACC_PUBLIC | ACC_STATIC | ACC_FINAL, "TYPES", TYPES_DESC);
+
+    for (EffesFunction function : module.functions()) {
+      MethodWriter method = cls.addMethod(ACC_PUBLIC | ACC_STATIC, methodNames.get(function), FUNCTION_DESC, 8, ERROR_VAR + 1);
+      emitFunction(method, id, className, function);
+    }
+
+    List<OpInfo> ops = genericOps.get(id);
+    int maxOpArgs = ops.stream().mapToInt(op -> op.arguments().size()).max().orElse(0);
+    MethodWriter clinit = cls.addMethod(ACC_STATIC, "<clinit>", "()V", Math.max(3, maxOpArgs + 2), 1);
+    clinit.pushClass(className);
+    clinit.pushString(id.getName());
+    clinit.invoke(INVOKESTATIC, RUNTIME, "types", "(Ljava/lang/Class;Ljava/lang/String;)" + TYPES_DESC);
+    clinit.fieldOp(PUTSTATIC, className, "TYPES", TYPES_DESC);
+    clinit.pushClass(className);
+    clinit.pushString(id.getName());
+    clinit.pushInt(ops.size());
+    clinit.invoke(INVOKESTATIC, RUNTIME, "opsBuilder", "(Ljava/lang/Class;Ljava/lang/String;I)L" + OPS_BUILDER + ';');
+    clinit.varOp(ASTORE, 0);
+    for (OpInfo op : ops) {
+      buildOp(clinit, op);
+    }
+    clinit.varOp(ALOAD, 0);
+    clinit.invoke(INVOKEVIRTUAL, OPS_BUILDER, "build", "()" + OPS_DESC);
+    clinit.fieldOp(PUTSTATIC, className, "OPS", OPS_DESC);
+    clinit.op(RETURN);
+    return cls.toBytes();
+  }
+
+  private void emitFunction(MethodWriter method, EffesModule.Id module, String className, EffesFunction function) {
+    DecodedFunction decoded = function.decoded();
+    String description = function.id().toString();
+    int nOps = decoded.nOps();
+    Label[] opLabels = new Label[nOps];
+    for (int i = 0; i < nOps; ++i) {
+      opLabels[i] = method.newLabel();
+    }
+    Label tryEnd = method.newLabel();
+    Label handler = method.newLabel();
+
+    method.pushInt(0);
+    method.varOp(ISTORE, PC_VAR);
+    for (int i = 0; i < nOps; ++i) {
+      method.mark(opLabels[i]);
+      method.pushInt(i);
+      method.varOp(ISTORE, PC_VAR);
+      emitOp(method, module, className, function, i, opLabels);
+    }
+    method.mark(tryEnd);
+    method.pushString(description);
+    method.invoke(INVOKESTATIC, RUNTIME, "fellOffEnd", "(Ljava/lang/String;)Ljava/lang/Throwable;");
+    method.op(ATHROW);
+
+    method.mark(handler);
+    method.varOp(ASTORE, ERROR_VAR);
+    method.pushString(description);
+    method.varOp(ILOAD, PC_VAR);
+    method.varOp(ALOAD, ERROR_VAR);
+    method.invoke(INVOKESTATIC, RUNTIME, "fail", "(Ljava/lang/String;ILjava/lang/Throwable;)Ljava/lang/Throwable;");
+    method.op(ATHROW);
+    if (nOps > 0) {
+      method.tryCatch(opLabels[0], tryEnd, handler, null);
+    }
+    if (method.size() > Short.MAX_VALUE) {
+      throw new UnsupportedOperationException(description + " is too large to compile");
+    }
+  }
+
+  private void emitOp(MethodWriter method, EffesModule.Id module, String className, EffesFunction function, int op, Label[] opLabels) {
+    DecodedFunction decoded = function.decoded();
+    int operand = decoded.operandAt(op);
+    switch (decoded.opcodeAt(op)) {
+      case DecodedFunction.PUSH_INT:
+        method.varOp(ALOAD, STATE_VAR);
+        method.pushInt(operand);
+        invokeState(method, "pushInt", "(I)V");
+        break;
+      case DecodedFunction.POP:
+        method.varOp(ALOAD, STATE_VAR);
+        invokeState(method, "pop", "()Lcom/yuvalshavit/effesvm/runtime/EffesRef;");
+        method.op(POP);
+        break;
+      case DecodedFunction.COPY:
+        method.varOp(ALOAD, STATE_VAR);
+        invokeState(method, "dup", "()V");
+        break;
+      case DecodedFunction.PVAR:
+        varOp(method, "pushVar", operand);
+        break;
+      case DecodedFunction.SVAR:
+        varOp(method, "popToVar", operand);
+        break;
+      case DecodedFunction.SVAR_COPY:
+        varOp(method, "copyToVar", operand);
+        break;
+      case DecodedFunction.GOTO:
+        method.jump(GOTO, opLabels[operand]);
+        break;
+      case DecodedFunction.GOIF:
+        method.varOp(ALOAD, STATE_VAR);
+        invokeState(method, "popBoolean", "()Z");
+        method.jump(IFNE, opLabels[operand]);
+        break;
+      case DecodedFunction.GOFI:
+        method.varOp(ALOAD, STATE_VAR);
+        invokeState(method, "popBoolean", "()Z");
+        method.jump(IFEQ, opLabels[operand]);
+        break;
+      case DecodedFunction.CALL:
+      case DecodedFunction.CALL_INSTANCE:
+      case DecodedFunction.TAIL_CALL:
+      case DecodedFunction.TAIL_CALL_INSTANCE: {
+        EffesFunction callee = (EffesFunction) decoded.constantAt(operand);
+        int opcode = decoded.opcodeAt(op);
+        boolean tailCall = opcode == DecodedFunction.TAIL_CALL || opcode == DecodedFunction.TAIL_CALL_INSTANCE;
+        int nArgs = callee.nArgs();
+        if (opcode == DecodedFunction.CALL_INSTANCE || opcode == DecodedFunction.TAIL_CALL_INSTANCE) {
+          EffesType type = (EffesType) decoded.constantAt(operand + 1);
+          method.varOp(ALOAD, STATE_VAR);
+          method.pushInt(nArgs);
+          method.fieldOp(GETSTATIC, classNames.get(type.moduleId()), "TYPES", TYPES_DESC);
+          method.pushInt(typeIndexes.get(type));
+          method.op(AALOAD);
+          invokeState(method, "checkInstance", "(IL" + TYPE + ";)V");
+          ++nArgs;
+        }
+        method.varOp(ALOAD, STATE_VAR);
+        method.pushInt(nArgs);
+        method.pushInt(callee.hasRv() ? 1 : 0);
+        method.pushInt(callee.nVars());
+        invokeState(method, tailCall ? "tailCallFrame" : "openFrame", "(IZI)V");
+        if (tailCall && callee == function) {
+          // a self tail call is just a loop, in the replaced frame
+          method.jump(GOTO, opLabels[0]);
+          break;
+        }
+        method.varOp(ALOAD, STATE_VAR);
+        method.invoke(INVOKESTATIC, classNames.get(callee.id().getScope().getModuleId()), methodNames.get(callee), FUNCTION_DESC);
+        if (tailCall) {
+          method.op(RETURN); // the callee closed the frame it took over
+        }
+        break;
+      }
+      case DecodedFunction.RTRN:
+        method.varOp(ALOAD, STATE_VAR);
+        invokeState(method, "closeFrame", "()V");
+        method.op(RETURN);
+        break;
+      case DecodedFunction.IADD:
+        supportOp(method, "iadd");
+        break;
+      case DecodedFunction.ISUB:
+        supportOp(method, "isub");
+        break;
+      case DecodedFunction.IMUL:
+        supportOp(method, "imul");
+        break;
+      case DecodedFunction.IDIV:
+        supportOp(method, "idiv");
+        break;
+      case DecodedFunction.ILT:
+        supportOp(method, "ilt");
+        break;
+      case DecodedFunction.ILE:
+        supportOp(method, "ile");
+        break;
+      case DecodedFunction.IEQ:
+        supportOp(method, "ieq");
+        break;
+      case DecodedFunction.INE:
+        supportOp(method, "ine");
+        break;
+      case DecodedFunction.IGE:
+        supportOp(method, "ige");
+        break;
+      case DecodedFunction.IGT:
+        supportOp(method, "igt");
+        break;
+      case DecodedFunction.PUSH_CONST:
+      case DecodedFunction.GENERIC: {
+        List<OpInfo> moduleOps = genericOps.get(module);
+        moduleOps.add(function.opAt(op).info());
+        method.fieldOp(GETSTATIC, className, "OPS", OPS_DESC);
+        method.pushInt(moduleOps.size() - 1);
+        method.op(AALOAD);
+        method.varOp(ALOAD, STATE_VAR);
+        method.invoke(INVOKEINTERFACE, "java/util/function/Function", "apply", "(Ljava/lang/Object;)Ljava/lang/Object;");
+        method.op(POP); // AOT code handles all the ops that move the pc, so this is always PcMove.next()
+        break;
+      }
+      default:
+        throw new UnsupportedOperationException("unknown opcode: " + decoded.opcodeAt(op));
+    }
+  }
+
+  /**
+   * Builds the op into the builder at local 0, by calling its factory method directly: <code>builder.ops().factory(builder, args...)</code>.
+   */
+  private static void buildOp(MethodWriter clinit, OpInfo op) {
+    Method factory = OP_FACTORIES.get(op.opcode());
+    if (factory == null) {
+      throw new UnsupportedOperationException("unknown op: " + op);
+    }
+    StringBuilder descriptor = new StringBuilder("(Lcom/yuvalshavit/effesvm/ops/OpBuilder;");
+    clinit.varOp(ALOAD, 0);
+    clinit.invoke(INVOKEVIRTUAL, OPS_BUILDER, "ops", "()L" + OPS_IMPL + ';');
+    clinit.varOp(ALOAD, 0);
+    for (String arg : op.arguments()) {
+      clinit.pushString(arg);
+      descriptor.append("Ljava/lang/String;");
+    }
+    clinit.invoke(INVOKEVIRTUAL, OPS_IMPL, factory.getName(), descriptor.append(")V").toString());
+  }
+
+  private byte[] mainClass(EffesFunction mainFunction) {
+    ClassFileWriter cls = new ClassFileWriter(MAIN_CLASS, "java/lang/Object");
+    MethodWriter main = cls.addMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", 3, 2);
+    main.varOp(ALOAD, 0);
+    main.pushInt(mainFunction.nVars() + 1); // +1 for argv
+    main.invoke(INVOKESTATIC, RUNTIME, "newState", "([Ljava/lang/String;I)" + STATE_DESC);
+    main.varOp(ASTORE, 1);
+    main.varOp(ALOAD, 1);
+    main.invoke(INVOKESTATIC, classNames.get(mainFunction.id().getScope().getModuleId()), methodNames.get(mainFunction), FUNCTION_DESC);
+    main.varOp(ALOAD, 1);
+    main.invoke(INVOKESTATIC, RUNTIME, "exit", '(' + STATE_DESC + ")V");
+    main.op(RETURN);
+    return cls.toBytes();
+  }
+
+  private byte[] programResource() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(PROGRAM_VERSION);
+    out.writeInt(modules.size());
+    for (Map.Entry<EffesModule.Id,EffesModule> entry : modules.entrySet()) {
+      out.writeUTF(entry.getKey().getName());
+      out.writeInt(entry.getValue().types().size());
+      for (EffesType type : entry.getValue().types()) {
+        out.writeUTF(type.name());
+        out.writeInt(type.nArgs());
+        for (int i = 0; i < type.nArgs(); ++i) {
+          out.writeUTF(type.argAt(i));
+        }
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Copies the VM's own runtime classes into the jar, so that it's self-contained. This includes classes that the compiled code never loads, like the
+   * interpreter; that's simpler than trying to work out exactly which ones it needs, and they cost nothing unless they're loaded.
+   */
+  private static void writeRuntimeClasses(JarOutputStream jar) throws IOException {
+    Set<Path> sources = new LinkedHashSet<>();
+    for (Class<?> anchor : new Class<?>[] { AotRuntime.class, EffesOps.class }) {
+      CodeSource codeSource = anchor.getProtectionDomain().getCodeSource();
+      if (codeSource == null) {
+        throw new IOException("can't find the runtime classes for " + anchor);
+      }
+      try {
+        sources.add(Paths.get(codeSource.getLocation().toURI()));
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+    Set<String> written = new LinkedHashSet<>();
+    for (Path source : sources) {
+      if (Files.isDirectory(source)) {
+        try (Stream<Path> files = Files.walk(source)) {
+          for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+            String name = source.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            if (name.startsWith(RUNTIME_CLASSES_PREFIX) && written.add(name)) {
+              writeEntry(jar, name, Files.readAllBytes(file));
+            }
+          }
+        }
+      } else {
+        try (JarFile sourceJar = new JarFile(source.toFile())) {
+          for (JarEntry entry : (Iterable<JarEntry>) sourceJar.stream()::iterator) {
+            String name = entry.getName();
+            if (!entry.isDirectory() && name.startsWith(RUNTIME_CLASSES_PREFIX) && written.add(name)) {
+              try (InputStream in = sourceJar.getInputStream(entry)) {
+                writeEntry(jar, name, readAll(in));
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static Map<String,Method> opFactories() {
+    Map<String,Method> factories = new HashMap<>();
+    for (Method method : EffesOps.class.getMethods()) {
+      OperationFactory annotation = method.getAnnotation(OperationFactory.class);
+      if (annotation != null) {
+        factories.put(annotation.value(), method);
+      }
+    }
+    return factories;
+  }
+
+  private static void writeEntry(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+    jar.putNextEntry(new JarEntry(name));
+    jar.write(bytes);
+    jar.closeEntry();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    for (int n; (n = in.read(buf)) > 0; ) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static void varOp(MethodWriter method, String name, int var) {
+    method.varOp(ALOAD, STATE_VAR);
+    method.pushInt(var);
+    invokeState(method, name, "(I)V");
+  }
+
+  private static void supportOp(MethodWriter method, String name) {
+    method.varOp(ALOAD, STATE_VAR);
+    method.invoke(INVOKESTATIC, SUPPORT, name, FUNCTION_DESC);
+  }
+
+  private static void invokeState(MethodWriter method, String name, String descriptor) {
+    method.invoke(INVOKEVIRTUAL, STATE, name, descriptor);
+  }
+
+  private static String sanitize(String name) {
+    return name.replaceAll("[^A-Za-z0-9_]", "_");
+  }
+}
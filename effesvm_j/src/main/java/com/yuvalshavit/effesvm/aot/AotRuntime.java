@@ -0,0 +1,221 @@
+package com.yuvalshavit.effesvm.aot;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.LinkContext;
+import com.yuvalshavit.effesvm.ops.LabelUnlinkedOperation;
+import com.yuvalshavit.effesvm.ops.OpBuilder;
+import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.ops.UnlinkedOperation;
+import com.yuvalshavit.effesvm.ops.VarUnlinkedOperation;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesNativeObject;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EffesRuntimeException;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.EffesType;
+
+/**
+ * Runtime support for the classes that {@link AotCompiler} generates. Nothing else should use this.
+ *
+ * The compiled classes handle control flow, variables, calls and int arithmetic themselves. Each module class builds every other op in its static
+ * initializer, by calling the op's {@link EffesOpsImpl} method directly with an {@link OpsBuilder}, so native ops behave just as they do in the
+ * interpreter. The only thing read at runtime is the jar's table of types (see {@value AotCompiler#PROGRAM_RESOURCE}), which ops that need a type
+ * are linked against. No efct is parsed, and neither the interpreter nor the linker is loaded.
+ */
+public class AotRuntime {
+  private static final Map<ClassLoader,Program> programs = new WeakHashMap<>();
+
+  private AotRuntime() {}
+
+  public static OpsBuilder opsBuilder(Class<?> moduleClass, String module, int nOps) {
+    Program program = program(moduleClass);
+    return new OpsBuilder(program.ops, new AotLinkContext(new EffesModule.Id(module), program.typesByModule), nOps);
+  }
+
+  public static EffesType[] types(Class<?> moduleClass, String module) {
+    return program(moduleClass).types.get(module);
+  }
+
+  public static EffesState newState(String[] argv, int nLocalVars) {
+    return EffesState.forMain(argv, EffesState.defaultStackSize(), nLocalVars);
+  }
+
+  public static void exit(EffesState state) {
+    System.out.flush();
+    System.exit(((EffesNativeObject.EffesInteger) state.getFinalPop()).value);
+  }
+
+  public static Throwable fail(String function, int pc, Throwable error) {
+    if (error instanceof AotFailure || !(error instanceof Exception)) {
+      return error;
+    }
+    return new AotFailure(String.format("in %s at op #%d", function, pc), error);
+  }
+
+  public static Throwable fellOffEnd(String function) {
+    return new IllegalStateException("fell off the end of " + function);
+  }
+
+  private static synchronized Program program(Class<?> moduleClass) {
+    ClassLoader loader = moduleClass.getClassLoader();
+    Program program = programs.get(loader);
+    if (program == null) {
+      try (InputStream resource = loader.getResourceAsStream(AotCompiler.PROGRAM_RESOURCE)) {
+        if (resource == null) {
+          throw new IllegalStateException("couldn't find " + AotCompiler.PROGRAM_RESOURCE);
+        }
+        program = new Program(new DataInputStream(resource));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      programs.put(loader, program);
+    }
+    return program;
+  }
+
+  private static class Program {
+    final Map<EffesModule.Id,Map<String,EffesType>> typesByModule = new HashMap<>();
+    final Map<String,EffesType[]> types = new HashMap<>();
+    final EffesOpsImpl ops = new EffesOpsImpl(EffesIo.stdio());
+
+    Program(DataInputStream in) throws IOException {
+      int version = in.readInt();
+      if (version != AotCompiler.PROGRAM_VERSION) {
+        throw new IllegalStateException("unsupported program version: " + version);
+      }
+      int nModules = in.readInt();
+      for (int m = 0; m < nModules; ++m) {
+        EffesModule.Id module = new EffesModule.Id(in.readUTF());
+        int nTypes = in.readInt();
+        Map<String,EffesType> moduleTypes = new LinkedHashMap<>(nTypes);
+        for (int t = 0; t < nTypes; ++t) {
+          String name = in.readUTF();
+          moduleTypes.put(name, new EffesType(module, name, readStrings(in)));
+        }
+        typesByModule.put(module, moduleTypes);
+        types.put(module.getName(), moduleTypes.values().toArray(new EffesType[0]));
+      }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+      int n = in.readInt();
+      List<String> result = new ArrayList<>(n);
+      for (int i = 0; i < n; ++i) {
+        result.add(in.readUTF());
+      }
+      return Collections.unmodifiableList(result);
+    }
+  }
+
+  /**
+   * Collects a module's ops, in order, as its static initializer builds them. Those are only ever ops that don't need anything but types linked:
+   * function calls, jumps and variables are all linked statically, in the bytecode.
+   */
+  public static class OpsBuilder implements OpBuilder {
+    private final EffesOpsImpl ops;
+    private final LinkContext linkContext;
+    private final Operation.Body[] built;
+    private int nBuilt;
+
+    private OpsBuilder(EffesOpsImpl ops, LinkContext linkContext, int nOps) {
+      this.ops = ops;
+      this.linkContext = linkContext;
+      this.built = new Operation.Body[nOps];
+    }
+
+    public EffesOpsImpl ops() {
+      return ops;
+    }
+
+    public Operation.Body[] build() {
+      if (nBuilt != built.length) {
+        throw new IllegalStateException(String.format("expected %d ops, but built %d", built.length, nBuilt));
+      }
+      return built;
+    }
+
+    @Override
+    public void build(Operation.Body body) {
+      built[nBuilt++] = body;
+    }
+
+    @Override
+    public void build(UnlinkedOperation.Body body) {
+      built[nBuilt++] = body.apply(linkContext);
+    }
+
+    @Override
+    public void build(LabelUnlinkedOperation.Body body) {
+      throw new UnsupportedOperationException("labels are linked by the AOT compiler");
+    }
+
+    @Override
+    public void build(VarUnlinkedOperation.Body body) {
+      throw new UnsupportedOperationException("variables are handled by the AOT compiler");
+    }
+  }
+
+  /**
+   * Links the ops that AOT code doesn't handle itself, against the jar's table of types.
+   */
+  private static class AotLinkContext implements LinkContext {
+    private final EffesModule.Id currentModule;
+    private final Map<EffesModule.Id,Map<String,EffesType>> types;
+
+    AotLinkContext(EffesModule.Id currentModule, Map<EffesModule.Id,Map<String,EffesType>> types) {
+      this.currentModule = currentModule;
+      this.types = types;
+    }
+
+    @Override
+    public EffesModule.Id currentModule() {
+      return currentModule;
+    }
+
+    @Override
+    public EffesType type(EffesModule.Id id, String typeName) {
+      Map<String,EffesType> moduleTypes = types.get(id);
+      EffesType type = moduleTypes == null ? null : moduleTypes.get(typeName);
+      if (type == null) {
+        throw new NoSuchElementException(id + ":" + typeName);
+      }
+      return type;
+    }
+
+    @Override
+    public EffesFunction getFunctionInfo(EffesFunctionId id) {
+      throw new UnsupportedOperationException("function calls are linked by the AOT compiler");
+    }
+
+    @Override
+    public int nOpsInCurrentFunction() {
+      throw new UnsupportedOperationException("jumps are linked by the AOT compiler");
+    }
+
+    @Override
+    public int findLabelOpIndex(String label) {
+      throw new UnsupportedOperationException("jumps are linked by the AOT compiler");
+    }
+  }
+
+  private static class AotFailure extends EffesRuntimeException {
+    AotFailure(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,320 @@
+package com.yuvalshavit.effesvm.load;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.IntegerOps;
+
+/**
+ * A link-time pass that folds constant expressions, and removes ops that can't run. It folds:
+ *
+ * <ul>
+ *   <li><code>int; int; call_Integer:{add,sub,mult,div}</code> into an <code>int</code> (except for division by zero, which is left to fail at
+ *   runtime)</li>
+ *   <li><code>int; int; call_Integer:{lt,le,eq,ne,ge,gt}</code> into a <code>bool</code></li>
+ *   <li><code>bool; bool; call_Boolean:{and,or,xor}</code> and <code>bool; call_Boolean:negate</code> into a <code>bool</code></li>
+ *   <li><code>str; str; call_String:concat</code> into a <code>str</code></li>
+ *   <li><code>bool; {goif,gofi}</code> into a <code>goto</code> if the jump is always taken, or nothing if it never is</li>
+ * </ul>
+ *
+ * It folds repeatedly, so that for instance a comparison of folded sums can fold into a jump. It then removes ops that no path from the first op
+ * reaches, and <code>goto</code>s to the op right after them. A sequence isn't folded if a jump lands in the middle of it. Labels and numeric jump
+ * targets are renumbered to match.
+ *
+ * Folding never makes the local stack deeper, so a function that passed the {@link StackVerifier} keeps its max stack depth.
+ */
+public class ConstantFoldingPass {
+  public static final String PROPERTY = "folding";
+  public static final String REPORT_PROPERTY = "folding.report";
+
+  private static final Map<String,BinaryOperator<Boolean>> booleanOps = createBooleanOps();
+
+  private ConstantFoldingPass() {}
+
+  /**
+   * Whether folding is on, per the {@value #PROPERTY} system property. It's on unless that property is <code>false</code>.
+   */
+  public static boolean enabledBySystemProperties() {
+    return Boolean.parseBoolean(System.getProperty(PROPERTY, "true"));
+  }
+
+  /**
+   * Folds every function in the given modules. This must happen before the modules are decoded or run.
+   *
+   * @return the op counts before and after, for each function that changed, ordered by function id
+   */
+  public static Map<EffesFunctionId,OpCounts> apply(
+    Map<EffesModule.Id,EffesModule> modules,
+    Function<String,OperationFactories.ReflectiveOperationBuilder> opBuilders)
+  {
+    Map<EffesFunctionId,OpCounts> report = new HashMap<>();
+    modules.values().forEach(m -> m.functions().forEach(f -> {
+      List<OpInfo> before = f.opInfos();
+      Map<String,Integer> labels = new LinkedHashMap<>(f.labels());
+      List<OpInfo> after = fold(before, labels);
+      if (after != null) {
+        EffesFunctionParser.relink(f, after, labels, f.nVars(), modules, opBuilders);
+        report.put(f.id(), new OpCounts(before.size(), after.size()));
+      }
+    }));
+    Map<EffesFunctionId,OpCounts> sorted = new LinkedHashMap<>(report.size());
+    report.entrySet().stream()
+      .sorted(Comparator.comparing(e -> e.getKey().toString()))
+      .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+    return sorted;
+  }
+
+  /**
+   * Folds a single function's ops, and updates its labels to match.
+   *
+   * @return the folded ops, or null if nothing changed
+   */
+  static List<OpInfo> fold(List<OpInfo> original, Map<String,Integer> labels) {
+    List<OpInfo> ops = original;
+    boolean changed = false;
+    for (List<OpInfo> next; (next = foldOnce(ops, labels)) != null; ops = next) {
+      changed = true;
+    }
+    return changed ? ops : null;
+  }
+
+  private static List<OpInfo> foldOnce(List<OpInfo> ops, Map<String,Integer> labels) {
+    int nOps = ops.size();
+    BitSet targets = new BitSet(nOps);
+    for (OpInfo op : ops) {
+      if (EffesFunctionParser.isJump(op.opcode())) {
+        targets.set(target(op, labels));
+      }
+    }
+
+    // null means the op is removed
+    List<OpInfo> rewritten = new ArrayList<>(ops);
+    boolean changed = false;
+    for (int i = 0; i < nOps; ) {
+      int length = foldAt(ops, i, targets, rewritten);
+      if (length == 0) {
+        ++i;
+      } else {
+        changed = true;
+        i += length;
+      }
+    }
+
+    BitSet reachable = reachable(rewritten, labels);
+    for (int i = 0; i < nOps; ++i) {
+      if (rewritten.get(i) != null && !reachable.get(i)) {
+        rewritten.set(i, null);
+        changed = true;
+      }
+    }
+    for (int i = 0; i < nOps; ++i) {
+      OpInfo op = rewritten.get(i);
+      if (op != null && "goto".equals(op.opcode()) && nextRemaining(rewritten, i + 1) == nextRemaining(rewritten, target(op, labels))) {
+        rewritten.set(i, null);
+        changed = true;
+      }
+    }
+    return changed ? compact(rewritten, labels) : null;
+  }
+
+  /**
+   * Tries to fold a sequence starting at the given op, writing the result into <code>rewritten</code>.
+   *
+   * @return the length of the sequence that was folded, or 0 if none was
+   */
+  private static int foldAt(List<OpInfo> ops, int i, BitSet targets, List<OpInfo> rewritten) {
+    OpInfo first = ops.get(i);
+    String second = opcode(ops, i + 1, targets);
+    String third = opcode(ops, i + 2, targets);
+    if ("int".equals(first.opcode()) && "int".equals(second)) {
+      int pushedFirst = Integer.parseInt(first.arguments().get(0));
+      int pushedSecond = Integer.parseInt(ops.get(i + 1).arguments().get(0));
+      IntBinaryOperator arith = IntegerOps.ARITHMETIC.get(third);
+      if (arith != null && !("call_Integer:div".equals(third) && pushedSecond == 0)) {
+        // the first-pushed value is the lhs (see IntegerOps)
+        return replace(rewritten, i, 3, with(first, "int", Integer.toString(arith.applyAsInt(pushedFirst, pushedSecond))));
+      }
+      IntegerOps.Comparison cmp = IntegerOps.COMPARISONS.get(third);
+      if (cmp != null) {
+        // the most recently pushed value is the lhs (see IntegerOps)
+        return replace(rewritten, i, 3, boolOp(first, cmp.cmp(pushedSecond, pushedFirst)));
+      }
+    } else if ("str".equals(first.opcode()) && "str".equals(second) && "call_String:concat".equals(third)) {
+      return replace(rewritten, i, 3, with(first, "str", first.arguments().get(0) + ops.get(i + 1).arguments().get(0)));
+    } else if ("bool".equals(first.opcode())) {
+      boolean value = "True".equals(first.arguments().get(0));
+      if ("bool".equals(second) && booleanOps.containsKey(third)) {
+        boolean other = "True".equals(ops.get(i + 1).arguments().get(0));
+        return replace(rewritten, i, 3, boolOp(first, booleanOps.get(third).apply(value, other)));
+      } else if ("call_Boolean:negate".equals(second)) {
+        return replace(rewritten, i, 2, boolOp(first, !value));
+      } else if ("goif".equals(second) || "gofi".equals(second)) {
+        OpInfo jump = ops.get(i + 1);
+        boolean taken = value == "goif".equals(second);
+        rewritten.set(i, taken ? with(jump, "goto", jump.arguments().get(0)) : null);
+        rewritten.set(i + 1, null);
+        return 2;
+      }
+    }
+    return 0;
+  }
+
+  private static int replace(List<OpInfo> rewritten, int start, int length, OpInfo replacement) {
+    rewritten.set(start, replacement);
+    for (int i = 1; i < length; ++i) {
+      rewritten.set(start + i, null);
+    }
+    return length;
+  }
+
+  /**
+   * The op's opcode, or null if there's no such op or a jump lands on it (so that it can't be folded into the op before it).
+   */
+  private static String opcode(List<OpInfo> ops, int idx, BitSet targets) {
+    return idx < ops.size() && !targets.get(idx)
+      ? ops.get(idx).opcode()
+      : null;
+  }
+
+  private static BitSet reachable(List<OpInfo> ops, Map<String,Integer> labels) {
+    BitSet reachable = new BitSet(ops.size());
+    Deque<Integer> worklist = new ArrayDeque<>();
+    worklist.push(0);
+    while (!worklist.isEmpty()) {
+      int idx = nextRemaining(ops, worklist.pop());
+      if (idx >= ops.size() || reachable.get(idx)) {
+        continue;
+      }
+      reachable.set(idx);
+      OpInfo op = ops.get(idx);
+      switch (op.opcode()) {
+        case "goto":
+          worklist.push(target(op, labels));
+          break;
+        case "goif":
+        case "gofi":
+          worklist.push(target(op, labels));
+          worklist.push(idx + 1);
+          break;
+        case "rtrn":
+        case "fail":
+          break;
+        default:
+          worklist.push(idx + 1);
+      }
+    }
+    return reachable;
+  }
+
+  /**
+   * The index of the first op at or after the given one that hasn't been removed. Removed ops fall through to this one.
+   */
+  private static int nextRemaining(List<OpInfo> ops, int idx) {
+    while (idx < ops.size() && ops.get(idx) == null) {
+      ++idx;
+    }
+    return idx;
+  }
+
+  private static List<OpInfo> compact(List<OpInfo> rewritten, Map<String,Integer> labels) {
+    int nOps = rewritten.size();
+    int[] newIdx = new int[nOps + 1];
+    List<OpInfo> kept = new ArrayList<>(nOps);
+    for (int i = 0; i < nOps; ++i) {
+      newIdx[i] = kept.size(); // for removed ops, that's the index of the next remaining one
+      if (rewritten.get(i) != null) {
+        kept.add(rewritten.get(i));
+      }
+    }
+    newIdx[nOps] = kept.size();
+    for (int i = 0; i < kept.size(); ++i) {
+      OpInfo op = kept.get(i);
+      if (EffesFunctionParser.isJump(op.opcode()) && isNumeric(op.arguments().get(0))) {
+        kept.set(i, with(op, op.opcode(), Integer.toString(newIdx[target(op, labels)])));
+      }
+    }
+    labels.replaceAll((label, idx) -> newIdx[idx]);
+    return kept;
+  }
+
+  private static int target(OpInfo jump, Map<String,Integer> labels) {
+    String dest = jump.arguments().get(0);
+    return isNumeric(dest)
+      ? Integer.parseInt(dest)
+      : labels.get(dest); // the op was already linked, so the label must exist
+  }
+
+  private static boolean isNumeric(String dest) {
+    try {
+      Integer.parseInt(dest);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private static OpInfo boolOp(OpInfo from, boolean value) {
+    return with(from, "bool", value ? "True" : "False");
+  }
+
+  /**
+   * A new op at the same place in the source as the given one.
+   */
+  private static OpInfo with(OpInfo from, String opcode, String arg) {
+    return new OpInfo(
+      from.module(),
+      opcode,
+      Collections.singletonList(arg),
+      from.lineNumber(),
+      from.sourceLineNumberIndexedAt0() + 1,
+      from.sourcePositionInLine(),
+      from.inlinedFrom());
+  }
+
+  private static Map<String,BinaryOperator<Boolean>> createBooleanOps() {
+    Map<String,BinaryOperator<Boolean>> map = new HashMap<>();
+    map.put("call_Boolean:and", Boolean::logicalAnd);
+    map.put("call_Boolean:or", Boolean::logicalOr);
+    map.put("call_Boolean:xor", Boolean::logicalXor);
+    return map;
+  }
+
+  /**
+   * A function's op count, before and after folding.
+   */
+  public static class OpCounts {
+    private final int before;
+    private final int after;
+
+    OpCounts(int before, int after) {
+      this.before = before;
+      this.after = after;
+    }
+
+    public int before() {
+      return before;
+    }
+
+    public int after() {
+      return after;
+    }
+
+    @Override
+    public String toString() {
+      return before + " -> " + after;
+    }
+  }
+}
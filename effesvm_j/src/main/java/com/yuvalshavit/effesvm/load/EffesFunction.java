@@ -1,8 +1,15 @@
 package com.yuvalshavit.effesvm.load;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
+import com.yuvalshavit.effesvm.ops.OpInfo;
 import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.runtime.DecodedFunction;
 
 public class EffesFunction {
 
@@ -10,7 +17,12 @@ public class EffesFunction {
   private final int nArgs;
   private final boolean hasRv;
   private int nVars = -1;
+  private int maxStackDepth = -1;
   private List<Operation> ops;
+  private Map<String,Integer> labels;
+  private NavigableMap<Integer,String> labelsByOpIdx = Collections.emptyNavigableMap();
+  private DecodedFunction decoded;
+  private long[] hitCounts;
 
   public EffesFunction(EffesFunctionId id, boolean hasRv, int nArgs) {
     this.id = id;
@@ -25,6 +37,48 @@ public class EffesFunction {
     this.ops = ops;
   }
 
+  /**
+   * Sets the function's labels, as a side table from each label to the index of the op right after it. Labels aren't ops, so they cost nothing at
+   * runtime; they're only used to link jumps, and to say where in the function an op is (see {@link #labelBefore(int)}).
+   */
+  public void setLabels(Map<String,Integer> labels) {
+    if (this.labels != null) {
+      throw new IllegalArgumentException("labels already set");
+    }
+    doSetLabels(labels);
+  }
+
+  /**
+   * Replaces a single op. This is for link-time passes, and must happen before the function is decoded or run.
+   */
+  public void replaceOp(int idx, Operation op) {
+    if (decoded != null) {
+      throw new IllegalStateException("already decoded");
+    }
+    ops().set(idx, op);
+  }
+
+  /**
+   * Replaces all of the function's ops, and the number of local vars they use. This is for link-time passes that change the number of ops (which
+   * means relinking all of them, since jumps are linked to absolute op indexes), and must happen before the function is decoded or run.
+   */
+  void replaceOps(List<Operation> ops, Map<String,Integer> labels, int nVars) {
+    if (decoded != null) {
+      throw new IllegalStateException("already decoded");
+    }
+    ops();
+    this.ops = ops;
+    this.nVars = nVars;
+    doSetLabels(labels);
+  }
+
+  private void doSetLabels(Map<String,Integer> labels) {
+    this.labels = Collections.unmodifiableMap(labels);
+    TreeMap<Integer,String> byOpIdx = new TreeMap<>();
+    labels.forEach((label, opIdx) -> byOpIdx.put(opIdx, label)); // if several labels are at the same op, the last one wins
+    this.labelsByOpIdx = byOpIdx;
+  }
+
   public void setNVars(int nVars) {
     if (this.nVars >= 0) {
       throw new IllegalStateException("nVars already set");
@@ -32,10 +86,74 @@ public class EffesFunction {
     this.nVars = nVars;
   }
 
+  /**
+   * Records that this function passed the {@link StackVerifier}, and the deepest that its local stack can get.
+   */
+  public void setVerified(int maxStackDepth) {
+    if (maxStackDepth < 0) {
+      throw new IllegalArgumentException("negative depth: " + maxStackDepth);
+    }
+    this.maxStackDepth = maxStackDepth;
+  }
+
+  /**
+   * Whether this function passed the {@link StackVerifier}. Verified functions can use the unchecked stack primitives in
+   * {@link com.yuvalshavit.effesvm.runtime.EffesState EffesState}.
+   */
+  public boolean isVerified() {
+    return maxStackDepth >= 0;
+  }
+
+  public int maxStackDepth() {
+    if (maxStackDepth < 0) {
+      throw new IllegalStateException("not verified");
+    }
+    return maxStackDepth;
+  }
+
+  public void setDecoded(DecodedFunction decoded) {
+    if (this.decoded != null) {
+      throw new IllegalStateException("already decoded");
+    }
+    this.decoded = decoded;
+  }
+
+  /**
+   * The pre-decoded form of this function's ops, as used by the switch-dispatched interpreter; or null if the function hasn't been decoded.
+   */
+  public DecodedFunction decoded() {
+    return decoded;
+  }
+
+  /**
+   * Starts counting how many times each op runs, for code coverage. The given array is indexed by op, and is updated in place; it can start off with
+   * counts from earlier runs.
+   */
+  public void setHitCounts(long[] hitCounts) {
+    if (hitCounts.length != nOps()) {
+      throw new IllegalArgumentException(String.format("%d hit counts for %d ops", hitCounts.length, nOps()));
+    }
+    this.hitCounts = hitCounts;
+  }
+
+  /**
+   * How many times each op has run, indexed by op; or null if this function's ops aren't being counted.
+   */
+  public long[] hitCounts() {
+    return hitCounts;
+  }
+
   public int nArgs() {
     return nArgs;
   }
 
+  /**
+   * The number of args, plus one for "this" if this is an instance function. "this" is var 0, before the other args.
+   */
+  public int nArgsWithThis() {
+    return id.getScope().map(m -> false, (m, t) -> true) ? nArgs + 1 : nArgs;
+  }
+
   public boolean hasRv() {
     return hasRv;
   }
@@ -55,6 +173,32 @@ public class EffesFunction {
     return ops().get(idx);
   }
 
+  /**
+   * The descriptions of the function's ops, in order. Link-time passes rewrite these, and then rebuild the ops from them.
+   */
+  public List<OpInfo> opInfos() {
+    List<OpInfo> result = new ArrayList<>(nOps());
+    for (Operation op : ops()) {
+      result.add(op.info());
+    }
+    return result;
+  }
+
+  /**
+   * The labels, mapped to the index of the op right after each one. Functions without labels (or whose labels were never set) have an empty map.
+   */
+  public Map<String,Integer> labels() {
+    return labels == null ? Collections.emptyMap() : labels;
+  }
+
+  /**
+   * The last label at or before the given op, or null if there isn't one. This is what error messages mean by "after" a label.
+   */
+  public String labelBefore(int opIdx) {
+    Map.Entry<Integer,String> entry = labelsByOpIdx.floorEntry(opIdx);
+    return entry == null ? null : entry.getValue();
+  }
+
   public EffesFunctionId id() {
     return id;
   }
@@ -2,10 +2,14 @@ package com.yuvalshavit.effesvm.load;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.regex.Matcher;
@@ -13,6 +17,7 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import com.yuvalshavit.effesvm.ops.LabelUnlinkedOperation;
+import com.yuvalshavit.effesvm.ops.OpInfo;
 import com.yuvalshavit.effesvm.ops.Operation;
 import com.yuvalshavit.effesvm.ops.OperationFactories;
 import com.yuvalshavit.effesvm.ops.UnlinkedOperation;
@@ -20,11 +25,16 @@ import com.yuvalshavit.effesvm.ops.VarUnlinkedOperation;
 import com.yuvalshavit.effesvm.runtime.EffesType;
 
 public class EffesFunctionParser {
-  private static final Pattern sourceDebugInfoPattern = Pattern.compile("^(\\d+):(\\d+)");
+  static final Pattern sourceDebugInfoPattern = Pattern.compile("^(\\d+):(\\d+)");
+  private static final String LABEL_OPCODE = "labl";
 
   private EffesFunctionParser() {
   }
 
+  /**
+   * Builds and links every function, in parallel on the common fork-join pool. If any fail, this throws the failure from the first module (by name),
+   * at that module's lowest line number; so the error doesn't depend on which function happened to finish first.
+   */
   public static Map<EffesModule.Id, EffesModule> parse(
     Map<EffesModule.Id, OutlinedModule> outline,
     Function<String, OperationFactories.ReflectiveOperationBuilder> ops)
@@ -43,47 +53,96 @@ public class EffesFunctionParser {
       }
       return module.getTypes().get(typeName);
     };
-    functionsById.forEach((functionId, allocation) -> {
+    // Each function only reads the others' allocations, which already exist; so they can all be built and linked at once
+    Queue<FunctionFailure> failures = new ConcurrentLinkedQueue<>();
+    functionsById.entrySet().parallelStream().forEach(e -> {
+      FunctionFailure failure = build(e.getKey(), e.getValue(), ops, functionsById, typeLookup);
+      if (failure != null) {
+        failures.add(failure);
+      }
+    });
+    if (!failures.isEmpty()) {
+      // report the same failure regardless of which thread got there first
+      throw Collections.min(failures, FunctionFailure.ORDER).exception;
+    }
+
+    return outline.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> {
+      OutlinedModule outlinedModule = e.getValue();
+      List<EffesFunction> fs = outlinedModule.getFunctions().keySet().stream().map(fid -> functionsById.get(fid).allocated).collect(Collectors.toList());
+      return new EffesModule(outlinedModule.getTypes().values(), fs);
+    }));
+  }
+
+  /**
+   * Builds and links one function's ops, returning how that failed, or null if it didn't.
+   */
+  private static FunctionFailure build(
+    EffesFunctionId functionId,
+    FunctionAllocation allocation,
+    Function<String, OperationFactories.ReflectiveOperationBuilder> ops,
+    Map<EffesFunctionId, FunctionAllocation> functionsById,
+    BiFunction<EffesModule.Id, String, EffesType> typeLookup)
+  {
+    int lineNum = -1;
+    try {
       List<EfctLine> lines = allocation.parse.getLines();
-      List<UnlinkedOperation> unlinkedOps = new ArrayList<>(lines.size());
-      Map<String, Integer> labelsMap = new HashMap<>();
-      int totalNVars = allocation.parse.getNArgs();
+      List<EfctOp> efctOps = new ArrayList<>(lines.size());
       Matcher sourceDebugInfoMatcher = sourceDebugInfoPattern.matcher("");
       for (EfctLine line : lines) {
+        lineNum = line.getLineNum();
         String firstWord = line.get(0, "first word");
-        final int sourceLine;
-        final int sourcePosInLine;
-        final int opArgsIndex;
-        final String opcode;
         if (sourceDebugInfoMatcher.reset(firstWord).matches()) {
-          sourceLine = Integer.parseInt(sourceDebugInfoMatcher.group(1));
-          sourcePosInLine = Integer.parseInt(sourceDebugInfoMatcher.group(2));
-          opcode = line.get(1, "opcode");
-          opArgsIndex = 2;
+          efctOps.add(new EfctOp(
+            line,
+            line.get(1, "opcode"),
+            2,
+            Integer.parseInt(sourceDebugInfoMatcher.group(1)),
+            Integer.parseInt(sourceDebugInfoMatcher.group(2))));
         } else {
-          sourceLine = -1;
-          sourcePosInLine = -1;
-          opcode = firstWord;
-          opArgsIndex = 1;
+          efctOps.add(new EfctOp(line, firstWord, 1, -1, -1));
+        }
+      }
+      // Labels aren't ops, but numeric jump targets in the efct count them; so work out where each efct op ends up
+      int[] opIdx = new int[efctOps.size() + 1];
+      int nOps = 0;
+      for (int i = 0; i < efctOps.size(); ++i) {
+        opIdx[i] = nOps;
+        if (!LABEL_OPCODE.equals(efctOps.get(i).opcode)) {
+          ++nOps;
         }
-        OperationFactories.ReflectiveOperationBuilder opBuilder = ops.apply(opcode);
+      }
+      opIdx[efctOps.size()] = nOps;
+
+      List<UnlinkedOperation> unlinkedOps = new ArrayList<>(nOps);
+      Map<String, Integer> labelsMap = new LinkedHashMap<>();
+      int totalNVars = allocation.parse.getNArgs();
+      int[] opLineNums = new int[nOps];
+      for (EfctOp efctOp : efctOps) {
+        lineNum = efctOp.line.getLineNum();
+        OperationFactories.ReflectiveOperationBuilder opBuilder = ops.apply(efctOp.opcode);
         if (opBuilder == null) {
-          throw new EffesLoadException("no such op: " + opcode);
+          throw new EffesLoadException("no such op: " + efctOp.opcode);
+        }
+        String[] args = efctOp.line.tailTokens(efctOp.argsIndex);
+        if (isJump(efctOp.opcode) && args.length > 0) {
+          args[0] = renumberJump(args[0], opIdx);
         }
         UnlinkedOperation unlinked = opBuilder.build(
           functionId.getScope().getModuleId(),
-          line.getLineNum(),
-          sourceLine,
-          sourcePosInLine,
-          line.tailTokens(opArgsIndex));
+          efctOp.line.getLineNum(),
+          efctOp.sourceLine,
+          efctOp.sourcePosInLine,
+          args);
         if (unlinked instanceof LabelUnlinkedOperation) {
-          String label = ((LabelUnlinkedOperation) unlinked).label();
-          labelsMap.put(label, unlinkedOps.size());
-        } else if (unlinked instanceof VarUnlinkedOperation) {
-          int varIndex = ((VarUnlinkedOperation) unlinked).varIndex();
-          totalNVars = Math.max(totalNVars, varIndex + 1);
+          labelsMap.put(((LabelUnlinkedOperation) unlinked).label(), unlinkedOps.size());
+        } else {
+          if (unlinked instanceof VarUnlinkedOperation) {
+            int varIndex = ((VarUnlinkedOperation) unlinked).varIndex();
+            totalNVars = Math.max(totalNVars, varIndex + 1);
+          }
+          opLineNums[unlinkedOps.size()] = lineNum;
+          unlinkedOps.add(unlinked);
         }
-        unlinkedOps.add(unlinked);
       }
       LinkContext linkContext = new LinkContextImpl(
         functionId.getScope().getModuleId(),
@@ -93,16 +152,103 @@ public class EffesFunctionParser {
         typeLookup,
         unlinkedOps.size(),
         labelsMap);
-      List<Operation> linked = unlinkedOps.stream().map(unlinked -> unlinked.apply(linkContext)).collect(Collectors.toList());
+      List<Operation> linked = new ArrayList<>(unlinkedOps.size());
+      for (int i = 0; i < unlinkedOps.size(); ++i) {
+        lineNum = opLineNums[i];
+        linked.add(unlinkedOps.get(i).apply(linkContext));
+      }
       allocation.allocated.setOps(linked);
+      allocation.allocated.setLabels(labelsMap);
       allocation.allocated.setNVars(totalNVars - allocation.parse.getNArgs());
-    });
+      return null;
+    } catch (RuntimeException e) {
+      return new FunctionFailure(functionId.getScope().getModuleId(), lineNum, e);
+    }
+  }
 
-    return outline.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> {
-      OutlinedModule outlinedModule = e.getValue();
-      List<EffesFunction> fs = outlinedModule.getFunctions().keySet().stream().map(fid -> functionsById.get(fid).allocated).collect(Collectors.toList());
-      return new EffesModule(outlinedModule.getTypes().values(), fs);
-    }));
+  /**
+   * Relinks a function from the given op descriptions and labels, replacing its ops, labels and number of local vars. This is for link-time passes
+   * that add, remove or rewrite ops. Jumps are linked to absolute op indexes, so numeric jump targets in the descriptions, as well as the labels' op
+   * indexes, must already match their new positions.
+   */
+  static void relink(
+    EffesFunction function,
+    List<OpInfo> infos,
+    Map<String, Integer> labelsMap,
+    int nVars,
+    Map<EffesModule.Id, EffesModule> modules,
+    Function<String, OperationFactories.ReflectiveOperationBuilder> ops)
+  {
+    List<UnlinkedOperation> unlinkedOps = new ArrayList<>(infos.size());
+    for (OpInfo info : infos) {
+      unlinkedOps.add(ops.apply(info.opcode()).apply(info));
+    }
+    LinkContext linkContext = new LinkContextImpl(
+      function.id().getScope().getModuleId(),
+      fid -> {
+        EffesModule module = modules.get(fid.getScope().getModuleId());
+        return module == null ? null : module.getFunction(fid);
+      },
+      (moduleId, typeName) -> {
+        EffesModule module = modules.get(moduleId);
+        if (module == null) {
+          throw new NoSuchElementException(moduleId.toString());
+        }
+        return module.getType(typeName);
+      },
+      unlinkedOps.size(),
+      labelsMap);
+    List<Operation> linked = unlinkedOps.stream().map(unlinked -> unlinked.apply(linkContext)).collect(Collectors.toList());
+    function.replaceOps(linked, labelsMap, nVars);
+  }
+
+  /**
+   * Whether the op jumps to its first argument, which is a label or an op index.
+   */
+  static boolean isJump(String opcode) {
+    return "goto".equals(opcode) || "goif".equals(opcode) || "gofi".equals(opcode);
+  }
+
+  private static String renumberJump(String dest, int[] opIdx) {
+    int efctIdx;
+    try {
+      efctIdx = Integer.parseInt(dest);
+    } catch (NumberFormatException e) {
+      return dest; // a label
+    }
+    return (efctIdx >= 0 && efctIdx < opIdx.length)
+      ? Integer.toString(opIdx[efctIdx])
+      : dest; // out of range, which linking will report
+  }
+
+  private static class EfctOp {
+    final EfctLine line;
+    final String opcode;
+    final int argsIndex;
+    final int sourceLine;
+    final int sourcePosInLine;
+
+    EfctOp(EfctLine line, String opcode, int argsIndex, int sourceLine, int sourcePosInLine) {
+      this.line = line;
+      this.opcode = opcode;
+      this.argsIndex = argsIndex;
+      this.sourceLine = sourceLine;
+      this.sourcePosInLine = sourcePosInLine;
+    }
+  }
+
+  private static class FunctionFailure {
+    static final Comparator<FunctionFailure> ORDER = Comparator.<FunctionFailure, EffesModule.Id>comparing(f -> f.moduleId).thenComparingInt(f -> f.lineNum);
+
+    final EffesModule.Id moduleId;
+    final int lineNum;
+    final RuntimeException exception;
+
+    FunctionFailure(EffesModule.Id moduleId, int lineNum, RuntimeException exception) {
+      this.moduleId = moduleId;
+      this.lineNum = lineNum;
+      this.exception = exception;
+    }
   }
 
   private static class FunctionAllocation {
@@ -2,6 +2,7 @@ package com.yuvalshavit.effesvm.load;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -13,11 +14,11 @@ import lombok.NonNull;
 
 public class EffesModule {
   private final Map<EffesFunctionId,EffesFunction> functions;
-  private final Collection<EffesType> types;
+  private final Map<String,EffesType> types;
 
   public EffesModule(Collection<EffesType> types, Collection<EffesFunction> functions) {
     Map<String,EffesType> typesByName = types.stream().collect(LambdaHelpers.groupByUniquely(EffesType::name, "type name"));
-    this.types = Collections.unmodifiableCollection(new ArrayList<>(typesByName.values()));
+    this.types = Collections.unmodifiableMap(typesByName);
     this.functions = functions.stream().collect(LambdaHelpers.groupByUniquely(EffesFunction::id, "function"));
 
     Set<String> unknownTypes = this.functions.keySet().stream()
@@ -38,10 +39,35 @@ public class EffesModule {
     return res;
   }
 
+  public EffesType getType(String name) {
+    EffesType res = types.get(name);
+    if (res == null) {
+      throw new NoSuchElementException(name);
+    }
+    return res;
+  }
+
+  /**
+   * Looks modules up by id, throwing NoSuchElementException (just like {@link #getFunction} and {@link #getType}) for ones that aren't in the map.
+   */
+  public static Function<Id,EffesModule> lookup(Map<Id,EffesModule> modules) {
+    return id -> {
+      EffesModule module = modules.get(id);
+      if (module == null) {
+        throw new NoSuchElementException(id.toString());
+      }
+      return module;
+    };
+  }
+
   public Collection<EffesFunction> functions() {
     return Collections.unmodifiableCollection(functions.values());
   }
 
+  public Collection<EffesType> types() {
+    return types.values();
+  }
+
   @Data
   public static class Id implements Serializable, Comparable<Id> {
     @NonNull
@@ -0,0 +1,201 @@
+package com.yuvalshavit.effesvm.load;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+
+import com.yuvalshavit.effesvm.ops.FusedOperation;
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.runtime.IntegerOps;
+import com.yuvalshavit.effesvm.runtime.PcMove;
+
+/**
+ * A link-time pass that replaces common op sequences with a single {@link FusedOperation}, so that each sequence costs one dispatch, and its
+ * intermediate values never touch the stack. The sequences are:
+ *
+ * <ul>
+ *   <li><code>pvar; pvar; call_Integer:{add,sub,mult,div}</code></li>
+ *   <li><code>pvar; int; call_Integer:{add,sub,mult,div}</code></li>
+ *   <li><code>pvar; int; call_Integer:{lt,le,eq,ne,ge,gt}; {goif,gofi}</code>, and the same with <code>int; pvar</code></li>
+ *   <li><code>int; call_Integer:{lt,le,eq,ne,ge,gt}; {goif,gofi}</code></li>
+ *   <li><code>call_Integer:{lt,le,eq,ne,ge,gt}; {goif,gofi}</code></li>
+ *   <li><code>{type,typp}; {goif,gofi}</code></li>
+ * </ul>
+ *
+ * Jumps into the middle of a sequence are fine, since the fused ops stay where they were (see {@link FusedOperation}).
+ */
+public class FusionPass {
+  public static final String PROPERTY = "fusion";
+  public static final String REPORT_PROPERTY = "fusion.report";
+
+  private FusionPass() {}
+
+  /**
+   * Whether fusion is on, per the {@value #PROPERTY} system property. It's on unless that property is <code>false</code>.
+   */
+  public static boolean enabledBySystemProperties() {
+    return Boolean.parseBoolean(System.getProperty(PROPERTY, "true"));
+  }
+
+  /**
+   * Fuses every function in the given modules. This must happen before the modules are decoded or run.
+   *
+   * @return the number of fusions in each function that had any, ordered by function id
+   */
+  public static Map<EffesFunctionId,Integer> apply(Map<EffesModule.Id,EffesModule> modules) {
+    Map<EffesFunctionId,Integer> report = new HashMap<>();
+    modules.values().forEach(m -> m.functions().forEach(f -> {
+      int nFused = fuse(f);
+      if (nFused > 0) {
+        report.put(f.id(), nFused);
+      }
+    }));
+    Map<EffesFunctionId,Integer> sorted = new LinkedHashMap<>(report.size());
+    report.entrySet().stream()
+      .sorted(Comparator.comparing(e -> e.getKey().toString()))
+      .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+    return sorted;
+  }
+
+  static int fuse(EffesFunction function) {
+    int nOps = function.nOps();
+    List<Operation> ops = new ArrayList<>(nOps);
+    for (int i = 0; i < nOps; ++i) {
+      ops.add(function.opAt(i));
+    }
+    Map<String,Integer> labels = function.labels();
+    int nFused = 0;
+    for (int i = 0; i < nOps; ) {
+      FusedOperation fused = match(ops, i, labels);
+      if (fused == null) {
+        ++i;
+      } else {
+        function.replaceOp(i, fused);
+        ++nFused;
+        i += fused.components().size();
+      }
+    }
+    return nFused;
+  }
+
+  private static FusedOperation match(List<Operation> ops, int i, Map<String,Integer> labels) {
+    String first = opcode(ops, i);
+    String second = opcode(ops, i + 1);
+    String third = opcode(ops, i + 2);
+    String fourth = opcode(ops, i + 3);
+
+    IntBinaryOperator arith = IntegerOps.ARITHMETIC.get(third);
+    if (arith != null && "pvar".equals(first)) {
+      int lhsVar = intArg(ops, i);
+      if ("pvar".equals(second)) {
+        int rhsVar = intArg(ops, i + 1);
+        return fused(ops, i, 3, next -> s -> {
+          s.pushInt(arith.applyAsInt(s.varInt(lhsVar), s.varInt(rhsVar)));
+          return next;
+        });
+      } else if ("int".equals(second)) {
+        int rhs = intArg(ops, i + 1);
+        return fused(ops, i, 3, next -> s -> {
+          s.pushInt(arith.applyAsInt(s.varInt(lhsVar), rhs));
+          return next;
+        });
+      }
+    }
+
+    // See IntegerOps for which operand is which
+    IntegerOps.Comparison thirdCmp = IntegerOps.COMPARISONS.get(third);
+    if (thirdCmp != null && isConditionalJump(fourth)) {
+      CondJump jump = condJump(ops, i + 3, labels);
+      if ("int".equals(first) && "pvar".equals(second)) {
+        int rhs = intArg(ops, i);
+        int lhsVar = intArg(ops, i + 1);
+        return fused(ops, i, 4, next -> s -> jump.to(thirdCmp.cmp(s.varInt(lhsVar), rhs), next));
+      } else if ("pvar".equals(first) && "int".equals(second)) {
+        int rhsVar = intArg(ops, i);
+        int lhs = intArg(ops, i + 1);
+        return fused(ops, i, 4, next -> s -> jump.to(thirdCmp.cmp(lhs, s.varInt(rhsVar)), next));
+      }
+    }
+
+    IntegerOps.Comparison secondCmp = IntegerOps.COMPARISONS.get(second);
+    if (secondCmp != null && "int".equals(first) && isConditionalJump(third)) {
+      int lhs = intArg(ops, i);
+      CondJump jump = condJump(ops, i + 2, labels);
+      return fused(ops, i, 3, next -> s -> jump.to(secondCmp.cmp(lhs, s.popInt()), next));
+    }
+
+    IntegerOps.Comparison firstCmp = IntegerOps.COMPARISONS.get(first);
+    if (firstCmp != null && isConditionalJump(second)) {
+      CondJump jump = condJump(ops, i + 1, labels);
+      return fused(ops, i, 2, next -> s -> {
+        int lhs = s.popInt();
+        int rhs = s.popInt();
+        return jump.to(firstCmp.cmp(lhs, rhs), next);
+      });
+    }
+
+    if (("typp".equals(first) || "type".equals(first)) && isConditionalJump(second)) {
+      Operation typeCheck = ops.get(i);
+      CondJump jump = condJump(ops, i + 1, labels);
+      return fused(ops, i, 2, next -> s -> {
+        typeCheck.apply(s);
+        return jump.to(s.popBoolean(), next);
+      });
+    }
+    return null;
+  }
+
+  private static FusedOperation fused(List<Operation> ops, int start, int length, BodyFactory bodyFactory) {
+    PcMove next = PcMove.absolute(start + length);
+    return new FusedOperation(new ArrayList<>(ops.subList(start, start + length)), bodyFactory.create(next));
+  }
+
+  private static String opcode(List<Operation> ops, int idx) {
+    return idx < ops.size()
+      ? ops.get(idx).info().opcode()
+      : null;
+  }
+
+  private static int intArg(List<Operation> ops, int idx) {
+    return Integer.parseInt(ops.get(idx).info().arguments().get(0));
+  }
+
+  private static boolean isConditionalJump(String opcode) {
+    return "goif".equals(opcode) || "gofi".equals(opcode);
+  }
+
+  private static CondJump condJump(List<Operation> ops, int idx, Map<String,Integer> labels) {
+    OpInfo info = ops.get(idx).info();
+    String dest = info.arguments().get(0);
+    int target;
+    try {
+      target = Integer.parseInt(dest);
+    } catch (NumberFormatException e) {
+      target = labels.get(dest); // the op was already linked, so the label must exist
+    }
+    return new CondJump("goif".equals(info.opcode()), PcMove.absolute(target));
+  }
+
+  private static class CondJump {
+    private final boolean jumpIf;
+    private final PcMove to;
+
+    CondJump(boolean jumpIf, PcMove to) {
+      this.jumpIf = jumpIf;
+      this.to = to;
+    }
+
+    PcMove to(boolean condition, PcMove otherwise) {
+      return (condition == jumpIf) ? to : otherwise;
+    }
+  }
+
+  private interface BodyFactory {
+    Operation.Body create(PcMove next);
+  }
+}
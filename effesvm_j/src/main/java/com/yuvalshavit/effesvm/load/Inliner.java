@@ -0,0 +1,313 @@
+package com.yuvalshavit.effesvm.load;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+
+/**
+ * A link-time pass that copies the bodies of small functions into their callers, so that calls to accessor-like functions don't open and close a
+ * frame. An inlined call:
+ *
+ * <ol>
+ *   <li>pops its args (and "this", for instance functions) into vars that are added to the caller for that purpose</li>
+ *   <li>for instance functions, checks the type of "this"; if it's wrong, pushes the args back and makes the original call, so that it fails just as it
+ *   would have without inlining</li>
+ *   <li>runs the callee's ops, with their vars renumbered, their labels renamed, and each <code>rtrn</code> turned into a jump past the inlined
+ *   body</li>
+ * </ol>
+ *
+ * A callee is only inlined if it has at most {@value #DEFAULT_MAX_OPS} ops (per the {@value #MAX_OPS_PROPERTY} system property), doesn't call itself,
+ * and passed the {@link StackVerifier}, as did its caller. That proves that each <code>rtrn</code> leaves exactly the return value on the stack, and
+ * that the callee never reads a var it hasn't set; so a var left over from an earlier inlined call is never seen. Callees with
+ * <code>debug-print</code> ops aren't inlined, since those print the current frame's local stack. Each caller also only grows by up to
+ * {@value #MAX_GROWTH} ops. Callees are inlined as they were before this pass, so this never inlines more than one level deep.
+ *
+ * Inlined ops keep their original line numbers, and their {@link OpInfo#inlinedFrom()} says where they came from, which stack traces and the debugger
+ * show. Their type and function references are rewritten to be fully qualified, since they may be from another module. The ops that bind the args
+ * and check "this" (including the fallback call) stand in for the call itself, so they keep its line numbers and aren't marked as inlined.
+ */
+public class Inliner {
+  public static final String PROPERTY = "inline";
+  public static final String MAX_OPS_PROPERTY = "inline.maxops";
+  public static final int DEFAULT_MAX_OPS = 8;
+  static final int MAX_GROWTH = 64;
+
+  private final Map<EffesModule.Id,EffesModule> modules;
+  private final Function<String,OperationFactories.ReflectiveOperationBuilder> opBuilders;
+  private final int maxOps;
+  private final Function<EffesModule.Id,EffesModule> moduleLookup;
+  private final Map<EffesFunction,List<OpInfo>> originals = new HashMap<>();
+  private final Map<EffesFunction,Map<String,Integer>> originalLabels = new HashMap<>();
+
+  private Inliner(Map<EffesModule.Id,EffesModule> modules, Function<String,OperationFactories.ReflectiveOperationBuilder> opBuilders, int maxOps) {
+    this.modules = modules;
+    this.opBuilders = opBuilders;
+    this.maxOps = maxOps;
+    this.moduleLookup = EffesModule.lookup(modules);
+  }
+
+  /**
+   * Whether inlining is on, per the {@value #PROPERTY} system property. It's on unless that property is <code>false</code>.
+   */
+  public static boolean enabledBySystemProperties() {
+    return Boolean.parseBoolean(System.getProperty(PROPERTY, "true"));
+  }
+
+  /**
+   * Inlines calls in every function in the given modules. This must happen after the {@link StackVerifier}, and before any other pass or the modules
+   * are decoded or run. Every function that had calls inlined is verified again.
+   *
+   * @return the number of calls inlined
+   */
+  public static int apply(Map<EffesModule.Id,EffesModule> modules, Function<String,OperationFactories.ReflectiveOperationBuilder> opBuilders) {
+    return apply(modules, opBuilders, Integer.getInteger(MAX_OPS_PROPERTY, DEFAULT_MAX_OPS));
+  }
+
+  static int apply(Map<EffesModule.Id,EffesModule> modules, Function<String,OperationFactories.ReflectiveOperationBuilder> opBuilders, int maxOps) {
+    Inliner inliner = new Inliner(modules, opBuilders, maxOps);
+    List<EffesFunction> functions = modules.values().stream().flatMap(m -> m.functions().stream()).collect(Collectors.toList());
+    // Snapshot everything first, so that what gets inlined doesn't depend on the order we visit the functions in
+    functions.forEach(f -> {
+      inliner.originals.put(f, f.opInfos());
+      inliner.originalLabels.put(f, f.labels());
+    });
+    return functions.stream().mapToInt(inliner::inlineInto).sum();
+  }
+
+  private int inlineInto(EffesFunction caller) {
+    if (!caller.isVerified()) {
+      return 0;
+    }
+    List<OpInfo> callerOps = originals.get(caller);
+    int nOps = callerOps.size();
+    Site[] sites = new Site[nOps];
+    int[] newIdx = new int[nOps + 1];
+    int growth = 0;
+    int nInlined = 0;
+    for (int i = 0; i < nOps; ++i) {
+      newIdx[i] = i + growth;
+      Site site = site(caller, callerOps.get(i));
+      if (site != null && growth + site.size() - 1 <= MAX_GROWTH) {
+        sites[i] = site;
+        growth += site.size() - 1;
+        ++nInlined;
+      }
+    }
+    newIdx[nOps] = nOps + growth;
+    if (nInlined == 0) {
+      return 0;
+    }
+
+    // Every inlined body runs to completion before the next one starts, so they can all share the same extra vars.
+    int firstExtraVar = caller.nArgsWithThis() + caller.nVars();
+    int nExtraVars = 0;
+    List<OpInfo> result = new ArrayList<>(newIdx[nOps]);
+    Map<String,Integer> labels = new LinkedHashMap<>();
+    caller.labels().forEach((label, idx) -> labels.put(label, newIdx[idx]));
+    for (int i = 0; i < nOps; ++i) {
+      OpInfo info = callerOps.get(i);
+      Site site = sites[i];
+      if (site == null) {
+        result.add(EffesFunctionParser.isJump(info.opcode()) ? withArg(info, 0, relink(info.arguments().get(0), newIdx)) : info);
+      } else {
+        site.emit(result, labels, newIdx[i], newIdx[i + 1], firstExtraVar, i);
+        nExtraVars = Math.max(nExtraVars, site.nVars);
+      }
+    }
+    EffesFunctionParser.relink(caller, result, labels, caller.nVars() + nExtraVars, modules, opBuilders);
+    int maxDepth = StackVerifier.verify(caller, moduleLookup);
+    if (maxDepth < 0) {
+      throw new IllegalStateException("couldn't verify " + caller + " after inlining");
+    }
+    caller.setVerified(maxDepth);
+    return nInlined;
+  }
+
+  /**
+   * Returns the call site that would inline the given op, or null if it's not a call that can be inlined.
+   */
+  private Site site(EffesFunction caller, OpInfo info) {
+    if (!"call".equals(info.opcode())) {
+      return null;
+    }
+    EffesFunctionId calleeId = EffesFunctionId.parse(info.arguments().get(0), info.arguments().get(1), info.module());
+    if (calleeId.isConstructor()) {
+      return null;
+    }
+    EffesFunction callee = moduleLookup.apply(calleeId.getScope().getModuleId()).getFunction(calleeId);
+    List<OpInfo> calleeOps = originals.get(callee);
+    if (callee == caller || !callee.isVerified() || calleeOps.size() > maxOps) {
+      return null;
+    }
+    for (OpInfo op : calleeOps) {
+      if (op.opcode().startsWith("debug-print")) {
+        return null;
+      }
+      if ("call".equals(op.opcode()) && EffesFunctionId.parse(op.arguments().get(0), op.arguments().get(1), op.module()).equals(calleeId)) {
+        return null;
+      }
+    }
+    boolean checkInstance = calleeId.getScope().map(m -> false, (m, t) -> true);
+    return new Site(info, callee, calleeOps, checkInstance);
+  }
+
+  private class Site {
+    private final OpInfo call;
+    private final EffesFunction callee;
+    private final List<OpInfo> calleeOps;
+    private final boolean checkInstance;
+    private final int nArgs;
+    private final int nVars;
+    private final boolean endsWithRtrn;
+
+    Site(OpInfo call, EffesFunction callee, List<OpInfo> calleeOps, boolean checkInstance) {
+      this.call = call;
+      this.callee = callee;
+      this.calleeOps = calleeOps;
+      this.checkInstance = checkInstance;
+      this.nArgs = callee.nArgsWithThis();
+      this.nVars = Math.max(nArgs, maxVar(calleeOps) + 1);
+      this.endsWithRtrn = "rtrn".equals(calleeOps.get(calleeOps.size() - 1).opcode());
+    }
+
+    int size() {
+      return prologueSize() + calleeOps.size() - (endsWithRtrn ? 1 : 0);
+    }
+
+    private int prologueSize() {
+      // the check is pvar, type and goif; then the fallback pushes the args back, calls and jumps past the body
+      return nArgs + (checkInstance ? 3 + nArgs + 2 : 0);
+    }
+
+    /**
+     * Adds this site's ops to the given list, and the callee's labels (renamed) to the given labels.
+     *
+     * @param start the index of this site's first op
+     * @param end the index of the op right after this site
+     * @param firstVar the caller var that the callee's var 0 maps to
+     * @param siteId a number that's unique to this site within its caller, for renaming labels
+     */
+    void emit(List<OpInfo> out, Map<String,Integer> labels, int start, int end, int firstVar, int siteId) {
+      EffesFunctionId calleeId = callee.id();
+      // args are pushed in order, so the last one is on top
+      for (int arg = nArgs - 1; arg >= 0; --arg) {
+        out.add(prologueOp("svar", Integer.toString(firstVar + arg)));
+      }
+      if (checkInstance) {
+        int afterCheck = start + prologueSize();
+        out.add(prologueOp("pvar", Integer.toString(firstVar)));
+        out.add(prologueOp("type", calleeId.getScope().toString()));
+        out.add(prologueOp("goif", Integer.toString(afterCheck)));
+        for (int arg = 0; arg < nArgs; ++arg) {
+          out.add(prologueOp("pvar", Integer.toString(firstVar + arg)));
+        }
+        out.add(call);
+        out.add(prologueOp("goto", Integer.toString(end)));
+      }
+      int bodyStart = start + prologueSize();
+      int[] bodyIdx = new int[calleeOps.size()];
+      for (int j = 0; j < calleeOps.size(); ++j) {
+        bodyIdx[j] = bodyStart + j;
+      }
+      if (endsWithRtrn) {
+        bodyIdx[calleeOps.size() - 1] = end;
+      }
+      originalLabels.get(callee).forEach((label, idx) -> labels.put(renameLabel(label, siteId), idx < calleeOps.size() ? bodyIdx[idx] : end));
+      for (int j = 0; j < calleeOps.size(); ++j) {
+        OpInfo op = calleeOps.get(j);
+        List<String> args = op.arguments();
+        String opcode = op.opcode();
+        switch (opcode) {
+          case "rtrn":
+            if (j == calleeOps.size() - 1) {
+              continue; // just fall through to whatever's after the call
+            }
+            opcode = "goto";
+            args = Arrays.asList(Integer.toString(end));
+            break;
+          case "pvar":
+          case "svar":
+          case "Svar":
+            args = Arrays.asList(Integer.toString(firstVar + Integer.parseInt(args.get(0))));
+            break;
+          case "goto":
+          case "goif":
+          case "gofi":
+            args = Arrays.asList(relinkInlined(args.get(0), bodyIdx, siteId));
+            break;
+          case "type":
+          case "typp":
+          case "typf":
+            if (args.get(0).indexOf(':') >= 0) { // otherwise, it's a native type
+              args = withQualifiedScope(args, op.module());
+            }
+            break;
+          case "pfld":
+          case "Pfld":
+          case "sfld":
+          case "call":
+            args = withQualifiedScope(args, op.module());
+            break;
+          default:
+            break;
+        }
+        out.add(new OpInfo(
+          call.module(), opcode, args, op.lineNumber(), op.sourceLineNumberIndexedAt0() + 1, op.sourcePositionInLine(), calleeId));
+      }
+    }
+
+    private OpInfo prologueOp(String opcode, String arg) {
+      // These stand in for the call itself, so they're not marked as inlined
+      return new OpInfo(call.module(), opcode, Arrays.asList(arg), call.lineNumber(), call.sourceLineNumberIndexedAt0() + 1, call.sourcePositionInLine());
+    }
+
+    private String relinkInlined(String dest, int[] bodyIdx, int siteId) {
+      try {
+        return Integer.toString(bodyIdx[Integer.parseInt(dest)]);
+      } catch (NumberFormatException e) {
+        return renameLabel(dest, siteId);
+      }
+    }
+
+    private String renameLabel(String label, int siteId) {
+      return String.format("%s@%s#%d", label, callee.id(), siteId);
+    }
+  }
+
+  private static String relink(String dest, int[] newIdx) {
+    try {
+      return Integer.toString(newIdx[Integer.parseInt(dest)]);
+    } catch (NumberFormatException e) {
+      return dest; // labels are left as they are
+    }
+  }
+
+  private static List<String> withQualifiedScope(List<String> args, EffesModule.Id module) {
+    List<String> result = new ArrayList<>(args);
+    result.set(0, EfctScope.parse(args.get(0), module).toString());
+    return result;
+  }
+
+  private static OpInfo withArg(OpInfo info, int idx, String arg) {
+    List<String> args = new ArrayList<>(info.arguments());
+    args.set(idx, arg);
+    return new OpInfo(
+      info.module(), info.opcode(), args, info.lineNumber(), info.sourceLineNumberIndexedAt0() + 1, info.sourcePositionInLine(), info.inlinedFrom());
+  }
+
+  private static int maxVar(List<OpInfo> ops) {
+    return ops.stream()
+      .filter(op -> "pvar".equals(op.opcode()) || "svar".equals(op.opcode()) || "Svar".equals(op.opcode()))
+      .mapToInt(op -> Integer.parseInt(op.arguments().get(0)))
+      .max()
+      .orElse(-1);
+  }
+}
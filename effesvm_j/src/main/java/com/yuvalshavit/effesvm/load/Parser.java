@@ -7,6 +7,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import com.yuvalshavit.effesvm.runtime.EffesType;
 
@@ -15,6 +18,26 @@ public class Parser {
 
   private Parser() {}
 
+  /**
+   * Outlines each module, in parallel on the common fork-join pool. If any fail, this throws the failure of the first such module (by name), so that
+   * the error doesn't depend on which module happened to finish first.
+   */
+  public static Map<EffesModule.Id, OutlinedModule> parseAll(Map<EffesModule.Id, List<String>> modules) {
+    Map<EffesModule.Id, OutlinedModule> outline = new ConcurrentHashMap<>(modules.size());
+    NavigableMap<EffesModule.Id, RuntimeException> failures = new ConcurrentSkipListMap<>();
+    modules.entrySet().parallelStream().forEach(e -> {
+      try {
+        outline.put(e.getKey(), parse(e.getKey(), e.getValue()));
+      } catch (RuntimeException ex) {
+        failures.put(e.getKey(), ex);
+      }
+    });
+    if (!failures.isEmpty()) {
+      throw failures.firstEntry().getValue();
+    }
+    return new HashMap<>(outline);
+  }
+
   public static OutlinedModule parse(EffesModule.Id module, List<String> lines) {
     if (lines.isEmpty()) {
       new OutlinedModule(Collections.emptyMap(), Collections.emptyMap());
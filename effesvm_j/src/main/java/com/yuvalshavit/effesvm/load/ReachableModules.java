@@ -0,0 +1,74 @@
+package com.yuvalshavit.effesvm.load;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Outlines only the modules that a program can reach from its main module, reading each one's efct the first time something refers to it.
+ *
+ * A module refers to another through the scope specifiers in its ops: the module in a <code>call</code>'s scope, and in the type name of a
+ * <code>type</code>, <code>typp</code>, <code>typf</code>, <code>pfld</code>, <code>Pfld</code> or <code>sfld</code>. Modules are found a level at a
+ * time, and each level is outlined in parallel via {@link Parser#parseAll}. A referenced module that doesn't exist is skipped here, so that linking
+ * reports it as the missing function or type it is.
+ */
+public class ReachableModules {
+  private static final Set<String> SCOPED_OPCODES = new HashSet<>(Arrays.asList("call", "type", "typp", "typf", "pfld", "Pfld", "sfld"));
+
+  private ReachableModules() {}
+
+  /**
+   * Outlines the main module, and every module it transitively refers to.
+   *
+   * @param source each module's efct lines, or null if there's no such module
+   */
+  public static Map<EffesModule.Id, OutlinedModule> outline(EffesModule.Id main, Function<EffesModule.Id, List<String>> source) {
+    Map<EffesModule.Id, OutlinedModule> outline = new HashMap<>();
+    Set<EffesModule.Id> seen = new HashSet<>();
+    seen.add(main);
+    Set<EffesModule.Id> level = Collections.singleton(main);
+    while (!level.isEmpty()) {
+      Map<EffesModule.Id, List<String>> inputFiles = new HashMap<>(level.size());
+      for (EffesModule.Id id : level) {
+        List<String> lines = source.apply(id);
+        if (lines != null) {
+          inputFiles.put(id, lines);
+        } else if (id.equals(main)) {
+          throw new IllegalArgumentException(main + " not found");
+        }
+      }
+      Map<EffesModule.Id, OutlinedModule> outlined = Parser.parseAll(inputFiles);
+      outline.putAll(outlined);
+      Set<EffesModule.Id> nextLevel = new TreeSet<>();
+      outlined.forEach((id, module) -> references(id, module).stream().filter(seen::add).forEach(nextLevel::add));
+      level = nextLevel;
+    }
+    return outline;
+  }
+
+  /**
+   * The modules that the given one refers to, possibly including itself.
+   */
+  static Set<EffesModule.Id> references(EffesModule.Id moduleId, OutlinedModule module) {
+    Set<EffesModule.Id> references = new HashSet<>();
+    module.getFunctions().forEach((functionId, function) -> {
+      references.add(functionId.getScope().getModuleId());
+      for (EfctLine line : function.getLines()) {
+        int opcodeIdx = EffesFunctionParser.sourceDebugInfoPattern.matcher(line.get(0, "first word")).matches() ? 1 : 0;
+        if (line.nTokens() > opcodeIdx + 1 && SCOPED_OPCODES.contains(line.get(opcodeIdx, "opcode"))) {
+          String scope = line.get(opcodeIdx + 1, "scope");
+          if (scope.indexOf(':') >= 0) { // the type ops can also take native types, which have no scope
+            references.add(EfctScope.parse(scope, moduleId).getModuleId());
+          }
+        }
+      }
+    });
+    return references;
+  }
+}
@@ -0,0 +1,302 @@
+package com.yuvalshavit.effesvm.load;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.runtime.EffesType;
+
+/**
+ * Checks each function's stack usage at load time, by following every control-flow path through its ops. It works out the local stack depth at each op,
+ * and checks that:
+ *
+ * <ul>
+ *   <li>no op pops more than is on its frame's local stack</li>
+ *   <li>every path to an op reaches it with the same stack depth</li>
+ *   <li>every variable index is within the function's args and local vars</li>
+ *   <li>every <code>rtrn</code> sees exactly one value if the function has a return value, or none if it doesn't</li>
+ *   <li>no path falls off the end of the function</li>
+ * </ul>
+ *
+ * Any of those is a load error. Separately, a function can be valid but not provable: it might read a variable that isn't set on every path to that
+ * read, or use a <code>typf</code> whose result isn't immediately branched on. Those functions just aren't marked as verified, and keep running with
+ * all of the usual runtime checks. Everything else is marked via {@link EffesFunction#setVerified(int)}.
+ */
+public class StackVerifier {
+  private static final Map<String,Effect> effects = createEffects();
+
+  private StackVerifier() {}
+
+  public static void verifyAll(Map<EffesModule.Id,EffesModule> modules) {
+    Function<EffesModule.Id,EffesModule> moduleLookup = EffesModule.lookup(modules);
+    modules.values().forEach(m -> m.functions().forEach(f -> {
+      int maxDepth = verify(f, moduleLookup);
+      if (maxDepth >= 0) {
+        f.setVerified(maxDepth);
+      }
+    }));
+  }
+
+  /**
+   * Verifies a single function.
+   *
+   * @return the function's max local stack depth, or -1 if it's valid but couldn't be proven
+   * @throws EffesLoadException if the function is invalid
+   */
+  static int verify(EffesFunction function, Function<EffesModule.Id,EffesModule> modules) {
+    return new Run(function, modules).verify();
+  }
+
+  private static class Run {
+    private final EffesFunction function;
+    private final Function<EffesModule.Id,EffesModule> modules;
+    private final int nOps;
+    private final int nArgs;
+    private final int nVars;
+    private final int[] depths;
+    private final BitSet[] assigned;
+    private final Map<String,Integer> labels;
+    private final Deque<Integer> worklist = new ArrayDeque<>();
+    private int maxDepth;
+    private boolean provable = true;
+
+    Run(EffesFunction function, Function<EffesModule.Id,EffesModule> modules) {
+      this.function = function;
+      this.modules = modules;
+      this.nOps = function.nOps();
+      this.nArgs = function.nArgsWithThis();
+      this.nVars = nArgs + function.nVars();
+      this.depths = new int[nOps];
+      this.assigned = new BitSet[nOps];
+      this.labels = function.labels();
+      Arrays.fill(depths, -1);
+    }
+
+    int verify() {
+      if (nOps == 0) {
+        throw new EffesLoadException(function + " has no ops");
+      }
+      BitSet args = new BitSet(nVars);
+      args.set(0, nArgs);
+      flowTo(-1, 0, 0, args);
+      while (!worklist.isEmpty()) {
+        step(worklist.pop());
+      }
+      return provable ? maxDepth : -1;
+    }
+
+    private void step(int idx) {
+      OpInfo info = function.opAt(idx).info();
+      int depth = depths[idx];
+      BitSet vars = (BitSet) assigned[idx].clone();
+      List<String> args = info.arguments();
+      switch (info.opcode()) {
+        case "goto":
+          flowTo(idx, jumpTarget(idx, args.get(0)), depth, vars);
+          return;
+        case "goif":
+        case "gofi":
+          pop(idx, depth, 1);
+          flowTo(idx, jumpTarget(idx, args.get(0)), depth - 1, vars);
+          flowTo(idx, idx + 1, depth - 1, vars);
+          return;
+        case "rtrn": {
+          int expected = function.hasRv() ? 1 : 0;
+          if (depth != expected) {
+            throw error(idx, String.format("rtrn with %d value(s) on the local stack, but expected %d", depth, expected));
+          }
+          return;
+        }
+        case "fail":
+          return;
+        case "typf":
+          typf(idx, depth, vars);
+          return;
+        case "pvar":
+          if (!vars.get(var(idx, args.get(0)))) {
+            provable = false; // might still be fine at runtime, if the unset path is never taken
+          }
+          flowTo(idx, idx + 1, push(idx, depth, 1), vars);
+          return;
+        case "svar":
+          vars.set(var(idx, args.get(0)));
+          flowTo(idx, idx + 1, pop(idx, depth, 1), vars);
+          return;
+        case "Svar":
+          vars.set(var(idx, args.get(0)));
+          pop(idx, depth, 1);
+          flowTo(idx, idx + 1, depth, vars);
+          return;
+        case "call":
+          flowTo(idx, idx + 1, call(idx, depth, info), vars);
+          return;
+        default:
+          Effect effect = effects.get(info.opcode());
+          if (effect == null) {
+            provable = false;
+            return;
+          }
+          int popped = pop(idx, depth, effect.pops);
+          flowTo(idx, idx + 1, push(idx, popped, effect.pushes), vars);
+      }
+    }
+
+    /**
+     * <code>typf</code> pushes its item back only if it matched, and then pushes whether it matched. So the stack depth is only known once that
+     * boolean is popped, which we can follow if the very next op is a conditional jump.
+     */
+    private void typf(int idx, int depth, BitSet vars) {
+      int popped = pop(idx, depth, 1);
+      push(idx, popped, 2);
+      OpInfo next = idx + 1 < nOps ? function.opAt(idx + 1).info() : null;
+      if (next == null || !("goif".equals(next.opcode()) || "gofi".equals(next.opcode()))) {
+        provable = false;
+        return;
+      }
+      int target = jumpTarget(idx + 1, next.arguments().get(0));
+      boolean jumpIfMatched = "goif".equals(next.opcode());
+      flowTo(idx + 1, target, jumpIfMatched ? depth : popped, vars);
+      flowTo(idx + 1, idx + 2, jumpIfMatched ? popped : depth, vars);
+    }
+
+    private int call(int idx, int depth, OpInfo info) {
+      EffesFunctionId functionId = EffesFunctionId.parse(info.arguments().get(0), info.arguments().get(1), info.module());
+      if (functionId.isConstructor()) {
+        EffesType type = functionId.getScope().mapRequiringInstanceType((m, t) -> modules.apply(m).getType(t));
+        return push(idx, pop(idx, depth, type.nArgs()), 1);
+      }
+      EffesFunction callee = modules.apply(functionId.getScope().getModuleId()).getFunction(functionId);
+      return push(idx, pop(idx, depth, callee.nArgsWithThis()), callee.hasRv() ? 1 : 0);
+    }
+
+    private void flowTo(int from, int to, int depth, BitSet vars) {
+      if (to >= nOps) {
+        throw error(from, "falls off the end of the function");
+      }
+      if (depths[to] < 0) {
+        depths[to] = depth;
+        assigned[to] = vars;
+        worklist.push(to);
+      } else if (depths[to] != depth) {
+        throw error(to, String.format("reached with local stack depths of both %d and %d", depths[to], depth));
+      } else {
+        BitSet merged = (BitSet) assigned[to].clone();
+        merged.and(vars);
+        if (!merged.equals(assigned[to])) {
+          assigned[to] = merged;
+          worklist.push(to);
+        }
+      }
+    }
+
+    private int pop(int idx, int depth, int n) {
+      if (depth < n) {
+        throw error(idx, String.format("pops %d value(s), but the local stack only has %d", n, depth));
+      }
+      return depth - n;
+    }
+
+    private int push(int idx, int depth, int n) {
+      int result = depth + n;
+      maxDepth = Math.max(maxDepth, result);
+      return result;
+    }
+
+    private int var(int idx, String arg) {
+      int var = Integer.parseInt(arg);
+      if (var < 0 || var >= nVars) {
+        throw error(idx, String.format("variable %d is out of range (function has %d)", var, nVars));
+      }
+      return var;
+    }
+
+    private int jumpTarget(int idx, String dest) {
+      try {
+        return Integer.parseInt(dest);
+      } catch (NumberFormatException e) {
+        Integer target = labels.get(dest);
+        if (target == null) {
+          throw error(idx, "no such label: " + dest);
+        }
+        return target;
+      }
+    }
+
+    private EffesLoadException error(int idx, String message) {
+      return new EffesLoadException(String.format("%s, op #%d (%s): %s", function, idx, function.opAt(idx).info(), message));
+    }
+  }
+
+  private static Map<String,Effect> createEffects() {
+    Map<String,Effect> map = new HashMap<>();
+    // ops that only peek count as popping their item and pushing it back
+    map.put("arry", new Effect(1, 1));
+    map.put("int", new Effect(0, 1));
+    map.put("pop", new Effect(1, 0));
+    map.put("copy", new Effect(1, 2));
+    map.put("type", new Effect(1, 1));
+    map.put("typp", new Effect(1, 2));
+    map.put("pfld", new Effect(1, 1));
+    map.put("Pfld", new Effect(1, 2));
+    map.put("sfld", new Effect(2, 0));
+    map.put("bool", new Effect(0, 1));
+    map.put("str", new Effect(0, 1));
+    map.put("sbld", new Effect(0, 1));
+    map.put("debug-print", new Effect(0, 0));
+    map.put("debug-print-pretty", new Effect(0, 0));
+    map.put("call_Array:store", new Effect(3, 0));
+    map.put("call_Array:get", new Effect(2, 1));
+    map.put("call_Array:len", new Effect(1, 1));
+    map.put("call_native:toString", new Effect(1, 1));
+    map.put("call_native:toStringPretty", new Effect(1, 1));
+    map.put("call_Integer:parse", new Effect(1, 1));
+    map.put("call_Integer:add", new Effect(2, 1));
+    map.put("call_Integer:sub", new Effect(2, 1));
+    map.put("call_Integer:mult", new Effect(2, 1));
+    map.put("call_Integer:div", new Effect(2, 1));
+    map.put("call_Integer:lt", new Effect(2, 1));
+    map.put("call_Integer:le", new Effect(2, 1));
+    map.put("call_Integer:eq", new Effect(2, 1));
+    map.put("call_Integer:ne", new Effect(2, 1));
+    map.put("call_Integer:ge", new Effect(2, 1));
+    map.put("call_Integer:gt", new Effect(2, 1));
+    map.put("call_Boolean:negate", new Effect(1, 1));
+    map.put("call_Boolean:and", new Effect(2, 1));
+    map.put("call_Boolean:or", new Effect(2, 1));
+    map.put("call_Boolean:xor", new Effect(2, 1));
+    map.put("call_Match:igroup", new Effect(2, 1));
+    map.put("call_Match:ngroup", new Effect(2, 1));
+    map.put("call_Match:groupCount", new Effect(1, 1));
+    map.put("call_Match:tail", new Effect(1, 1));
+    map.put("call_String:len", new Effect(1, 1));
+    map.put("call_String:regex", new Effect(2, 1));
+    map.put("call_String:sout", new Effect(1, 0));
+    map.put("call_String:concat", new Effect(2, 1));
+    map.put("call_Stream:stdout", new Effect(0, 1));
+    map.put("call_Stream:stdin", new Effect(0, 1));
+    map.put("call_Stream:writeFile", new Effect(1, 1));
+    map.put("call_Stream:writeText", new Effect(2, 0));
+    map.put("call_Stream:readFile", new Effect(1, 1));
+    map.put("call_Stream:readLine", new Effect(1, 1));
+    map.put("call_Stream:stdinLine", new Effect(0, 1));
+    map.put("call_StringBuilder:add", new Effect(2, 0));
+    map.put("call_StringBuilder:get", new Effect(1, 1));
+    return map;
+  }
+
+  private static class Effect {
+    final int pops;
+    final int pushes;
+
+    Effect(int pops, int pushes) {
+      this.pops = pops;
+      this.pushes = pushes;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.yuvalshavit.effesvm.load;
+
+import java.util.Map;
+import java.util.function.Function;
+
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.ops.TailCallOperation;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EffesType;
+
+/**
+ * A link-time pass that finds calls in tail position, and replaces each with a {@link TailCallOperation} that reuses its caller's frame. That lets
+ * tail-recursive functions run in constant stack.
+ *
+ * A call is in tail position if the ops after it reach a <code>rtrn</code> through nothing but <code>goto</code>s, and the callee agrees with the
+ * caller on whether there's a return value. The caller must also have passed the {@link StackVerifier}: that proves the call's args are all that's
+ * on its local stack, which is what lets the callee take over the frame.
+ *
+ * Elided frames don't show up in stack traces; each frame instead counts how many frames it replaced (see
+ * {@link com.yuvalshavit.effesvm.runtime.EffesState.FrameInfo#tailCalls()}).
+ */
+public class TailCallPass {
+  public static final String PROPERTY = "tailcalls";
+
+  private TailCallPass() {}
+
+  /**
+   * Whether tail calls are on, per the {@value #PROPERTY} system property. They're on unless that property is <code>false</code>.
+   */
+  public static boolean enabledBySystemProperties() {
+    return Boolean.parseBoolean(System.getProperty(PROPERTY, "true"));
+  }
+
+  /**
+   * Finds the tail calls in every function in the given modules. This must happen after the {@link StackVerifier}, and before the modules are decoded
+   * or run.
+   *
+   * @return the number of tail calls found
+   */
+  public static int apply(Map<EffesModule.Id,EffesModule> modules) {
+    Function<EffesModule.Id,EffesModule> moduleLookup = EffesModule.lookup(modules);
+    return modules.values().stream()
+      .flatMap(m -> m.functions().stream())
+      .mapToInt(f -> apply(f, moduleLookup))
+      .sum();
+  }
+
+  static int apply(EffesFunction function, Function<EffesModule.Id,EffesModule> modules) {
+    if (!function.isVerified()) {
+      return 0;
+    }
+    int nOps = function.nOps();
+    Map<String,Integer> labels = function.labels();
+    int nTailCalls = 0;
+    for (int i = 0; i < nOps; ++i) {
+      Operation op = function.opAt(i);
+      OpInfo info = op.info();
+      if (!"call".equals(info.opcode()) || op instanceof TailCallOperation || !returnsRightAfter(function, i, labels)) {
+        continue;
+      }
+      EffesFunctionId calleeId = EffesFunctionId.parse(info.arguments().get(0), info.arguments().get(1), info.module());
+      if (calleeId.isConstructor()) {
+        continue;
+      }
+      EffesFunction callee = modules.apply(calleeId.getScope().getModuleId()).getFunction(calleeId);
+      if (callee.hasRv() != function.hasRv()) {
+        continue;
+      }
+      EffesType instanceType = calleeId.getScope().map(m -> null, (m, t) -> modules.apply(m).getType(t));
+      function.replaceOp(i, new TailCallOperation(op, EffesOpsImpl.functionCall(callee, instanceType, true)));
+      ++nTailCalls;
+    }
+    return nTailCalls;
+  }
+
+  private static boolean returnsRightAfter(EffesFunction function, int callIdx, Map<String,Integer> labels) {
+    int nOps = function.nOps();
+    int idx = callIdx + 1;
+    for (int hops = 0; hops < nOps && idx < nOps; ++hops) { // the hop limit guards against goto loops
+      OpInfo info = function.opAt(idx).info();
+      switch (info.opcode()) {
+        case "rtrn":
+          return true;
+        case "goto":
+          String dest = info.arguments().get(0);
+          try {
+            idx = Integer.parseInt(dest);
+          } catch (NumberFormatException e) {
+            idx = labels.get(dest); // the op was already linked, so the label must exist
+          }
+          break;
+        default:
+          return false;
+      }
+    }
+    return false;
+  }
+}
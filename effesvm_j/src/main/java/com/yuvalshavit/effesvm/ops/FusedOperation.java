@@ -0,0 +1,56 @@
+package com.yuvalshavit.effesvm.ops;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.PcMove;
+
+/**
+ * A single operation that does the work of a short sequence of ops (a "superinstruction"). It takes the place of the sequence's first op, and reports
+ * that op's {@link OpInfo}. The rest of the sequence stays in the function as-is, so op indices and jump targets don't change, and a jump into the
+ * middle of the sequence still lands on the original op.
+ */
+public class FusedOperation implements Operation {
+  private final List<Operation> components;
+  private final Operation.Body body;
+
+  public FusedOperation(List<Operation> components, Operation.Body body) {
+    if (components.size() < 2) {
+      throw new IllegalArgumentException("need at least two ops to fuse: " + components);
+    }
+    this.components = Collections.unmodifiableList(components);
+    this.body = body;
+  }
+
+  /**
+   * The original ops that this operation replaces, starting with the one whose index it occupies.
+   */
+  public List<Operation> components() {
+    return components;
+  }
+
+  /**
+   * Returns the original op that the given op stands in for, if it's a fused op; otherwise, returns the op itself.
+   */
+  public static Operation unfused(Operation op) {
+    return (op instanceof FusedOperation)
+      ? ((FusedOperation) op).components.get(0)
+      : op;
+  }
+
+  @Override
+  public OpInfo info() {
+    return components.get(0).info();
+  }
+
+  @Override
+  public PcMove apply(EffesState state) {
+    return body.apply(state);
+  }
+
+  @Override
+  public String toString() {
+    return info().toString();
+  }
+}
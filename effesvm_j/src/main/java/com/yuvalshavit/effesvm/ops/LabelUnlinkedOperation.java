@@ -1,16 +1,16 @@
 package com.yuvalshavit.effesvm.ops;
 
-import java.util.function.Supplier;
-
 import com.yuvalshavit.effesvm.load.LinkContext;
 
+/**
+ * A <code>labl</code>. Labels aren't ops: the function parser takes them out of the op stream, and into the function's side table of labels (see
+ * {@link com.yuvalshavit.effesvm.load.EffesFunction#labels()}). So, this never gets linked.
+ */
 public class LabelUnlinkedOperation implements UnlinkedOperation {
   private final String label;
-  private final Supplier<Operation> body;
 
-  public LabelUnlinkedOperation(String label, Supplier<Operation> body) {
+  public LabelUnlinkedOperation(String label) {
     this.label = label;
-    this.body = body;
   }
 
   public String label() {
@@ -24,7 +24,7 @@ public class LabelUnlinkedOperation implements UnlinkedOperation {
 
   @Override
   public Operation apply(LinkContext linkContext) {
-    return body.get();
+    throw new IllegalStateException("labels aren't linked: " + label);
   }
 
   public static class Body {
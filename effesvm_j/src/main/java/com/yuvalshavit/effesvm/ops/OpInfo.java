@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
 import com.yuvalshavit.effesvm.load.EffesModule;
 import com.yuvalshavit.effesvm.util.StringEscaper;
 
@@ -16,14 +17,31 @@ public class OpInfo implements Serializable {
   private final int efctLineNumber;
   private final int sourceLineNumber;
   private final int sourcePositionInLine;
+  private final EffesFunctionId inlinedFrom;
 
   public OpInfo(EffesModule.Id module, String opcode, List<String> arguments, int efctLineNumber, int sourceLineNumber, int sourcePositionInLine) {
+    this(module, opcode, arguments, efctLineNumber, sourceLineNumber, sourcePositionInLine, null);
+  }
+
+  /**
+   * @param inlinedFrom the function this op was inlined from, or null if it's in its original function
+   */
+  public OpInfo(
+    EffesModule.Id module,
+    String opcode,
+    List<String> arguments,
+    int efctLineNumber,
+    int sourceLineNumber,
+    int sourcePositionInLine,
+    EffesFunctionId inlinedFrom)
+  {
     this.module = module;
     this.opcode = opcode;
     this.arguments = Collections.unmodifiableList(new ArrayList<>(arguments));
     this.efctLineNumber = efctLineNumber;
     this.sourceLineNumber = sourceLineNumber;
     this.sourcePositionInLine = sourcePositionInLine;
+    this.inlinedFrom = inlinedFrom;
   }
 
   public EffesModule.Id module() {
@@ -50,6 +68,13 @@ public class OpInfo implements Serializable {
     return sourcePositionInLine;
   }
 
+  /**
+   * The function this op was inlined from, or null if it wasn't inlined. If it was, its line numbers are from that function.
+   */
+  public EffesFunctionId inlinedFrom() {
+    return inlinedFrom;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -58,6 +83,7 @@ public class OpInfo implements Serializable {
       sb.append('(').append(sourceLineNumber).append(':').append(sourcePositionInLine).append(") ");
     }
     sb.append(opcode);
-    return arguments.stream().map(StringEscaper::escape).collect(Collectors.joining(" ", sb, ""));
+    String suffix = inlinedFrom == null ? "" : (" (inlined from " + inlinedFrom + ")");
+    return arguments.stream().map(StringEscaper::escape).collect(Collectors.joining(" ", sb, suffix));
   }
 }
@@ -101,10 +101,23 @@ public class OperationFactories {
         throw new IllegalArgumentException(String.format("%s requires exactly %d string%s", opName, nStringArgs, nStringArgs == 1 ? "" : "s"));
       }
 
+      // efctLine is 0-indexed, we want 1-indexed for easier reading
+      return apply(new OpInfo(module, opName, strings, efctLine + 1, sourceLine, sourcePosInLIne));
+    }
+
+    /**
+     * Builds an op from an existing description, which must be for this builder's opcode. This is for link-time passes that rewrite ops.
+     */
+    public UnlinkedOperation apply(OpInfo opInfo) {
+      if (!opName.equals(opInfo.opcode())) {
+        throw new IllegalArgumentException(String.format("%s can't build %s", opName, opInfo));
+      }
+      List<String> strings = opInfo.arguments();
+      if (strings.size() != nStringArgs) {
+        throw new IllegalArgumentException(String.format("%s requires exactly %d string%s", opName, nStringArgs, nStringArgs == 1 ? "" : "s"));
+      }
       Object[] reflectionArgs = new Object[nStringArgs + 1];
       Iterator<String> stringsIter = strings.iterator();
-      // efctLine is 0-indexed, we want 1-indexed for easier reading
-      OpInfo opInfo = new OpInfo(module, opName, strings, efctLine + 1, sourceLine, sourcePosInLIne);
       UnlikedOperationOpBuilder opBuilder = new UnlikedOperationOpBuilder(opInfo);
       reflectionArgs[0] = opBuilder;
       for (int i = 0; i < nStringArgs; ++i) {
@@ -159,8 +172,7 @@ public class OperationFactories {
 
     @Override
     public void build(LabelUnlinkedOperation.Body body) {
-      String label = body.get();
-      set(new LabelUnlinkedOperation(label, () -> new Op(Operation.withIncementingPc(s -> s.seeLabel(label)), opInfo)));
+      set(new LabelUnlinkedOperation(body.get()));
     }
 
     @Override
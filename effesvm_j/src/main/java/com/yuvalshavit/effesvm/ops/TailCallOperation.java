@@ -0,0 +1,37 @@
+package com.yuvalshavit.effesvm.ops;
+
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.PcMove;
+
+/**
+ * A <code>call</code> in tail position, which reuses its caller's frame rather than opening a new one. It takes the place of the original call op, and
+ * reports that op's {@link OpInfo}.
+ */
+public class TailCallOperation implements Operation {
+  private final Operation original;
+  private final Operation.Body body;
+
+  public TailCallOperation(Operation original, Operation.Body body) {
+    this.original = original;
+    this.body = body;
+  }
+
+  public Operation original() {
+    return original;
+  }
+
+  @Override
+  public OpInfo info() {
+    return original.info();
+  }
+
+  @Override
+  public PcMove apply(EffesState state) {
+    return body.apply(state);
+  }
+
+  @Override
+  public String toString() {
+    return info().toString();
+  }
+}
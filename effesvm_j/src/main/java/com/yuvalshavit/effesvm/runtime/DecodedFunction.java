@@ -0,0 +1,253 @@
+package com.yuvalshavit.effesvm.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.load.EffesLinkException;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.ops.FusedOperation;
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.ops.TailCallOperation;
+import com.yuvalshavit.effesvm.runtime.jit.CompiledFunction;
+
+/**
+ * A function's ops, lowered into a dense opcode stream for {@link SwitchInterpreter}.
+ *
+ * Each op takes two ints in {@link #code}: the opcode, and then a single operand. Depending on the opcode, the operand is either an immediate value (a
+ * variable index or a jump target) or an index into {@link #constants}. Op indexes are unchanged by decoding, so a decoded function's pc means the same
+ * thing as a {@link ProgramCounter} op index.
+ *
+ * Any op that doesn't have a dedicated opcode is decoded as {@link #GENERIC}, whose constant is the linked {@link Operation} itself.
+ */
+public class DecodedFunction {
+  public static final int GENERIC = 0;
+  public static final int PUSH_CONST = 1;
+  public static final int PUSH_INT = 2;
+  public static final int POP = 3;
+  public static final int COPY = 4;
+  public static final int PVAR = 5;
+  public static final int SVAR = 6;
+  public static final int SVAR_COPY = 7;
+  public static final int GOTO = 8;
+  public static final int GOIF = 9;
+  public static final int GOFI = 10;
+  public static final int CALL = 11;
+  public static final int CALL_INSTANCE = 12;
+  public static final int RTRN = 13;
+  public static final int IADD = 14;
+  public static final int ISUB = 15;
+  public static final int IMUL = 16;
+  public static final int IDIV = 17;
+  public static final int ILT = 18;
+  public static final int ILE = 19;
+  public static final int IEQ = 20;
+  public static final int INE = 21;
+  public static final int IGE = 22;
+  public static final int IGT = 23;
+  /** A {@link #CALL} whose callee has been compiled by the JIT tier. Call sites are patched to this the first time they see the compiled code. */
+  public static final int CALL_COMPILED = 24;
+  /** A {@link #CALL_INSTANCE} whose callee has been compiled by the JIT tier. */
+  public static final int CALL_INSTANCE_COMPILED = 25;
+  /** A {@link #CALL} in tail position, which replaces the caller's frame. See {@link com.yuvalshavit.effesvm.load.TailCallPass TailCallPass}. */
+  public static final int TAIL_CALL = 26;
+  /** A {@link #CALL_INSTANCE} in tail position. */
+  public static final int TAIL_CALL_INSTANCE = 27;
+
+  private static final Map<String,Integer> simpleOpcodes = createSimpleOpcodes();
+
+  final int[] code;
+  final Object[] constants;
+  private int invocations;
+  private CompiledFunction compiled;
+  private boolean uncompilable;
+
+  private DecodedFunction(int[] code, Object[] constants) {
+    this.code = code;
+    this.constants = constants;
+  }
+
+  public int nOps() {
+    return code.length / 2;
+  }
+
+  public int opcodeAt(int op) {
+    return code[op * 2];
+  }
+
+  public int operandAt(int op) {
+    return code[op * 2 + 1];
+  }
+
+  public int nConstants() {
+    return constants.length;
+  }
+
+  public Object constantAt(int idx) {
+    return constants[idx];
+  }
+
+  /**
+   * Bumps this function's invocation count, and returns the new count. Only the JIT tier keeps track of this.
+   */
+  public int countInvocation() {
+    return ++invocations;
+  }
+
+  public CompiledFunction compiled() {
+    return compiled;
+  }
+
+  public void setCompiled(CompiledFunction compiled) {
+    if (this.compiled != null) {
+      throw new IllegalStateException("already compiled");
+    }
+    this.compiled = compiled;
+  }
+
+  public boolean isUncompilable() {
+    return uncompilable;
+  }
+
+  public void markUncompilable() {
+    this.uncompilable = true;
+  }
+
+  /**
+   * Decodes every function in the given modules, and attaches the result to each one via {@link EffesFunction#setDecoded(DecodedFunction)}.
+   */
+  public static void decodeAll(Map<EffesModule.Id,EffesModule> modules) {
+    Function<EffesModule.Id,EffesModule> moduleLookup = EffesModule.lookup(modules);
+    modules.values().forEach(m -> m.functions().forEach(f -> f.setDecoded(decode(f, moduleLookup))));
+  }
+
+  static DecodedFunction decode(EffesFunction function, Function<EffesModule.Id,EffesModule> modules) {
+    int nOps = function.nOps();
+    Map<String,Integer> labels = function.labels();
+    int[] code = new int[nOps * 2];
+    List<Object> constants = new ArrayList<>();
+    for (int i = 0; i < nOps; ++i) {
+      Operation op = FusedOperation.unfused(function.opAt(i)); // decoding works from the original ops
+      OpInfo info = op.info();
+      List<String> args = info.arguments();
+      int opcode;
+      int operand = 0;
+      switch (info.opcode()) {
+        case "int":
+          opcode = PUSH_INT;
+          operand = Integer.parseInt(args.get(0));
+          break;
+        case "bool":
+          opcode = PUSH_CONST;
+          operand = addConstant(constants, EffesNativeObject.forBoolean("True".equals(args.get(0))));
+          break;
+        case "str":
+          opcode = PUSH_CONST;
+          operand = addConstant(constants, EffesNativeObject.forString(args.get(0)));
+          break;
+        case "pvar":
+          opcode = PVAR;
+          operand = Integer.parseInt(args.get(0));
+          break;
+        case "svar":
+          opcode = SVAR;
+          operand = Integer.parseInt(args.get(0));
+          break;
+        case "Svar":
+          opcode = SVAR_COPY;
+          operand = Integer.parseInt(args.get(0));
+          break;
+        case "goto":
+          opcode = GOTO;
+          operand = jumpTarget(args.get(0), labels, nOps);
+          break;
+        case "goif":
+          opcode = GOIF;
+          operand = jumpTarget(args.get(0), labels, nOps);
+          break;
+        case "gofi":
+          opcode = GOFI;
+          operand = jumpTarget(args.get(0), labels, nOps);
+          break;
+        case "call":
+          EffesFunctionId functionId = EffesFunctionId.parse(args.get(0), args.get(1), info.module());
+          if (functionId.isConstructor()) {
+            opcode = GENERIC;
+            operand = addConstant(constants, op);
+          } else {
+            EffesModule.Id moduleId = functionId.getScope().getModuleId();
+            EffesFunction callee = modules.apply(moduleId).getFunction(functionId);
+            EffesType instanceType = functionId.getScope().map(m -> null, (m, t) -> modules.apply(m).getType(t));
+            boolean tailCall = op instanceof TailCallOperation;
+            if (instanceType == null) {
+              opcode = tailCall ? TAIL_CALL : CALL;
+              operand = addConstant(constants, callee);
+            } else {
+              opcode = tailCall ? TAIL_CALL_INSTANCE : CALL_INSTANCE;
+              operand = addConstant(constants, callee);
+              addConstant(constants, instanceType); // at operand + 1
+            }
+          }
+          break;
+        default:
+          Integer simpleOpcode = simpleOpcodes.get(info.opcode());
+          if (simpleOpcode != null) {
+            opcode = simpleOpcode;
+          } else {
+            opcode = GENERIC;
+            operand = addConstant(constants, op);
+          }
+          break;
+      }
+      code[i * 2] = opcode;
+      code[i * 2 + 1] = operand;
+    }
+    return new DecodedFunction(code, constants.toArray());
+  }
+
+  private static int addConstant(List<Object> constants, Object constant) {
+    constants.add(constant);
+    return constants.size() - 1;
+  }
+
+  private static int jumpTarget(String dest, Map<String,Integer> labels, int nOps) {
+    int idx;
+    try {
+      idx = Integer.parseInt(dest);
+    } catch (NumberFormatException e) {
+      Integer labelIdx = labels.get(dest);
+      if (labelIdx == null) {
+        throw new NoSuchElementException(dest);
+      }
+      idx = labelIdx;
+    }
+    if (idx >= nOps) {
+      throw new EffesLinkException("jump op index is out of range: " + idx);
+    }
+    return idx;
+  }
+
+  private static Map<String,Integer> createSimpleOpcodes() {
+    Map<String,Integer> map = new HashMap<>();
+    map.put("pop", POP);
+    map.put("copy", COPY);
+    map.put("rtrn", RTRN);
+    map.put("call_Integer:add", IADD);
+    map.put("call_Integer:sub", ISUB);
+    map.put("call_Integer:mult", IMUL);
+    map.put("call_Integer:div", IDIV);
+    map.put("call_Integer:lt", ILT);
+    map.put("call_Integer:le", ILE);
+    map.put("call_Integer:eq", IEQ);
+    map.put("call_Integer:ne", INE);
+    map.put("call_Integer:ge", IGE);
+    map.put("call_Integer:gt", IGT);
+    return map;
+  }
+}
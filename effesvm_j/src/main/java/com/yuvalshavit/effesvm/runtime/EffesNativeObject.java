@@ -16,12 +16,19 @@ import com.yuvalshavit.effesvm.util.StringEscaper;
 public abstract class EffesNativeObject extends EffesRef<EffesNativeObject.NativeType> {
 
   private static final EnumMap<EffesNativeType,NativeType> nativeTypes;
+  private static final int SMALL_INT_MIN = -128;
+  private static final int SMALL_INT_MAX = 1023;
+  private static final EffesInteger[] smallInts;
 
   static {
     nativeTypes = new EnumMap<>(EffesNativeType.class);
     for (EffesNativeType nativeType : EffesNativeType.values()) {
       nativeTypes.put(nativeType, new NativeType(nativeType.getEvmType()));
     }
+    smallInts = new EffesInteger[SMALL_INT_MAX - SMALL_INT_MIN + 1];
+    for (int i = 0; i < smallInts.length; ++i) {
+      smallInts[i] = new EffesInteger(i + SMALL_INT_MIN);
+    }
   }
 
   private EffesNativeObject(NativeType type) {
@@ -51,7 +58,9 @@ public abstract class EffesNativeObject extends EffesRef<EffesNativeObject.Nativ
   protected abstract Object equalityState();
 
   public static EffesInteger forInt(int value) {
-    return new EffesInteger(value);
+    return (value >= SMALL_INT_MIN && value <= SMALL_INT_MAX)
+      ? smallInts[value - SMALL_INT_MIN]
+      : new EffesInteger(value);
   }
 
   public static EffesBoolean forBoolean(boolean value) {
@@ -5,25 +5,85 @@ import java.util.function.BiConsumer;
 
 import com.yuvalshavit.effesvm.load.EffesModule;
 
-public class EffesObject extends EffesRef<EffesType> {
+/**
+ * An instance of an {@link EffesType}. Types with up to four fields get a fixed-field layout (see {@link #create(EffesType, EffesRef[])}), so that an
+ * object is a single allocation with no backing array. Larger types fall back to an array of fields. Types with no fields have just one instance.
+ */
+public abstract class EffesObject extends EffesRef<EffesType> {
   private static final EffesModule.Id QUEUE_MODULE = new EffesModule.Id("Queue");
   private static final String QUEUE_NAME = "Queue";
-  private final EffesRef<?>[] args;
 
-  public EffesObject(EffesType type, EffesRef<?>[] args) {
+  private EffesObject(EffesType type) {
     super(type);
-    this.args = Arrays.copyOf(args, args.length);
+  }
+
+  public abstract EffesRef<?> getArgAt(int idx);
+
+  public abstract void storeArgTo(int idx, EffesRef<?> value);
+
+  /**
+   * Creates an object with the given fields, using the smallest layout that fits. The array isn't retained, so callers may reuse it.
+   */
+  public static EffesObject create(EffesType type, EffesRef<?>[] args) {
     if (args.length != type.nArgs()) {
       throw new EffesRuntimeException(String.format("wrong number of arguments: expected %d but saw %d", type.nArgs(), args.length));
     }
+    switch (args.length) {
+      case 0:
+        return create(type);
+      case 1:
+        return create(type, args[0]);
+      case 2:
+        return create(type, args[0], args[1]);
+      case 3:
+        return create(type, args[0], args[1], args[2]);
+      case 4:
+        return create(type, args[0], args[1], args[2], args[3]);
+      default:
+        return new FieldsN(type, Arrays.copyOf(args, args.length));
+    }
   }
 
-  public EffesRef<?> getArgAt(int idx) {
-    return args[idx];
+  /**
+   * Returns the type's shared instance; see {@link EffesType#nullaryInstance()}.
+   */
+  public static EffesObject create(EffesType type) {
+    checkNArgs(type, 0);
+    return type.nullaryInstance();
   }
 
-  public void storeArgTo(int idx, EffesRef<?> value) {
-    args[idx] = value;
+  static EffesObject createNullary(EffesType type) {
+    return new Fields0(type);
+  }
+
+  public static EffesObject create(EffesType type, EffesRef<?> arg0) {
+    checkNArgs(type, 1);
+    return new Fields1(type, arg0);
+  }
+
+  public static EffesObject create(EffesType type, EffesRef<?> arg0, EffesRef<?> arg1) {
+    checkNArgs(type, 2);
+    return new Fields2(type, arg0, arg1);
+  }
+
+  public static EffesObject create(EffesType type, EffesRef<?> arg0, EffesRef<?> arg1, EffesRef<?> arg2) {
+    checkNArgs(type, 3);
+    return new Fields3(type, arg0, arg1, arg2);
+  }
+
+  public static EffesObject create(EffesType type, EffesRef<?> arg0, EffesRef<?> arg1, EffesRef<?> arg2, EffesRef<?> arg3) {
+    checkNArgs(type, 4);
+    return new Fields4(type, arg0, arg1, arg2, arg3);
+  }
+
+  private static void checkNArgs(EffesType type, int nArgs) {
+    if (type.nArgs() != nArgs) {
+      throw new EffesRuntimeException(String.format("wrong number of arguments: expected %d but saw %d", type.nArgs(), nArgs));
+    }
+  }
+
+  private static IndexOutOfBoundsException noSuchField(int idx, int nArgs) {
+    return new IndexOutOfBoundsException(String.format("field %d out of range for %d field(s)", idx, nArgs));
   }
 
   @Override
@@ -46,7 +106,7 @@ public class EffesObject extends EffesRef<EffesType> {
   @Override
   protected void visitAttrs(EffesRefVisitor visitor) {
     if (!visitAttrsForCons(visitor::attribute)) {
-      for (int i = 0; i < args.length; ++i) {
+      for (int i = 0, nArgs = type().nArgs(); i < nArgs; ++i) {
         visitor.attribute(type().argAt(i), getArgAt(i));
       }
     }
@@ -98,4 +158,197 @@ public class EffesObject extends EffesRef<EffesType> {
       return isEffesType(elem.type(), QUEUE_MODULE, "Empty");
     }
   }
+
+  private static class Fields0 extends EffesObject {
+    Fields0(EffesType type) {
+      super(type);
+    }
+
+    @Override
+    public EffesRef<?> getArgAt(int idx) {
+      throw noSuchField(idx, 0);
+    }
+
+    @Override
+    public void storeArgTo(int idx, EffesRef<?> value) {
+      throw noSuchField(idx, 0);
+    }
+  }
+
+  private static class Fields1 extends EffesObject {
+    private EffesRef<?> arg0;
+
+    Fields1(EffesType type, EffesRef<?> arg0) {
+      super(type);
+      this.arg0 = arg0;
+    }
+
+    @Override
+    public EffesRef<?> getArgAt(int idx) {
+      if (idx == 0) {
+        return arg0;
+      }
+      throw noSuchField(idx, 1);
+    }
+
+    @Override
+    public void storeArgTo(int idx, EffesRef<?> value) {
+      if (idx == 0) {
+        arg0 = value;
+      } else {
+        throw noSuchField(idx, 1);
+      }
+    }
+  }
+
+  private static class Fields2 extends EffesObject {
+    private EffesRef<?> arg0;
+    private EffesRef<?> arg1;
+
+    Fields2(EffesType type, EffesRef<?> arg0, EffesRef<?> arg1) {
+      super(type);
+      this.arg0 = arg0;
+      this.arg1 = arg1;
+    }
+
+    @Override
+    public EffesRef<?> getArgAt(int idx) {
+      switch (idx) {
+        case 0:
+          return arg0;
+        case 1:
+          return arg1;
+        default:
+          throw noSuchField(idx, 2);
+      }
+    }
+
+    @Override
+    public void storeArgTo(int idx, EffesRef<?> value) {
+      switch (idx) {
+        case 0:
+          arg0 = value;
+          break;
+        case 1:
+          arg1 = value;
+          break;
+        default:
+          throw noSuchField(idx, 2);
+      }
+    }
+  }
+
+  private static class Fields3 extends EffesObject {
+    private EffesRef<?> arg0;
+    private EffesRef<?> arg1;
+    private EffesRef<?> arg2;
+
+    Fields3(EffesType type, EffesRef<?> arg0, EffesRef<?> arg1, EffesRef<?> arg2) {
+      super(type);
+      this.arg0 = arg0;
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+    }
+
+    @Override
+    public EffesRef<?> getArgAt(int idx) {
+      switch (idx) {
+        case 0:
+          return arg0;
+        case 1:
+          return arg1;
+        case 2:
+          return arg2;
+        default:
+          throw noSuchField(idx, 3);
+      }
+    }
+
+    @Override
+    public void storeArgTo(int idx, EffesRef<?> value) {
+      switch (idx) {
+        case 0:
+          arg0 = value;
+          break;
+        case 1:
+          arg1 = value;
+          break;
+        case 2:
+          arg2 = value;
+          break;
+        default:
+          throw noSuchField(idx, 3);
+      }
+    }
+  }
+
+  private static class Fields4 extends EffesObject {
+    private EffesRef<?> arg0;
+    private EffesRef<?> arg1;
+    private EffesRef<?> arg2;
+    private EffesRef<?> arg3;
+
+    Fields4(EffesType type, EffesRef<?> arg0, EffesRef<?> arg1, EffesRef<?> arg2, EffesRef<?> arg3) {
+      super(type);
+      this.arg0 = arg0;
+      this.arg1 = arg1;
+      this.arg2 = arg2;
+      this.arg3 = arg3;
+    }
+
+    @Override
+    public EffesRef<?> getArgAt(int idx) {
+      switch (idx) {
+        case 0:
+          return arg0;
+        case 1:
+          return arg1;
+        case 2:
+          return arg2;
+        case 3:
+          return arg3;
+        default:
+          throw noSuchField(idx, 4);
+      }
+    }
+
+    @Override
+    public void storeArgTo(int idx, EffesRef<?> value) {
+      switch (idx) {
+        case 0:
+          arg0 = value;
+          break;
+        case 1:
+          arg1 = value;
+          break;
+        case 2:
+          arg2 = value;
+          break;
+        case 3:
+          arg3 = value;
+          break;
+        default:
+          throw noSuchField(idx, 4);
+      }
+    }
+  }
+
+  private static class FieldsN extends EffesObject {
+    private final EffesRef<?>[] args;
+
+    FieldsN(EffesType type, EffesRef<?>[] args) {
+      super(type);
+      this.args = args;
+    }
+
+    @Override
+    public EffesRef<?> getArgAt(int idx) {
+      return args[idx];
+    }
+
+    @Override
+    public void storeArgTo(int idx, EffesRef<?> value) {
+      args[idx] = value;
+    }
+  }
 }
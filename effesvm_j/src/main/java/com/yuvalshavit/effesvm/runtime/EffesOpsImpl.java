@@ -46,8 +46,7 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
   @Override
   public void pushInt(OpBuilder builder, String value) {
     int asInt = Integer.parseInt(value);
-    EffesNativeObject.EffesInteger obj = EffesNativeObject.forInt(asInt);
-    builder.withIncementingPc(s -> s.push(obj));
+    builder.withIncementingPc(s -> s.pushInt(asInt));
   }
 
   @Override
@@ -57,7 +56,7 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
 
   @Override
   public void copy(OpBuilder builder) {
-    builder.withIncementingPc(s -> s.push(s.peek(0)));
+    builder.withIncementingPc(EffesState::dup);
   }
 
   @Override
@@ -133,11 +132,11 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
 
   private void pushFieldOperation(OpBuilder builder, String typeName, String fieldName, Function<EffesState,EffesRef<?>> getTop) {
     fieldOperation(builder, typeName, fieldName, (type, fieldIndex) -> s -> {
-      EffesObject obj = (EffesObject) getTop.apply(s);
-      if (!obj.type().equals(type)) {
-        throw new EffesRuntimeException(String.format("can't fetch %s.%s on an object of type %s", type.argAt(fieldIndex), fieldName, obj.type()));
+      EffesRef<?> top = getTop.apply(s);
+      if (top.type() != type) {
+        throw new EffesRuntimeException(String.format("can't fetch %s.%s on an object of type %s", type.argAt(fieldIndex), fieldName, top.type()));
       }
-      EffesRef<?> arg = obj.getArgAt(fieldIndex);
+      EffesRef<?> arg = ((EffesObject) top).getArgAt(fieldIndex);
       s.push(arg);
     });
   }
@@ -145,12 +144,12 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
   @Override
   public void storeField(OpBuilder builder, String typeName, String fieldName) {
     fieldOperation(builder, typeName, fieldName, (type, fieldIndex) -> s -> {
-      EffesObject obj = (EffesObject) s.pop();
+      EffesRef<?> obj = s.pop();
       EffesRef<?> newFieldValue = s.pop();
-      if (!obj.type().equals(type)) {
+      if (obj.type() != type) {
         throw new EffesRuntimeException(String.format("can't fetch %s.%s on an object of type %s", type.argAt(fieldIndex), fieldName, obj.type()));
       }
-      obj.storeArgTo(fieldIndex, newFieldValue);
+      ((EffesObject) obj).storeArgTo(fieldIndex, newFieldValue);
     });
   }
 
@@ -178,7 +177,7 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
   public void arrayLen(OpBuilder builder) {
     builder.withIncementingPc(s -> {
       EffesNativeObject.EffesArray arr = (EffesNativeObject.EffesArray) s.pop();
-      s.push(EffesNativeObject.forInt(arr.length()));
+      s.pushInt(arr.length());
     });
   }
 
@@ -215,32 +214,32 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
 
   @Override
   public void lt(OpBuilder builder) {
-    intCmp(builder, (l, r) -> (l < r));
+    intCmp(builder, IntegerOps.LT);
   }
 
   @Override
   public void le(OpBuilder builder) {
-    intCmp(builder, (l, r) -> (l <= r));
+    intCmp(builder, IntegerOps.LE);
   }
 
   @Override
   public void eq(OpBuilder builder) {
-    intCmp(builder, (l, r) -> (l == r));
+    intCmp(builder, IntegerOps.EQ);
   }
 
   @Override
   public void ne(OpBuilder builder) {
-    intCmp(builder, (l, r) -> (l != r));
+    intCmp(builder, IntegerOps.NE);
   }
 
   @Override
   public void ge(OpBuilder builder) {
-    intCmp(builder, (l, r) -> (l >= r));
+    intCmp(builder, IntegerOps.GE);
   }
 
   @Override
   public void gt(OpBuilder builder) {
-    intCmp(builder, (l, r) -> (l > r));
+    intCmp(builder, IntegerOps.GT);
   }
 
   @Override
@@ -250,64 +249,105 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
       if (functionId.isConstructor()) {
         // constructor
         EffesType type = functionId.getScope().mapRequiringInstanceType(linkCtx::type);
-        return runCtx -> {
-          EffesRef<?>[] args = new EffesRef<?>[type.nArgs()];
-          for (int i = 0; i < args.length ; ++i) {
-            args[i] = runCtx.pop();
-          }
-          EffesObject obj = new EffesObject(type, args);
-          runCtx.push(obj);
-          return PcMove.next();
-        };
+        return constructor(type);
       } else {
         // non-constructor function
         EffesFunction f = linkCtx.getFunctionInfo(functionId);
-        PcMove pcMove;
-        try {
-          pcMove = PcMove.firstCallIn(f);
-        } catch (IllegalArgumentException e) {
+        if (f == null) {
           throw new NoSuchElementException("method " + functionId);
         }
         EffesType instanceTargetType = functionId.getScope().map(m -> null, linkCtx::type);
-        return c -> {
-          int nArgs = f.nArgs(); // does not count the "this" reference
-          if (instanceTargetType != null) {
-            Object instance = c.peek(nArgs);
-            if (!(instance instanceof EffesObject)) {
-              throw new EffesRuntimeException(String.format("instance function invoked on non-EffesObject instance: %s", instance));
-            }
-            EffesType instanceType = ((EffesObject) instance).type();
-            if (!instanceTargetType.equals(instanceType)) {
-              throw new EffesRuntimeException(String.format("instance function invoked on wrong EffesObject instance: %s", instance));
-            }
-            ++nArgs; // to include the "this" reference
-          }
-          c.openFrame(nArgs, f.hasRv(), f.nVars());
-          return pcMove;
-        };
+        return functionCall(f, instanceTargetType, false);
       }
     };
     builder.build(unlinked);
   }
 
+  /**
+   * A call to a non-constructor function. If it's a tail call, it replaces the caller's frame rather than opening a new one (see
+   * {@link EffesState#tailCallFrame(int, boolean, int)}); such calls are found after linking, by {@link com.yuvalshavit.effesvm.load.TailCallPass}.
+   *
+   * @param instanceTargetType the type that "this" must have, for instance functions; or null for static functions
+   */
+  public static Operation.Body functionCall(EffesFunction f, EffesType instanceTargetType, boolean tailCall) {
+    PcMove pcMove = PcMove.firstCallIn(f);
+    return c -> {
+      int nArgs = f.nArgs(); // does not count the "this" reference
+      if (instanceTargetType != null) {
+        c.checkInstance(nArgs, instanceTargetType);
+        ++nArgs; // to include the "this" reference
+      }
+      if (tailCall) {
+        c.tailCallFrame(nArgs, f.hasRv(), f.nVars());
+      } else {
+        c.openFrame(nArgs, f.hasRv(), f.nVars());
+      }
+      return pcMove;
+    };
+  }
+
+  /**
+   * A constructor call. The fields are popped in order, so the top of the stack is field 0 (and Java evaluates arguments left to right). Small types
+   * are built directly into their fixed-field layouts, without an intermediate array, and types without fields just push their shared instance.
+   */
+  private static Operation.Body constructor(EffesType type) {
+    switch (type.nArgs()) {
+      case 0:
+        EffesObject instance = type.nullaryInstance();
+        return c -> {
+          c.push(instance);
+          return PcMove.next();
+        };
+      case 1:
+        return c -> {
+          c.push(EffesObject.create(type, c.pop()));
+          return PcMove.next();
+        };
+      case 2:
+        return c -> {
+          c.push(EffesObject.create(type, c.pop(), c.pop()));
+          return PcMove.next();
+        };
+      case 3:
+        return c -> {
+          c.push(EffesObject.create(type, c.pop(), c.pop(), c.pop()));
+          return PcMove.next();
+        };
+      case 4:
+        return c -> {
+          c.push(EffesObject.create(type, c.pop(), c.pop(), c.pop(), c.pop()));
+          return PcMove.next();
+        };
+      default:
+        return c -> {
+          EffesRef<?>[] args = new EffesRef<?>[type.nArgs()];
+          for (int i = 0; i < args.length ; ++i) {
+            args[i] = c.pop();
+          }
+          c.push(EffesObject.create(type, args));
+          return PcMove.next();
+        };
+    }
+  }
+
   @Override
   public void iAdd(OpBuilder builder) {
-    intArith(builder, (l, r) -> (l + r));
+    intArith(builder, IntegerOps.ADD);
   }
 
   @Override
   public void iSub(OpBuilder builder) {
-    intArith(builder, (l, r) -> (l - r));
+    intArith(builder, IntegerOps.SUB);
   }
 
   @Override
   public void iMul(OpBuilder builder) {
-    intArith(builder, (l, r) -> (l * r));
+    intArith(builder, IntegerOps.MULT);
   }
 
   @Override
   public void iDiv(OpBuilder builder) {
-    intArith(builder, (l, r) -> (l / r));
+    intArith(builder, IntegerOps.DIV);
   }
 
   @Override
@@ -414,7 +454,7 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
     builder.withIncementingPc(s -> {
       String str = popString(s);
       int len = str.codePointCount(0, str.length());
-      s.push(EffesNativeObject.forInt(len));
+      s.pushInt(len);
     });
   }
 
@@ -540,7 +580,7 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
     UnlinkedOperation.Body body = linkCtx -> {
       PcMove to = pcMoveTo(linkCtx, loc);
       return s -> {
-        boolean top = ((EffesNativeObject.EffesBoolean) s.pop()).asBoolean();
+        boolean top = s.popBoolean();
         return condition.test(top) ? to : PcMove.next();
       };
     };
@@ -591,26 +631,24 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
     builder.withIncementingPc(s -> {
       int rhs = popInt(s);
       int lhs = popInt(s);
-      s.push(EffesNativeObject.forInt(op.applyAsInt(lhs, rhs)));
+      s.pushInt(op.applyAsInt(lhs, rhs));
     });
   }
 
-  private void intCmp(OpBuilder builder, IntCmp intCmp) {
+  private void intCmp(OpBuilder builder, IntegerOps.Comparison intCmp) {
     builder.withIncementingPc(s -> {
       int lhs = popInt(s);
       int rhs = popInt(s);
-      s.push(EffesNativeObject.forBoolean(intCmp.cmp(lhs, rhs)));
+      s.pushBoolean(intCmp.cmp(lhs, rhs));
     });
   }
 
   private static boolean popBoolean(EffesState s) {
-    EffesNativeObject.EffesBoolean popped = (EffesNativeObject.EffesBoolean) s.pop();
-    return popped.asBoolean();
+    return s.popBoolean();
   }
 
   private static int popInt(EffesState s) {
-    EffesNativeObject.EffesInteger popped = (EffesNativeObject.EffesInteger) s.pop();
-    return popped.value;
+    return s.popInt();
   }
 
   private static String popString(EffesState s) {
@@ -628,8 +666,7 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
       }
       return Operation.withIncementingPc(s -> {
         EffesRef<?> item = topItem.apply(s);
-        BaseEffesType type = item.type();
-        boolean rightType = type.equals(checkForType);
+        boolean rightType = item.type() == checkForType; // native types are singletons, and EffesTypes are canonical
         if (rightType) {
           ifMatched.accept(s, item);
         }
@@ -642,8 +679,4 @@ public class EffesOpsImpl implements EffesOps<OpBuilder> {
   private interface FieldOperator {
     Consumer<EffesState> fieldOperation(EffesType type, int fieldIndex);
   }
-
-  private interface IntCmp {
-    boolean cmp(int lhs, int rhs);
-  }
 }
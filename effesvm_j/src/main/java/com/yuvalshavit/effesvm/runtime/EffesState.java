@@ -3,20 +3,71 @@ package com.yuvalshavit.effesvm.runtime;
 import static com.yuvalshavit.effesvm.util.LambdaHelpers.consumeAndReturn;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.StringJoiner;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
 
 public class EffesState {
-  private final Object[] stack;
+  /** The default max stack size, in slots. The stack starts off smaller than this, and only grows as deep as the program actually recurses. */
+  public static final int STACK_SIZE = 500;
+  public static final String STACK_SIZE_PROPERTY = "stack.size";
+  private static final int INITIAL_FRAMES_CAPACITY = 16;
+  /**
+   * The stack starts off this big (or at its max size, if that's smaller), and doubles as needed up to its max size. This lets a deeply recursive
+   * program use a big stack without every program paying for one.
+   */
+  static final int INITIAL_STACK_CAPACITY = 64;
+  /** Marks each frame's $fp slot on the stack. The frame's actual info lives in the frame* arrays, indexed by frame depth. */
+  private static final Object FRAME_SLOT = new Object() {
+    @Override
+    public String toString() {
+      return "<frame>";
+    }
+  };
+  /**
+   * Marks a stack slot whose value is an unboxed Effes integer, held in the corresponding element of {@link #intSlots}. Integers are only boxed into
+   * {@link EffesNativeObject.EffesInteger} objects when they escape the stack via {@link #pop()} or {@link #peek(int)}; moving them between the stack and
+   * local variables (including as function arguments or return values) keeps them unboxed.
+   */
+  private static final Object INT_SLOT = new Object() {
+    @Override
+    public String toString() {
+      return "<int>";
+    }
+  };
+
+  // These get replaced with bigger or smaller copies as the stack grows and shrinks; see growStack and shrinkStack.
+  private Object[] stack;
+  private int[] intSlots;
+  private final int maxStackSize;
   private int regSp;
   private int regFp;
   private ProgramCounter regPc;
-  private String lastSeenLabel;
 
+  // Frame info, as parallel arrays indexed by frame depth (0 is the first frame). This lets us open and close frames without allocating anything.
+  private int regFrame = -1;
+  private int[] frameFps = new int[INITIAL_FRAMES_CAPACITY];
+  private int[] frameNVars = new int[INITIAL_FRAMES_CAPACITY];
+  private boolean[] frameHasRv = new boolean[INITIAL_FRAMES_CAPACITY];
+  private EffesFunction[] frameReturnFunctions = new EffesFunction[INITIAL_FRAMES_CAPACITY];
+  private int[] frameReturnPcs = new int[INITIAL_FRAMES_CAPACITY];
+  private int[] frameTailCalls = new int[INITIAL_FRAMES_CAPACITY];
+  /** The highest stack index reserved by each frame or any frame below it. The stack never shrinks below this for the current frame. */
+  private int[] frameReservedTops = new int[INITIAL_FRAMES_CAPACITY];
+  private FrameListener frameListener;
+
+  /**
+   * @param stackSize the max number of slots the stack can grow to
+   */
   public EffesState(ProgramCounter.State pcState, int stackSize, int nLocalVars, EffesRef<?>... args) {
-    stack = new Object[stackSize];
+    maxStackSize = stackSize;
+    int initialCapacity = Math.min(stackSize, INITIAL_STACK_CAPACITY);
+    stack = new Object[initialCapacity];
+    intSlots = new int[initialCapacity];
     regSp = -1;
     for (EffesRef<?> arg : args) {
       push(arg);
@@ -26,7 +77,25 @@ public class EffesState {
   }
 
   EffesState(int nLocalVars, EffesRef<?>... args) {
-    this(ProgramCounter.start(), 500, nLocalVars, args);
+    this(ProgramCounter.start(), STACK_SIZE, nLocalVars, args);
+  }
+
+  /**
+   * A state for a program's main function, with its args already in local var 0. The caller is responsible for pointing the pc at main.
+   *
+   * @param nLocalVars main's local vars, including the one for its args
+   */
+  public static EffesState forMain(String[] argv, int stackSize, int nLocalVars) {
+    EffesState state = new EffesState(ProgramCounter.start(), stackSize, nLocalVars);
+    state.push(consumeAndReturn(
+      new EffesNativeObject.EffesArray(argv.length),
+      effesArgv -> IntStream.range(0, argv.length).forEach(i -> effesArgv.store(i, EffesNativeObject.forString(argv[i])))));
+    state.popToVar(0);
+    return state;
+  }
+
+  public static int defaultStackSize() {
+    return Integer.getInteger(STACK_SIZE_PROPERTY, STACK_SIZE);
   }
 
   public void push(EffesRef<?> o) {
@@ -35,29 +104,66 @@ public class EffesState {
 
   private void pushObj(Object o) {
     if (regSp + 1 >= stack.length) {
-      long nFrames = Stream.of(stack).filter(e -> e instanceof FrameInfo).count();
-      throw new EffesStackOverflowException(String.format("stackSize=%d, nFrames=%d", stack.length, nFrames));
+      growStack(regSp + 1);
     }
     stack[++regSp] = o;
   }
 
+  public void pushInt(int value) {
+    pushObj(INT_SLOT);
+    intSlots[regSp] = value;
+  }
+
   public EffesRef<?> pop() {
+    checkCanPop();
+    EffesRef<?> popped = slotToRef(regSp);
+    stack[regSp--] = null;
+    return popped;
+  }
+
+  /**
+   * Pops the top of the stack, which must be an Effes integer, without boxing it.
+   */
+  public int popInt() {
+    checkCanPop();
+    Object popped = stack[regSp];
+    int value = popped == INT_SLOT
+      ? intSlots[regSp]
+      : ((EffesNativeObject.EffesInteger) popped).value;
+    stack[regSp--] = null;
+    return value;
+  }
+
+  public void pushBoolean(boolean value) {
+    // Booleans are never boxed per-use, since there are only two (shared) instances.
+    pushObj(EffesNativeObject.forBoolean(value));
+  }
+
+  public boolean popBoolean() {
+    return ((EffesNativeObject.EffesBoolean) pop()).asBoolean();
+  }
+
+  private void checkCanPop() {
     // Can only pop from this frame's local stack!
     if (regSp <= regFp) {
       throw new EffesStackException("underflow");
     }
-    EffesRef<?> popped = ((EffesRef<?>) stack[regSp]);
-    stack[regSp--] = null;
-    return popped;
   }
 
-  EffesRef<?> getFinalPop() {
+  private EffesRef<?> slotToRef(int idx) {
+    Object slot = stack[idx];
+    return slot == INT_SLOT
+      ? EffesNativeObject.forInt(intSlots[idx])
+      : (EffesRef<?>) slot;
+  }
+
+  public EffesRef<?> getFinalPop() {
     // Special variant of pop() for when the item to be popped is the last one there. This should only be called after the very earlier frame,
     // the one that was implicitly created in the constructor, has been closed.
     if (regSp != 0) {
       throw new EffesStackException("items left on the stack");
     }
-    return ((EffesRef<?>) stack[0]);
+    return slotToRef(0);
   }
 
   /**
@@ -68,7 +174,30 @@ public class EffesState {
     if (distanceFromSp >= getLocalStackSize()) {
       throw new EffesStackException("out of range peek: " + distanceFromSp);
     }
-    return (EffesRef<?>) stack[regSp - distanceFromSp];
+    return slotToRef(regSp - distanceFromSp);
+  }
+
+  /**
+   * Checks that the instance an instance function is about to be called on, which is just under the call's nArgs args, has the function's type.
+   */
+  public void checkInstance(int nArgs, EffesType targetType) {
+    EffesRef<?> instance = peek(nArgs);
+    if (instance.type() != targetType) {
+      throw new EffesRuntimeException(String.format(
+        instance instanceof EffesObject
+          ? "instance function invoked on wrong EffesObject instance: %s"
+          : "instance function invoked on non-EffesObject instance: %s",
+        instance));
+    }
+  }
+
+  /**
+   * Pushes the top of the stack again, without boxing it if it's an int.
+   */
+  public void dup() {
+    checkCanPop();
+    pushObj(stack[regSp]);
+    intSlots[regSp] = intSlots[regSp - 1];
   }
 
   public void pushVar(int n) {
@@ -78,18 +207,39 @@ public class EffesState {
       throw new EffesStackException("variable " + n + " not set");
     }
     pushObj(varValue);
+    intSlots[regSp] = intSlots[varIndex];
+  }
+
+  /**
+   * Reads a variable, which must be an Effes integer, without pushing or boxing it.
+   */
+  public int varInt(int n) {
+    int varIndex = getVarAbsoluteIndex(n);
+    Object varValue = stack[varIndex];
+    if (varValue == null) {
+      throw new EffesStackException("variable " + n + " not set");
+    }
+    return varValue == INT_SLOT
+      ? intSlots[varIndex]
+      : ((EffesNativeObject.EffesInteger) varValue).value;
   }
 
   public void popToVar(int n) {
     int varIdx = getVarAbsoluteIndex(n);
-    stack[varIdx] = pop();
+    checkCanPop();
+    stack[varIdx] = stack[regSp];
+    intSlots[varIdx] = intSlots[regSp];
+    stack[regSp--] = null;
   }
 
-  public void seeLabel(String label) {
-    if (label == null) {
-      label = "<unknown>"; // not expected to happen
-    }
-    lastSeenLabel = label;
+  /**
+   * Copies the top of the stack to the given variable, without popping it.
+   */
+  public void copyToVar(int n) {
+    int varIdx = getVarAbsoluteIndex(n);
+    checkCanPop();
+    stack[varIdx] = stack[regSp];
+    intSlots[varIdx] = intSlots[regSp];
   }
 
   public void openFrame(int nArgs, boolean hasRv, int nLocal) {
@@ -99,52 +249,188 @@ public class EffesState {
     // [ ...         ] <-- $sp
     // [ localStack1 ]
     // [ localStack0 ]
-    // [ FrameInfo   ] <-- $fp
+    // [ FRAME_SLOT  ] <-- $fp
     int localStackSize = getLocalStackSize();
     if (localStackSize < nArgs) {
       throw new EffesStackException(
         String.format("trying to open frame with nArgs=%d, local stack size=%d", nArgs, getLocalStackSize()));
     }
     doOpenFrame(nArgs, nLocal, hasRv);
+    if (frameListener != null) {
+      frameListener.frameOpened();
+    }
+  }
+
+  /**
+   * Replaces the current frame with a new one, for a call in tail position. The new frame takes its args from the top of the current local stack,
+   * which must hold exactly those args; and since the caller would just return whatever the callee does, both must agree on whether there's an rv.
+   * The new frame returns straight to the current frame's caller, and the number of frames replaced this way is kept for debugging (see
+   * {@link #fp()}).
+   */
+  public void tailCallFrame(int nArgs, boolean hasRv, int nLocal) {
+    int frame = regFrame;
+    if (getLocalStackSize() != nArgs) {
+      throw new EffesStackException(String.format("tail call with nArgs=%d, but local stack size=%d", nArgs, getLocalStackSize()));
+    }
+    if (hasRv != frameHasRv[frame]) {
+      throw new EffesStackException("tail call must agree with its caller on whether there's an rv");
+    }
+    int firstVar = regFp - frameNVars[frame];
+    int newFp = firstVar + nArgs + nLocal;
+    if (newFp >= stack.length) {
+      growStack(newFp);
+    }
+    // Move the args down to where the current frame's vars start, and clear out everything above them.
+    int firstArg = regSp - nArgs + 1;
+    System.arraycopy(stack, firstArg, stack, firstVar, nArgs);
+    System.arraycopy(intSlots, firstArg, intSlots, firstVar, nArgs);
+    Arrays.fill(stack, firstVar + nArgs, regSp + 1, null);
+    stack[newFp] = FRAME_SLOT;
+    frameFps[frame] = newFp;
+    frameNVars[frame] = nArgs + nLocal;
+    ++frameTailCalls[frame];
+    frameReservedTops[frame] = frame == 0 ? 0 : frameReservedTops[frame - 1];
+    regSp = newFp;
+    regFp = newFp;
+    if (frameListener != null) {
+      frameListener.frameReplaced();
+    }
   }
 
   public void closeFrame() {
     int localStackSize = getLocalStackSize();
-    FrameInfo closingFp = fp();
-    EffesRef<?> closingFrameRv;
-    if (closingFp.hasRv) {
+    if (frameHasRv[regFrame]) {
       if (localStackSize != 1) {
         String msg = localStackSize == 0 ? "no value on local stack to return" : "too many values on local stack";
         throw new EffesStackException(msg);
       }
-      closingFrameRv = pop();
-      if (closingFrameRv == null) {
+      if (stack[regSp] == null) {
         throw new EffesStackException("$rv not set");
       }
-    } else {
-      if (localStackSize != 0) {
-        throw new EffesStackException("too many values on local stack");
-      }
-      closingFrameRv = null;
+    } else if (localStackSize != 0) {
+      throw new EffesStackException("too many values on local stack");
+    }
+    closeFrameUnchecked();
+  }
+
+  // Unchecked primitives. These skip the underflow, overflow, range and null checks of their checked counterparts, and are only for use by functions
+  // that passed the StackVerifier: it proves everything except for overflow, and reserveLocalStack covers that once per frame.
+
+  /**
+   * Checks that this frame's local stack can grow to the given depth. After this, the frame's pushes can't overflow as long as they stay within that
+   * depth.
+   */
+  public void reserveLocalStack(int depth) {
+    int top = regFp + depth;
+    if (top >= stack.length) {
+      growStack(top);
     }
-    for (int targetSp = this.regFp - closingFp.nVars - 1; regSp > targetSp; regSp--) {
+    if (top > frameReservedTops[regFrame]) {
+      frameReservedTops[regFrame] = top;
+    }
+  }
+
+  public void pushUnchecked(EffesRef<?> o) {
+    stack[++regSp] = o;
+  }
+
+  public void pushIntUnchecked(int value) {
+    stack[++regSp] = INT_SLOT;
+    intSlots[regSp] = value;
+  }
+
+  public void pushBooleanUnchecked(boolean value) {
+    stack[++regSp] = EffesNativeObject.forBoolean(value);
+  }
+
+  public EffesRef<?> popUnchecked() {
+    EffesRef<?> popped = slotToRef(regSp);
+    stack[regSp--] = null;
+    return popped;
+  }
+
+  public int popIntUnchecked() {
+    Object popped = stack[regSp];
+    int value = popped == INT_SLOT
+      ? intSlots[regSp]
+      : ((EffesNativeObject.EffesInteger) popped).value;
+    stack[regSp--] = null;
+    return value;
+  }
+
+  public boolean popBooleanUnchecked() {
+    EffesNativeObject.EffesBoolean popped = (EffesNativeObject.EffesBoolean) stack[regSp];
+    stack[regSp--] = null;
+    return popped.asBoolean();
+  }
+
+  public void dupUnchecked() {
+    stack[regSp + 1] = stack[regSp];
+    intSlots[regSp + 1] = intSlots[regSp];
+    ++regSp;
+  }
+
+  public void pushVarUnchecked(int n) {
+    int varIndex = regFp - frameNVars[regFrame] + n;
+    stack[++regSp] = stack[varIndex];
+    intSlots[regSp] = intSlots[varIndex];
+  }
+
+  public void popToVarUnchecked(int n) {
+    int varIdx = regFp - frameNVars[regFrame] + n;
+    stack[varIdx] = stack[regSp];
+    intSlots[varIdx] = intSlots[regSp];
+    stack[regSp--] = null;
+  }
+
+  public void copyToVarUnchecked(int n) {
+    int varIdx = regFp - frameNVars[regFrame] + n;
+    stack[varIdx] = stack[regSp];
+    intSlots[varIdx] = intSlots[regSp];
+  }
+
+  public void closeFrameUnchecked() {
+    int closingFrame = regFrame;
+    // Move the rv's raw slot rather than popping it, so that unboxed ints stay unboxed.
+    Object closingFrameRv = null;
+    int closingFrameRvInt = 0;
+    if (frameHasRv[closingFrame]) {
+      closingFrameRv = stack[regSp];
+      closingFrameRvInt = intSlots[regSp];
+    }
+    for (int targetSp = this.regFp - frameNVars[closingFrame] - 1; regSp > targetSp; regSp--) {
       stack[regSp] = null;
     }
-    regFp = closingFp.previousFp;
-    regPc.restore(closingFp.previousPc);
-    lastSeenLabel = closingFp.lastSeenLabel;
+    regFp = previousFp(closingFrame);
+    regPc.restore(frameReturnFunctions[closingFrame], frameReturnPcs[closingFrame]);
+    regFrame = closingFrame - 1;
     if (closingFrameRv != null) {
-      push(closingFrameRv);
+      // the closed frame's slots are free now, so this can't overflow
+      stack[++regSp] = closingFrameRv;
+      intSlots[regSp] = closingFrameRvInt;
+    }
+    if (regSp < (stack.length >> 2) && stack.length > INITIAL_STACK_CAPACITY) {
+      shrinkStack();
+    }
+    if (frameListener != null) {
+      frameListener.frameClosed();
     }
   }
 
+  /**
+   * Sets the listener that's told about each frame that opens or closes from now on, replacing any previous one. Pass null to remove it.
+   */
+  public void setFrameListener(FrameListener frameListener) {
+    this.frameListener = frameListener;
+  }
+
   public ProgramCounter pc() {
     return regPc;
   }
 
   @Override
   public String toString() {
-    return String.format("$fp=%d, $sp=%d, $pc=%s %s", regFp, regSp, regPc, describeLabel(lastSeenLabel));
+    return String.format("$fp=%d, $sp=%d, $pc=%s %s", regFp, regSp, regPc, describeLabel(lastSeenLabel()));
   }
 
   public List<String> toStringList() {
@@ -157,8 +443,10 @@ public class EffesState {
       String margin = String.format(marginFormat, i);
       Object elem = stack[i];
       String elemDesc;
-      if (elem instanceof FrameInfo) {
-        elemDesc = String.format("%s[======= %s =======]", i == regFp ? "* " : "", elem);
+      if (elem == FRAME_SLOT) {
+        elemDesc = String.format("%s[======= %s =======]", i == regFp ? "* " : "", frameInfoAt(i));
+      } else if (elem == INT_SLOT) {
+        elemDesc = String.valueOf(slotToRef(i));
       } else {
         elemDesc = String.valueOf(elem);
       }
@@ -173,24 +461,10 @@ public class EffesState {
   }
 
   public List<ProgramCounter.State> getStackTrace() {
-    int nFrames = 0;
-    for (int fpIdx = regFp; fpIdx > 0; ) {
-      FrameInfo fp = (FrameInfo) stack[fpIdx];
-      ++nFrames;
-      fpIdx = fp.previousFp;
-    }
-
-    List<ProgramCounter.State> frames = new ArrayList<>(nFrames);
+    List<ProgramCounter.State> frames = new ArrayList<>(regFrame + 2);
     frames.add(regPc.save());
-    for (int fpIdx = regFp; fpIdx > 0; ) {
-      FrameInfo fp = (FrameInfo) stack[fpIdx];
-      ProgramCounter.State frame = fp.previousPc;
-      if (frame != null && frame.function() != null) {
-        frames.add(frame);
-        fpIdx = fp.previousFp;
-      } else {
-        fpIdx = 0;
-      }
+    for (int frame = regFrame; frame >= 0 && frameReturnFunctions[frame] != null; --frame) {
+      frames.add(ProgramCounter.stateAt(frameReturnFunctions[frame], frameReturnPcs[frame]));
     }
     if (frames.get(frames.size() - 1).equals(ProgramCounter.start())) {
       frames.remove(frames.size() - 1);
@@ -204,38 +478,116 @@ public class EffesState {
 
   private void doOpenFrame(int nArgs, int nLocal, boolean hasRv) {
     regSp += nLocal;
-    FrameInfo newFrameInfo = new FrameInfo(nArgs, hasRv, nLocal, regFp, regPc.save(), lastSeenLabel);
-    pushObj(newFrameInfo);
+    pushObj(FRAME_SLOT);
+    int frame = regFrame + 1;
+    if (frame == frameFps.length) {
+      growFrames();
+    }
+    frameFps[frame] = regSp;
+    frameNVars[frame] = nArgs + nLocal;
+    frameHasRv[frame] = hasRv;
+    frameReturnFunctions[frame] = regPc.getCurrentFunction();
+    frameReturnPcs[frame] = regPc.getOpIdx();
+    frameTailCalls[frame] = 0;
+    frameReservedTops[frame] = frame == 0 ? 0 : frameReservedTops[frame - 1];
+    regFrame = frame;
     regFp = regSp;
-    lastSeenLabel = null;
+  }
+
+  private void growFrames() {
+    int newCapacity = frameFps.length * 2;
+    frameFps = Arrays.copyOf(frameFps, newCapacity);
+    frameNVars = Arrays.copyOf(frameNVars, newCapacity);
+    frameHasRv = Arrays.copyOf(frameHasRv, newCapacity);
+    frameReturnFunctions = Arrays.copyOf(frameReturnFunctions, newCapacity);
+    frameReturnPcs = Arrays.copyOf(frameReturnPcs, newCapacity);
+    frameTailCalls = Arrays.copyOf(frameTailCalls, newCapacity);
+    frameReservedTops = Arrays.copyOf(frameReservedTops, newCapacity);
+  }
+
+  /**
+   * Grows the stack so that it has the given index, or throws an overflow if that's past the max stack size. This is only called when the stack is
+   * actually full, so the common push doesn't pay anything beyond its usual bounds check.
+   */
+  private void growStack(int index) {
+    if (index >= maxStackSize) {
+      throw new EffesStackOverflowException(String.format("stackSize=%d, nFrames=%d", maxStackSize, regFrame + 1));
+    }
+    int newCapacity = Math.min(maxStackSize, Math.max(index + 1, stack.length * 2));
+    stack = Arrays.copyOf(stack, newCapacity);
+    intSlots = Arrays.copyOf(intSlots, newCapacity);
+  }
+
+  /**
+   * Halves the stack after a deep recursion has unwound. Only called once the stack is under a quarter full, so that a call depth hovering around a
+   * boundary doesn't keep copying the stack back and forth. It never shrinks below what a live frame has reserved, since verified functions push
+   * without checking.
+   */
+  private void shrinkStack() {
+    int reservedTop = regFrame < 0 ? 0 : frameReservedTops[regFrame];
+    int newCapacity = Math.max(INITIAL_STACK_CAPACITY, Math.max(stack.length >> 1, reservedTop + 1));
+    if (newCapacity < stack.length) {
+      stack = Arrays.copyOf(stack, newCapacity);
+      intSlots = Arrays.copyOf(intSlots, newCapacity);
+    }
+  }
+
+  /**
+   * The stack's current capacity, which is somewhere between its initial capacity and its max size.
+   */
+  int stackCapacity() {
+    return stack.length;
+  }
+
+  private int previousFp(int frame) {
+    return frame == 0 ? 0 : frameFps[frame - 1];
   }
 
   private int getVarAbsoluteIndex(int var) {
-    FrameInfo frameInfo = fp();
-    if (var < 0 || var >= frameInfo.nVars) {
+    int nVars = frameNVars[regFrame];
+    if (var < 0 || var >= nVars) {
       throw new EffesStackException("arg out of range: " + var);
     }
     // args are like:
-    // [ FrameInfo ] <- $fp
-    // [ varN      ]
-    // [ ...       ]
-    // [ var0      ]
+    // [ FRAME_SLOT ] <- $fp
+    // [ varN       ]
+    // [ ...        ]
+    // [ var0       ]
     // Keep in mind that n is 0-indexed. So for instance, if argN = 3, then we get dist = 3 - 2 = 1,
     // and when n = 0 then we get dist = 3 - 0 = 3.
-    int distanceFromFp = frameInfo.nVars - var;
+    int distanceFromFp = nVars - var;
     return regFp - distanceFromFp;
   }
 
+  /**
+   * Describes the current frame. This creates a new object, so it shouldn't be used on the hot path.
+   */
   public FrameInfo fp() {
-    return (FrameInfo) stack[regFp];
+    return frameInfo(regFrame);
   }
 
-  public int frameDepth() {
-    int i = 0;
-    for (FrameInfo fp = fp(); fp.previousFp > 0; fp = (FrameInfo) stack[fp.previousFp]) {
-      ++i;
+  private FrameInfo frameInfoAt(int fpIdx) {
+    for (int frame = regFrame; frame >= 0; --frame) {
+      if (frameFps[frame] == fpIdx) {
+        return frameInfo(frame);
+      }
     }
-    return i;
+    throw new IllegalArgumentException("no frame at " + fpIdx);
+  }
+
+  private FrameInfo frameInfo(int frame) {
+    return new FrameInfo(
+      frameNVars[frame],
+      frameHasRv[frame],
+      0,
+      previousFp(frame),
+      ProgramCounter.stateAt(frameReturnFunctions[frame], frameReturnPcs[frame]),
+      labelBefore(frameReturnFunctions[frame], frameReturnPcs[frame]),
+      frameTailCalls[frame]);
+  }
+
+  public int frameDepth() {
+    return regFrame;
   }
 
   private static String describeLabel(String label) {
@@ -244,28 +596,63 @@ public class EffesState {
       : ("after " + label);
   }
 
+  /**
+   * The last label before the current op, or null if there isn't one. Labels aren't ops, so this is worked out from the pc, only when it's needed.
+   */
   public String lastSeenLabel() {
-    return lastSeenLabel;
+    return labelBefore(regPc.getCurrentFunction(), regPc.getOpIdx());
+  }
+
+  private static String labelBefore(EffesFunction function, int pc) {
+    return function == null ? null : function.labelBefore(pc);
   }
 
+  /**
+   * Told about frames as they open and close. Each call happens within the op that caused it, after the frame has changed but before the pc moves to
+   * the callee, if there is one.
+   */
+  public interface FrameListener {
+    void frameOpened();
+
+    /** The current frame was replaced by a tail call (see {@link #tailCallFrame(int, boolean, int)}). */
+    void frameReplaced();
+
+    void frameClosed();
+  }
+
+  /**
+   * A snapshot description of a frame, for debugging.
+   */
   public static class FrameInfo {
     private final int nVars;
     private final boolean hasRv;
     private final int previousFp;
     private final ProgramCounter.State previousPc;
     private final String lastSeenLabel;
+    private final int tailCalls;
 
-    public FrameInfo(int nArgs, boolean hasRv, int nLocalVars, int previousFp, ProgramCounter.State previousPc, String lastSeenLabel) {
+    public FrameInfo(int nArgs, boolean hasRv, int nLocalVars, int previousFp, ProgramCounter.State previousPc, String lastSeenLabel, int tailCalls) {
       this.nVars = nArgs + nLocalVars;
       this.hasRv = hasRv;
       this.previousFp = previousFp;
       this.previousPc = previousPc;
       this.lastSeenLabel = lastSeenLabel;
+      this.tailCalls = tailCalls;
+    }
+
+    /**
+     * The number of frames that this one has replaced via tail calls, and which therefore don't show up in stack traces.
+     */
+    public int tailCalls() {
+      return tailCalls;
     }
 
     @Override
     public String toString() {
-      return String.format("nVars=%d, rv=%s, prevFp=%d, prevPc=%s %s", nVars, hasRv, previousFp, previousPc, lastSeenLabel);
+      String description = String.format("nVars=%d, rv=%s, prevFp=%d, prevPc=%s %s", nVars, hasRv, previousFp, previousPc, lastSeenLabel);
+      return tailCalls == 0
+        ? description
+        : String.format("%s (%d frame(s) elided by tail calls)", description, tailCalls);
     }
   }
 
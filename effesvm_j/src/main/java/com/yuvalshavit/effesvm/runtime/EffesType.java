@@ -3,18 +3,36 @@ package com.yuvalshavit.effesvm.runtime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Objects;
 
 import com.yuvalshavit.effesvm.load.EffesModule;
 
+/**
+ * A type declared by a module. Types are canonical: loading a program creates exactly one instance per (module, name), and everything that refers to
+ * that type is linked against that instance. So two types are the same if and only if they're the same reference, and type checks are a single
+ * <code>==</code>. This is why the class doesn't override {@link Object#equals(Object)}.
+ */
 public class EffesType extends BaseEffesType {
   private final EffesModule.Id module;
   private final List<String> arguments;
+  private final EffesObject nullaryInstance;
 
   public EffesType(EffesModule.Id module, String name, List<String> arguments) {
     super(name);
     this.module = module;
     this.arguments = new ArrayList<>(arguments);
+    this.nullaryInstance = arguments.isEmpty() ? EffesObject.createNullary(this) : null;
+  }
+
+  /**
+   * The single instance of this type, if it has no fields. Such objects have no state, so every constructor call can share one.
+   *
+   * @throws IllegalStateException if this type has fields
+   */
+  public EffesObject nullaryInstance() {
+    if (nullaryInstance == null) {
+      throw new IllegalStateException(this + " has fields");
+    }
+    return nullaryInstance;
   }
 
   public int nArgs() {
@@ -37,26 +55,6 @@ public class EffesType extends BaseEffesType {
     return module;
   }
 
-  @Override
-  public boolean equals(Object o) {
-    if (this == o) {
-      return true;
-    }
-    if (o == null || getClass() != o.getClass()) {
-      return false;
-    }
-    EffesType effesType = (EffesType) o;
-    return
-      Objects.equals(name(), effesType.name()) &&
-      Objects.equals(module, effesType.module) &&
-      Objects.equals(arguments, effesType.arguments);
-  }
-
-  @Override
-  public int hashCode() {
-    return Objects.hash(name(), module, arguments);
-  }
-
   @Override
   public String toString() {
     return String.format("%s:%s", module.getName(), name());
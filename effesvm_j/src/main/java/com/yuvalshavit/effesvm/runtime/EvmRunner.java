@@ -1,43 +1,51 @@
 package com.yuvalshavit.effesvm.runtime;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.ConnectException;
-import java.nio.file.DirectoryStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.StringJoiner;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
+import com.yuvalshavit.effesvm.load.ConstantFoldingPass;
 import com.yuvalshavit.effesvm.load.EfctScope;
 import com.yuvalshavit.effesvm.load.EffesFunction;
 import com.yuvalshavit.effesvm.load.EffesFunctionId;
 import com.yuvalshavit.effesvm.load.EffesFunctionParser;
 import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.FusionPass;
+import com.yuvalshavit.effesvm.load.Inliner;
 import com.yuvalshavit.effesvm.load.OutlinedModule;
 import com.yuvalshavit.effesvm.load.Parser;
+import com.yuvalshavit.effesvm.load.ReachableModules;
+import com.yuvalshavit.effesvm.load.StackVerifier;
+import com.yuvalshavit.effesvm.load.TailCallPass;
 import com.yuvalshavit.effesvm.ops.Operation;
 import com.yuvalshavit.effesvm.ops.OperationFactories;
 import com.yuvalshavit.effesvm.runtime.coverage.CodeCoverageDebugServer;
+import com.yuvalshavit.effesvm.runtime.profiler.InstrumentingProfiler;
+import com.yuvalshavit.effesvm.runtime.profiler.SamplingProfiler;
 import com.yuvalshavit.effesvm.runtime.debugger.gui.ConnectDialogue;
 import com.yuvalshavit.effesvm.runtime.debugger.gui.DebuggerGui;
 import com.yuvalshavit.effesvm.runtime.debugger.SockDebugServer;
+import com.yuvalshavit.effesvm.runtime.jit.JitTier;
 import com.yuvalshavit.effesvm.util.LambdaHelpers;
 
 public class EvmRunner {
 
-  public static final int STACK_SIZE = 500;
   public static final String DEBUGGER_OPTION = "-d";
+  public static final String ENGINE_PROPERTY = "engine";
 
   private EvmRunner() {
   }
@@ -69,29 +77,35 @@ public class EvmRunner {
       return;
     }
 
-    String classpath = System.getenv().getOrDefault("EFFES_CLASSPATH", ".");
-    Path classpathPath = FileSystems.getDefault().getPath(classpath);
-
-    Map<EffesModule.Id, List<String>> inputFiles = new HashMap<>(args.length);
-    try (DirectoryStream<Path> efctFile = Files.newDirectoryStream(classpathPath, "*.efct")) {
-      for (Path path : efctFile) {
-        List<String> lines = Files.lines(path).collect(Collectors.toList());
-        String moduleName = path.toFile().getName().replaceAll("\\.efct$", "");
-        EffesModule.Id id = new EffesModule.Id(moduleName);
-        inputFiles.put(id, lines);
-      }
-    }
     EffesModule.Id main = new EffesModule.Id(args[0]);
-    if (!inputFiles.containsKey(main)) {
-      throw new IllegalArgumentException(main + " not found among " + inputFiles.keySet());
-    }
     String[] argsToEffes = Arrays.copyOfRange(args, 1, args.length);
 
     EffesIo io = EffesIo.stdio();
-    int exitCode = run(inputFiles, main, argsToEffes, io, null, EvmRunner::createDebugServers);
+    Engine engine = Engine.fromProperty(System.getProperty(ENGINE_PROPERTY));
+    int exitCode = run(efctClasspath(), main, argsToEffes, io, null, EvmRunner::createDebugServers, engine);
     System.exit(exitCode);
   }
 
+  /**
+   * Reads modules from the directory given by the <code>EFFES_CLASSPATH</code> environment variable (default: the current directory), where each
+   * module is its own .efct file. Each file is only read when a module is looked up, and the lookup returns null if there's no such file.
+   */
+  public static Function<EffesModule.Id, List<String>> efctClasspath() {
+    String classpath = System.getenv().getOrDefault("EFFES_CLASSPATH", ".");
+    Path classpathPath = FileSystems.getDefault().getPath(classpath);
+    return id -> {
+      Path path = classpathPath.resolve(id.getName() + ".efct");
+      if (!Files.isRegularFile(path)) {
+        return null;
+      }
+      try {
+        return Files.readAllLines(path, StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
   public static int run(
     Map<EffesModule.Id, List<String>> inputFiles,
     EffesModule.Id main,
@@ -100,7 +114,50 @@ public class EvmRunner {
     Integer stackSize,
     Function<DebugServerContext, Iterable<DebugServer>> debugServerFactory)
   {
-    Map<EffesModule.Id, EffesModule> linkedModules = parseAndLink(io, inputFiles);
+    return run(inputFiles, main, argv, io, stackSize, debugServerFactory, Engine.OPERATIONS);
+  }
+
+  public static int run(
+    Map<EffesModule.Id, List<String>> inputFiles,
+    EffesModule.Id main,
+    String[] argv,
+    EffesIo io,
+    Integer stackSize,
+    Function<DebugServerContext, Iterable<DebugServer>> debugServerFactory,
+    Engine engine)
+  {
+    return runOutlined(Parser.parseAll(inputFiles), main, argv, io, stackSize, debugServerFactory, engine);
+  }
+
+  /**
+   * Like {@link #run(Map, EffesModule.Id, String[], EffesIo, Integer, Function, Engine)}, but only loads the modules that main can reach (see
+   * {@link ReachableModules}).
+   *
+   * @param moduleSource each module's efct lines, or null if there's no such module
+   */
+  public static int run(
+    Function<EffesModule.Id, List<String>> moduleSource,
+    EffesModule.Id main,
+    String[] argv,
+    EffesIo io,
+    Integer stackSize,
+    Function<DebugServerContext, Iterable<DebugServer>> debugServerFactory,
+    Engine engine)
+  {
+    return runOutlined(ReachableModules.outline(main, moduleSource), main, argv, io, stackSize, debugServerFactory, engine);
+  }
+
+  private static int runOutlined(
+    Map<EffesModule.Id, OutlinedModule> outline,
+    EffesModule.Id main,
+    String[] argv,
+    EffesIo io,
+    Integer stackSize,
+    Function<DebugServerContext, Iterable<DebugServer>> debugServerFactory,
+    Engine engine)
+  {
+    Function<String, OperationFactories.ReflectiveOperationBuilder> ops = operations(io);
+    Map<EffesModule.Id, EffesModule> linkedModules = linkUnoptimized(outline, ops);
 
     EffesModule linkedModule = linkedModules.get(main);
     EffesFunction mainFunction = linkedModule.getFunction(new EffesFunctionId(EfctScope.ofStatic(main), "main"));
@@ -110,72 +167,119 @@ public class EvmRunner {
     if (!mainFunction.hasRv()) {
       throw new EffesRuntimeException("::main must return a value");
     }
-    EffesState state = createStack(argv, stackSize, mainFunction);
-    runMain(debugServerFactory, linkedModules, state);
+    EffesState state = runMain(debugServerFactory, linkedModules, ops, mainFunction, argv, stackSize, engine);
     EffesNativeObject.EffesInteger exitCode = (EffesNativeObject.EffesInteger) state.getFinalPop();
     return exitCode.value;
   }
 
-  private static Map<EffesModule.Id, EffesModule> parseAndLink(EffesIo io, Map<EffesModule.Id, List<String>> inputFiles) {
-    // Parse and link the inputs
-    Map<EffesModule.Id, OutlinedModule> outline = new HashMap<>(inputFiles.size());
-    for (Map.Entry<EffesModule.Id, List<String>> inputFileEntry : inputFiles.entrySet()) {
-      List<String> inputFileLines = inputFileEntry.getValue();
-      EffesModule.Id moduleId = inputFileEntry.getKey();
-      OutlinedModule outlinedModule = Parser.parse(moduleId, inputFileLines);
-      outline.put(moduleId, outlinedModule);
+  public static Map<EffesModule.Id, EffesModule> parseAndLink(EffesIo io, Map<EffesModule.Id, List<String>> inputFiles) {
+    return link(io, Parser.parseAll(inputFiles));
+  }
+
+  /**
+   * Links outlined modules, and runs the link-time passes over them. Like outlining, linking spreads its work across functions, and reports the same
+   * errors regardless.
+   */
+  public static Map<EffesModule.Id, EffesModule> link(EffesIo io, Map<EffesModule.Id, OutlinedModule> outline) {
+    Function<String, OperationFactories.ReflectiveOperationBuilder> ops = operations(io);
+    Map<EffesModule.Id, EffesModule> linked = linkUnoptimized(outline, ops);
+    optimize(linked, ops, false);
+    return linked;
+  }
+
+  private static Function<String, OperationFactories.ReflectiveOperationBuilder> operations(EffesIo io) {
+    return OperationFactories.fromInstance(new EffesOpsImpl(io));
+  }
+
+  private static Map<EffesModule.Id, EffesModule> linkUnoptimized(
+    Map<EffesModule.Id, OutlinedModule> outline,
+    Function<String, OperationFactories.ReflectiveOperationBuilder> ops)
+  {
+    Map<EffesModule.Id, EffesModule> linked = EffesFunctionParser.parse(outline, ops);
+    StackVerifier.verifyAll(linked);
+    return linked;
+  }
+
+  /**
+   * Runs the link-time passes that rewrite ops. Inlining moves ops out of the functions they're from, and folding replaces or removes them; either
+   * would change the ops that a debug server reports on, so they only happen when there isn't one that sees each op.
+   */
+  private static void optimize(
+    Map<EffesModule.Id, EffesModule> linked,
+    Function<String, OperationFactories.ReflectiveOperationBuilder> ops,
+    boolean debugging)
+  {
+    if (!debugging && Inliner.enabledBySystemProperties()) {
+      Inliner.apply(linked, ops);
+    }
+    if (!debugging && ConstantFoldingPass.enabledBySystemProperties()) {
+      fold(linked, ops);
+    }
+    if (TailCallPass.enabledBySystemProperties()) {
+      TailCallPass.apply(linked);
     }
-    Function<String, OperationFactories.ReflectiveOperationBuilder> ops = OperationFactories.fromInstance(new EffesOpsImpl(io));
-    return EffesFunctionParser.parse(outline, ops);
   }
 
   private static EffesState createStack(String[] argv, Integer stackSize, EffesFunction mainFunction) {
     // Create the stack
     if (stackSize == null) {
-      stackSize = STACK_SIZE;
+      stackSize = EffesState.defaultStackSize();
     }
-    EffesState state = new EffesState(ProgramCounter.start(), stackSize, mainFunction.nVars() + 1); // +1 for argv
-
+    EffesState state = EffesState.forMain(argv, stackSize, mainFunction.nVars() + 1); // +1 for argv
     state.pc().restore(ProgramCounter.firstLineOfFunction(mainFunction));
-    // put argv in
-    state.push(LambdaHelpers.consumeAndReturn(
-      new EffesNativeObject.EffesArray(argv.length),
-      effesArgv -> IntStream.range(0, argv.length).forEach(i -> effesArgv.store(i, EffesNativeObject.forString(argv[i])))));
-    state.popToVar(0);
     return state;
   }
 
-  private static void runMain(
+  private static EffesState runMain(
     Function<DebugServerContext, Iterable<DebugServer>> debugServerFactory,
     Map<EffesModule.Id, EffesModule> linkedModules,
-    EffesState state)
+    Function<String, OperationFactories.ReflectiveOperationBuilder> ops,
+    EffesFunction mainFunction,
+    String[] argv,
+    Integer stackSize,
+    Engine engine)
   {
     DebugServerContext debugServerContext = new DebugServerContext(Collections.unmodifiableMap(linkedModules));
-    int steps = 1;
+    EffesState state = null;
+    SwitchInterpreter switchInterpreter = null;
+    OperationsInterpreter operationsInterpreter = null;
     try (DebugServer debugServer = createDebugServer(debugServerContext, debugServerFactory)) {
-      while (!state.pc().isAt(ProgramCounter.end())) {
-        Operation op = null;
-        PcMove next;
-        try {
-          debugServer.beforeAction(state);
-          op = state.pc().getOp();
-          next = op.apply(state);
-          ++steps;
-        } catch (Exception e) {
-          String message = "with pc " + state.pc();
-          String lastSeenLabel = state.lastSeenLabel();
-          if (lastSeenLabel != null) {
-            message += " after " + lastSeenLabel;
-          }
-          if (op != null) {
-            message += ": " + op;
-          }
-          throw new EffesRuntimeException(message, e);
-        }
-        next.accept(state.pc());
+      // a sampling server only sees the state now and then, so it doesn't need each op to be there as written
+      boolean debugging = debugServer != DebugServer.noop && !(debugServer instanceof SamplingDebugServer);
+      optimize(linkedModules, ops, debugging);
+      if (engine != Engine.OPERATIONS) {
+        DecodedFunction.decodeAll(linkedModules);
+      }
+      // Fused ops would hide their sequences' later ops from a debug server, so only fuse when there isn't one
+      if (engine == Engine.OPERATIONS && !debugging && FusionPass.enabledBySystemProperties()) {
+        fuse(linkedModules);
+      }
+      state = createStack(argv, stackSize, mainFunction); // after optimizing, which can change main's number of vars
+      if (engine != Engine.OPERATIONS) {
+        JitTier jit = (engine == Engine.JIT) ? JitTier.fromSystemProperties() : null;
+        switchInterpreter = new SwitchInterpreter(state, debugServer, jit);
+        switchInterpreter.run();
+      } else {
+        operationsInterpreter = new OperationsInterpreter(state, debugServer);
+        operationsInterpreter.run();
       }
     } catch (Exception e) {
-      System.err.printf("Error at step %d:%n", steps);
+      if (state == null && e instanceof RuntimeException) {
+        throw (RuntimeException) e; // the program never started, so there's no stack to report
+      }
+      int steps = -1;
+      if (switchInterpreter != null) {
+        steps = switchInterpreter.steps();
+      } else if (operationsInterpreter != null) {
+        steps = operationsInterpreter.steps();
+      }
+      if (steps < 0) {
+        // the fast loops don't count steps, so say where instead
+        String lastSeenLabel = state.lastSeenLabel();
+        System.err.printf("Error at %s%s:%n", state.pc(), lastSeenLabel == null ? "" : (" after " + lastSeenLabel));
+      } else {
+        System.err.printf("Error at step %d:%n", steps);
+      }
       for (ProgramCounter.State frame : state.getStackTrace()) {
         EffesFunction function = frame.function();
         Operation functionOp = function.opAt(frame.pc());
@@ -191,6 +295,45 @@ public class EvmRunner {
       System.err.print("Due to: ");
       e.printStackTrace();
     }
+    return state;
+  }
+
+  private static void fold(Map<EffesModule.Id, EffesModule> linkedModules, Function<String, OperationFactories.ReflectiveOperationBuilder> ops) {
+    Map<EffesFunctionId, ConstantFoldingPass.OpCounts> folded = ConstantFoldingPass.apply(linkedModules, ops);
+    if (Boolean.getBoolean(ConstantFoldingPass.REPORT_PROPERTY)) {
+      System.err.printf("folded %d functions%n", folded.size());
+      folded.forEach((function, counts) -> System.err.printf("  %s: %s ops%n", function, counts));
+    }
+  }
+
+  private static void fuse(Map<EffesModule.Id, EffesModule> linkedModules) {
+    Map<EffesFunctionId, Integer> fusions = FusionPass.apply(linkedModules);
+    if (Boolean.getBoolean(FusionPass.REPORT_PROPERTY)) {
+      System.err.printf("fused %d op sequences%n", fusions.values().stream().mapToInt(Integer::intValue).sum());
+      fusions.forEach((function, count) -> System.err.printf("  %s: %d%n", function, count));
+    }
+  }
+
+  public enum Engine {
+    /** Runs each op's {@link Operation} directly through an {@link OperationsInterpreter}, after fusing common op sequences via {@link FusionPass}. */
+    OPERATIONS,
+    /** Runs each function's {@link DecodedFunction} through a {@link SwitchInterpreter}. */
+    SWITCH,
+    /** Like {@link #SWITCH}, but compiles hot functions to JVM bytecode via a {@link JitTier}. */
+    JIT,
+    ;
+
+    static Engine fromProperty(String value) {
+      if (value == null || value.isEmpty()) {
+        return OPERATIONS;
+      }
+      try {
+        return valueOf(value.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        System.err.printf("unknown engine %s; using %s%n", value, OPERATIONS);
+        return OPERATIONS;
+      }
+    }
   }
 
   private static DebugServer createDebugServer(DebugServerContext context, Function<DebugServerContext, Iterable<DebugServer>> debugServerFactory) {
@@ -204,6 +347,8 @@ public class EvmRunner {
     List<DebugServer> result = new ArrayList<>();
     result.add(getRemoteDebugger(context));
     result.add(getCodeCoverage(context, System.getProperty("coverage")));
+    result.add(SamplingProfiler.fromSystemProperties());
+    result.add(InstrumentingProfiler.fromSystemProperties());
     return result;
   }
 
@@ -211,7 +356,8 @@ public class EvmRunner {
     if (outFile == null || outFile.isEmpty()) {
       return null;
     } else {
-      return new CodeCoverageDebugServer(context, outFile);
+      boolean report = Boolean.parseBoolean(System.getProperty(CodeCoverageDebugServer.REPORT_PROPERTY, "true"));
+      return new CodeCoverageDebugServer(context, outFile, report);
     }
   }
 
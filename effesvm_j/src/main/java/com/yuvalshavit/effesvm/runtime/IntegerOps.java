@@ -0,0 +1,56 @@
+package com.yuvalshavit.effesvm.runtime;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * The <code>call_Integer</code> arithmetic and comparison ops, by opcode. {@link EffesOpsImpl} builds those ops from these, and link-time passes use
+ * them to evaluate the ops ahead of time.
+ *
+ * The two kinds take their operands in opposite orders. Arithmetic pops its rhs first, so the first-pushed value is the lhs; comparisons pop their lhs
+ * first, so the most recently pushed value is the lhs. The interpreters and compilers that evaluate these ops inline rely on that too.
+ */
+public class IntegerOps {
+  public static final IntBinaryOperator ADD = (l, r) -> l + r;
+  public static final IntBinaryOperator SUB = (l, r) -> l - r;
+  public static final IntBinaryOperator MULT = (l, r) -> l * r;
+  public static final IntBinaryOperator DIV = (l, r) -> l / r;
+
+  public static final Comparison LT = (l, r) -> l < r;
+  public static final Comparison LE = (l, r) -> l <= r;
+  public static final Comparison EQ = (l, r) -> l == r;
+  public static final Comparison NE = (l, r) -> l != r;
+  public static final Comparison GE = (l, r) -> l >= r;
+  public static final Comparison GT = (l, r) -> l > r;
+
+  public static final Map<String,IntBinaryOperator> ARITHMETIC = createArithmetic();
+  public static final Map<String,Comparison> COMPARISONS = createComparisons();
+
+  private IntegerOps() {}
+
+  public interface Comparison {
+    boolean cmp(int lhs, int rhs);
+  }
+
+  private static Map<String,IntBinaryOperator> createArithmetic() {
+    Map<String,IntBinaryOperator> map = new HashMap<>();
+    map.put("call_Integer:add", ADD);
+    map.put("call_Integer:sub", SUB);
+    map.put("call_Integer:mult", MULT);
+    map.put("call_Integer:div", DIV);
+    return Collections.unmodifiableMap(map);
+  }
+
+  private static Map<String,Comparison> createComparisons() {
+    Map<String,Comparison> map = new HashMap<>();
+    map.put("call_Integer:lt", LT);
+    map.put("call_Integer:le", LE);
+    map.put("call_Integer:eq", EQ);
+    map.put("call_Integer:ne", NE);
+    map.put("call_Integer:ge", GE);
+    map.put("call_Integer:gt", GT);
+    return Collections.unmodifiableMap(map);
+  }
+}
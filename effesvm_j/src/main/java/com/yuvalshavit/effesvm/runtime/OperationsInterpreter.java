@@ -0,0 +1,101 @@
+package com.yuvalshavit.effesvm.runtime;
+
+import static java.util.Objects.requireNonNull;
+
+import com.yuvalshavit.effesvm.ops.Operation;
+
+/**
+ * The interpreter loop for {@link EvmRunner.Engine#OPERATIONS}, which runs each op's {@link Operation} directly.
+ *
+ * There are two loops. The fast loop runs when there's no debug server: it doesn't report anything, count steps or set up anything per op. The
+ * instrumented loop calls the debug server before each op, and counts steps for error messages.
+ *
+ * A {@link SamplingDebugServer} also runs in the fast loop. The loop only asks it whether it wants a sample when an op moves the pc anywhere other than
+ * the next op, which is to say on jumps, calls and returns; every loop and recursion goes through one of those, so a long-running program is still
+ * sampled throughout. Samples are taken at those ops' destinations.
+ */
+public class OperationsInterpreter {
+  private final EffesState state;
+  private final DebugServer debugServer;
+  private int steps = 1;
+
+  public OperationsInterpreter(EffesState state, DebugServer debugServer) {
+    this.state = state;
+    this.debugServer = requireNonNull(debugServer, "debugServer");
+  }
+
+  /**
+   * The number of steps taken so far, or -1 if that isn't known because the program ran in the fast loop.
+   */
+  public int steps() {
+    return steps;
+  }
+
+  /**
+   * Runs from the current pc until the outermost frame returns.
+   */
+  public void run() {
+    if (debugServer == DebugServer.noop) {
+      steps = -1;
+      runFast(null);
+    } else if (debugServer instanceof SamplingDebugServer) {
+      steps = -1;
+      runFast((SamplingDebugServer) debugServer);
+    } else {
+      runInstrumented();
+    }
+  }
+
+  private void runFast(SamplingDebugServer sampler) {
+    final EffesState state = this.state;
+    final ProgramCounter pc = state.pc();
+    final PcMove incrementing = PcMove.next();
+    Operation op = null;
+    try {
+      while (!pc.isAt(ProgramCounter.end())) {
+        op = pc.getOp();
+        PcMove next = op.apply(state);
+        op = null; // from here on, a failure isn't the op's
+        next.accept(pc);
+        if (next != incrementing && sampler != null && sampler.sampleRequested() && !pc.isAt(ProgramCounter.end())) {
+          sampler.sample(state);
+        }
+      }
+    } catch (RuntimeException e) {
+      if (op == null) {
+        throw e;
+      }
+      throw opFailed(op, e);
+    }
+  }
+
+  private void runInstrumented() {
+    final EffesState state = this.state;
+    final ProgramCounter pc = state.pc();
+    while (!pc.isAt(ProgramCounter.end())) {
+      Operation op = null;
+      PcMove next;
+      try {
+        debugServer.beforeAction(state);
+        op = pc.getOp();
+        next = op.apply(state);
+        ++steps;
+      } catch (Exception e) {
+        throw opFailed(op, e);
+      }
+      next.accept(pc);
+    }
+  }
+
+  private EffesRuntimeException opFailed(Operation op, Exception e) {
+    String message = "with pc " + state.pc();
+    String lastSeenLabel = state.lastSeenLabel();
+    if (lastSeenLabel != null) {
+      message += " after " + lastSeenLabel;
+    }
+    if (op != null) {
+      message += ": " + op;
+    }
+    return new EffesRuntimeException(message, e);
+  }
+}
@@ -3,29 +3,36 @@ package com.yuvalshavit.effesvm.runtime;
 import java.util.function.Consumer;
 
 import com.yuvalshavit.effesvm.load.EffesFunction;
-import com.yuvalshavit.effesvm.ops.Operation;
 
 public class PcMove implements Consumer<ProgramCounter> {
-  private final Consumer<ProgramCounter> delegate;
+  private static final int NEXT_TARGET = -1;
+  private static final int STAY_TARGET = -2;
+
+  private final EffesFunction function; // null for moves within the current function
+  private final int target;
   private final String description;
 
-  private static final PcMove NEXT = new PcMove(pc -> pc.setOpIdx(pc.getOpIdx() + 1), "increment");
-  private static final PcMove STAY = new PcMove(pc -> {}, "no change");
+  private static final PcMove NEXT = new PcMove(null, NEXT_TARGET, "increment");
+  private static final PcMove STAY = new PcMove(null, STAY_TARGET, "no change");
 
-  private PcMove(Consumer<ProgramCounter> delegate, String description) {
-    this.delegate = delegate;
+  private PcMove(EffesFunction function, int target, String description) {
+    this.function = function;
+    this.target = target;
     this.description = description;
   }
 
   public static PcMove absolute(int pc) {
-    return new PcMove(pcObj -> pcObj.setOpIdx(pc), "to " + pc);
+    if (pc < 0) {
+      throw new IllegalArgumentException("out of range: " + pc);
+    }
+    return new PcMove(null, pc, "to " + pc);
   }
 
   public static PcMove firstCallIn(EffesFunction function) {
     if (function == null) {
       throw new IllegalArgumentException();
     }
-    return new PcMove(pc -> pc.set(function, 0), "start of " + function);
+    return new PcMove(function, 0, "start of " + function);
   }
 
   public static PcMove next() {
@@ -38,7 +45,13 @@ public class PcMove implements Consumer<ProgramCounter> {
 
   @Override
   public void accept(ProgramCounter pc) {
-    delegate.accept(pc);
+    if (function != null) {
+      pc.set(function, target);
+    } else if (target >= 0) {
+      pc.setOpIdx(target);
+    } else if (target == NEXT_TARGET) {
+      pc.setOpIdx(pc.getOpIdx() + 1);
+    }
   }
 
   @Override
@@ -84,6 +84,15 @@ public class ProgramCounter {
     this.state.restoreFrom(state);
   }
 
+  /**
+   * Equivalent to <code>restore(stateAt(function, pc))</code>, but without creating the intermediate State. Like {@link #restore(State)}, this does
+   * not validate the pc.
+   */
+  void restore(EffesFunction function, int pc) {
+    state.function = function;
+    state.pc = pc;
+  }
+
   @Override
   public String toString() {
     return state.toString();
@@ -93,6 +102,10 @@ public class ProgramCounter {
     return new State(function, 0);
   }
 
+  static State stateAt(EffesFunction function, int pc) {
+    return new State(function, pc);
+  }
+
   public boolean isAt(State state) {
     return this.state.equals(state);
   }
@@ -149,7 +162,9 @@ public class ProgramCounter {
       } else if (function == null) {
         return "<no function>";
       } else {
-        return function.id().toString("@" + pc);
+        OpInfo info = pc >= 0 && pc < function.nOps() ? function.opAt(pc).info() : null;
+        String inlined = info == null || info.inlinedFrom() == null ? "" : (" inlined from " + info.inlinedFrom());
+        return function.id().toString("@" + pc + inlined);
       }
     }
   }
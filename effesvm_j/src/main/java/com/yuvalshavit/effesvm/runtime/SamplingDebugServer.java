@@ -0,0 +1,26 @@
+package com.yuvalshavit.effesvm.runtime;
+
+/**
+ * A debug server that only needs to see the state every so often, rather than before each op. The interpreters can ask it whether it wants a sample
+ * wherever that's cheap, instead of reporting every op to it, and it doesn't need the linker to skip any of its optimizations.
+ *
+ * Its {@link #beforeAction} just takes a sample if one was asked for, so it also works anywhere a debug server sees each op.
+ */
+public interface SamplingDebugServer extends DebugServer {
+  /**
+   * Whether the server wants a sample. This can be called often, so it should be about as cheap as reading a volatile field.
+   */
+  boolean sampleRequested();
+
+  /**
+   * Takes a sample of the state, which is at an op boundary.
+   */
+  void sample(EffesState state);
+
+  @Override
+  default void beforeAction(EffesState state) {
+    if (sampleRequested()) {
+      sample(state);
+    }
+  }
+}
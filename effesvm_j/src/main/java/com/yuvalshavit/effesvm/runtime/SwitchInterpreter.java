@@ -0,0 +1,477 @@
+package com.yuvalshavit.effesvm.runtime;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.runtime.jit.CompiledFunction;
+import com.yuvalshavit.effesvm.runtime.jit.JitTier;
+
+/**
+ * An interpreter loop that runs each function's {@link DecodedFunction} through a single switch, rather than dispatching through each
+ * {@link Operation} and its {@link PcMove}.
+ *
+ * The current function and pc are kept in locals. They're only written back to the state's {@link ProgramCounter} when something else needs to see them:
+ * before a call (so that the frame saves the right return address), before any op that's run generically, before the debug server sees the state, and
+ * when an op fails.
+ *
+ * If there's a {@link JitTier}, calls go through it, and any call site whose callee has been compiled is patched to call the compiled code directly.
+ * Compiled code calls back into this interpreter (via {@link #call} and {@link #callInstance}) for any callee that hasn't been compiled, so the
+ * interpreter is always the fallback. Each entry from compiled code runs its own {@link #execute} loop until that frame returns. Compiled code hands
+ * its tail calls back to whoever ran it (see {@link CompiledFunction#run}), so that they don't grow the JVM stack. Other calls from compiled code do
+ * grow it, so once {@link JitTier#maxNesting} compiled functions are running, callees are interpreted even if they've been compiled; that way, a
+ * deep recursion only grows the Effes stack, just as it would in the interpreter.
+ *
+ * Functions that passed the {@link com.yuvalshavit.effesvm.load.StackVerifier StackVerifier} use {@link EffesState}'s unchecked primitives for the
+ * opcodes handled here. Each such frame reserves its max stack depth when it's opened, which stands in for the per-push overflow checks.
+ */
+public class SwitchInterpreter {
+  private final EffesState state;
+  private final DebugServer debugServer;
+  private final JitTier jit;
+  private final int maxNesting;
+  private int nesting;
+  private int steps = 1;
+
+  public SwitchInterpreter(EffesState state, DebugServer debugServer) {
+    this(state, debugServer, null);
+  }
+
+  /**
+   * @param jit the JIT tier to use, or null to only interpret. The JIT tier is ignored if there's a debug server, since compiled code doesn't report
+   * each step to it. That includes a {@link SamplingDebugServer}, which this interpreter reports each op to like any other; only
+   * {@link OperationsInterpreter} checks for samples on its fast path.
+   */
+  public SwitchInterpreter(EffesState state, DebugServer debugServer, JitTier jit) {
+    this.state = state;
+    this.debugServer = debugServer;
+    this.jit = debugServer == DebugServer.noop ? jit : null;
+    this.maxNesting = this.jit == null ? 0 : this.jit.maxNesting();
+  }
+
+  /**
+   * The number of steps taken so far, not counting any taken within compiled code.
+   */
+  public int steps() {
+    return steps;
+  }
+
+  /**
+   * Runs from the current pc until the outermost frame returns.
+   */
+  public void run() {
+    EffesFunction start = state.pc().getCurrentFunction();
+    if (start.isVerified()) {
+      state.reserveLocalStack(start.maxStackDepth());
+    }
+    execute(state.frameDepth());
+    state.pc().restore(ProgramCounter.end());
+  }
+
+  /**
+   * Calls the given function from compiled code. The caller's args must already be on the stack.
+   */
+  public void call(EffesFunction caller, int callerPc, EffesFunction callee) {
+    state.pc().set(caller, callerPc);
+    openFrame(callee, callee.nArgs());
+    enter(callee);
+  }
+
+  /**
+   * Calls the given instance function from compiled code. The instance and the caller's args must already be on the stack.
+   */
+  public void callInstance(EffesFunction caller, int callerPc, EffesFunction callee, EffesType instanceType) {
+    state.checkInstance(callee.nArgs(), instanceType);
+    state.pc().set(caller, callerPc);
+    openFrame(callee, callee.nArgs() + 1);
+    enter(callee);
+  }
+
+  /**
+   * Replaces the current frame with one for the given callee, for a tail call. The callee's args (and instance, if it's an instance function) must be
+   * the only things on the current local stack.
+   *
+   * @param instanceType the type that the instance must have, or null if the callee is a static function
+   */
+  public void replaceFrame(EffesFunction callee, EffesType instanceType) {
+    int nArgs = callee.nArgs();
+    if (instanceType != null) {
+      state.checkInstance(nArgs, instanceType);
+      ++nArgs;
+    }
+    state.tailCallFrame(nArgs, callee.hasRv(), callee.nVars());
+    if (callee.isVerified()) {
+      state.reserveLocalStack(callee.maxStackDepth());
+    }
+  }
+
+  private void openFrame(EffesFunction callee, int nArgs) {
+    state.openFrame(nArgs, callee.hasRv(), callee.nVars());
+    if (callee.isVerified()) {
+      state.reserveLocalStack(callee.maxStackDepth());
+    }
+  }
+
+  private void enter(EffesFunction callee) {
+    CompiledFunction compiled = compiledForm(callee);
+    if (compiled != null) {
+      callee = runCompiled(compiled);
+      if (callee == null) {
+        return;
+      }
+    }
+    state.pc().restore(callee, 0);
+    execute(state.frameDepth());
+  }
+
+  /**
+   * Runs compiled code, and then any compiled functions that it tail calls (see {@link CompiledFunction#run}).
+   *
+   * @return null if the frame was closed, or else the uncompiled function that the frame was handed off to, which still needs to be interpreted
+   */
+  private EffesFunction runCompiled(CompiledFunction compiled) {
+    ++nesting;
+    try {
+      EffesFunction next;
+      while ((next = compiled.run(state, this)) != null) {
+        compiled = jit.onInvoke(next);
+        if (compiled == null) {
+          return next;
+        }
+      }
+      return null;
+    } finally {
+      --nesting;
+    }
+  }
+
+  /**
+   * Returns the callee's compiled form, if it has one and there's room on the JVM stack to run it. Otherwise, it should be interpreted.
+   */
+  private CompiledFunction compiledForm(EffesFunction callee) {
+    return nesting < maxNesting ? jit.onInvoke(callee) : null;
+  }
+
+  /**
+   * Runs from the current pc until the frame at the given depth returns.
+   */
+  private void execute(int exitDepth) {
+    final EffesState state = this.state;
+    final DebugServer debugServer = this.debugServer;
+    final boolean hooked = debugServer != DebugServer.noop;
+    ProgramCounter regPc = state.pc();
+    EffesFunction function = regPc.getCurrentFunction();
+    int pc = regPc.getOpIdx();
+    int[] code = function.decoded().code;
+    Object[] constants = function.decoded().constants;
+    boolean verified = function.isVerified();
+    int steps = 0;
+    try {
+      while (true) {
+        if (hooked) {
+          regPc.set(function, pc);
+          debugServer.beforeAction(state);
+        }
+        int operand = code[pc * 2 + 1];
+        switch (code[pc * 2]) {
+          case DecodedFunction.PUSH_CONST:
+            if (verified) {
+              state.pushUnchecked((EffesRef<?>) constants[operand]);
+            } else {
+              state.push((EffesRef<?>) constants[operand]);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.PUSH_INT:
+            if (verified) {
+              state.pushIntUnchecked(operand);
+            } else {
+              state.pushInt(operand);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.POP:
+            if (verified) {
+              state.popUnchecked();
+            } else {
+              state.pop();
+            }
+            ++pc;
+            break;
+          case DecodedFunction.COPY:
+            if (verified) {
+              state.dupUnchecked();
+            } else {
+              state.dup();
+            }
+            ++pc;
+            break;
+          case DecodedFunction.PVAR:
+            if (verified) {
+              state.pushVarUnchecked(operand);
+            } else {
+              state.pushVar(operand);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.SVAR:
+            if (verified) {
+              state.popToVarUnchecked(operand);
+            } else {
+              state.popToVar(operand);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.SVAR_COPY:
+            if (verified) {
+              state.copyToVarUnchecked(operand);
+            } else {
+              state.copyToVar(operand);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.GOTO:
+            pc = operand;
+            break;
+          case DecodedFunction.GOIF:
+            pc = (verified ? state.popBooleanUnchecked() : state.popBoolean()) ? operand : (pc + 1);
+            break;
+          case DecodedFunction.GOFI:
+            pc = (verified ? state.popBooleanUnchecked() : state.popBoolean()) ? (pc + 1) : operand;
+            break;
+          case DecodedFunction.CALL_INSTANCE:
+          case DecodedFunction.CALL: {
+            EffesFunction callee = (EffesFunction) constants[operand];
+            int nArgs = callee.nArgs();
+            boolean isInstance = code[pc * 2] == DecodedFunction.CALL_INSTANCE;
+            if (isInstance) {
+              state.checkInstance(nArgs, (EffesType) constants[operand + 1]);
+              ++nArgs;
+            }
+            regPc.set(function, pc);
+            openFrame(callee, nArgs);
+            CompiledFunction compiled = compiledForm(callee);
+            if (compiled != null) {
+              // patch this call site, so that it can skip the JIT tier from now on
+              code[pc * 2] = isInstance ? DecodedFunction.CALL_INSTANCE_COMPILED : DecodedFunction.CALL_COMPILED;
+              callee = runCompiled(compiled);
+              if (callee == null) {
+                ++pc;
+                break;
+              }
+            }
+            function = callee;
+            code = callee.decoded().code;
+            constants = callee.decoded().constants;
+            verified = callee.isVerified();
+            pc = 0;
+            break;
+          }
+          case DecodedFunction.CALL_INSTANCE_COMPILED:
+          case DecodedFunction.CALL_COMPILED: {
+            EffesFunction callee = (EffesFunction) constants[operand];
+            int nArgs = callee.nArgs();
+            if (code[pc * 2] == DecodedFunction.CALL_INSTANCE_COMPILED) {
+              state.checkInstance(nArgs, (EffesType) constants[operand + 1]);
+              ++nArgs;
+            }
+            regPc.set(function, pc);
+            openFrame(callee, nArgs);
+            if (nesting < maxNesting) {
+              callee = runCompiled(callee.decoded().compiled());
+            }
+            if (callee == null) {
+              ++pc;
+              break;
+            }
+            function = callee;
+            code = callee.decoded().code;
+            constants = callee.decoded().constants;
+            verified = callee.isVerified();
+            pc = 0;
+            break;
+          }
+          case DecodedFunction.TAIL_CALL_INSTANCE:
+          case DecodedFunction.TAIL_CALL: {
+            EffesFunction callee = (EffesFunction) constants[operand];
+            replaceFrame(callee, code[pc * 2] == DecodedFunction.TAIL_CALL_INSTANCE ? (EffesType) constants[operand + 1] : null);
+            CompiledFunction compiled = compiledForm(callee);
+            if (compiled != null) {
+              callee = runCompiled(compiled);
+            }
+            if (callee != null) {
+              function = callee;
+              code = callee.decoded().code;
+              constants = callee.decoded().constants;
+              verified = callee.isVerified();
+              pc = 0;
+              break;
+            }
+            // The compiled code closed the frame it took over, so from here it's just as if this function had returned.
+            if (state.frameDepth() < exitDepth) {
+              this.steps += steps + 1;
+              return;
+            }
+            function = regPc.getCurrentFunction();
+            code = function.decoded().code;
+            constants = function.decoded().constants;
+            verified = function.isVerified();
+            pc = regPc.getOpIdx() + 1;
+            break;
+          }
+          case DecodedFunction.RTRN:
+            if (verified) {
+              state.closeFrameUnchecked();
+            } else {
+              state.closeFrame();
+            }
+            if (state.frameDepth() < exitDepth) {
+              this.steps += steps + 1;
+              return;
+            }
+            function = regPc.getCurrentFunction();
+            code = function.decoded().code;
+            constants = function.decoded().constants;
+            verified = function.isVerified();
+            pc = regPc.getOpIdx() + 1;
+            break;
+          case DecodedFunction.IADD:
+            if (verified) {
+              int rhs = state.popIntUnchecked();
+              state.pushIntUnchecked(state.popIntUnchecked() + rhs);
+            } else {
+              int rhs = state.popInt();
+              state.pushInt(state.popInt() + rhs);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.ISUB:
+            if (verified) {
+              int rhs = state.popIntUnchecked();
+              state.pushIntUnchecked(state.popIntUnchecked() - rhs);
+            } else {
+              int rhs = state.popInt();
+              state.pushInt(state.popInt() - rhs);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.IMUL:
+            if (verified) {
+              int rhs = state.popIntUnchecked();
+              state.pushIntUnchecked(state.popIntUnchecked() * rhs);
+            } else {
+              int rhs = state.popInt();
+              state.pushInt(state.popInt() * rhs);
+            }
+            ++pc;
+            break;
+          case DecodedFunction.IDIV:
+            if (verified) {
+              int rhs = state.popIntUnchecked();
+              state.pushIntUnchecked(state.popIntUnchecked() / rhs);
+            } else {
+              int rhs = state.popInt();
+              state.pushInt(state.popInt() / rhs);
+            }
+            ++pc;
+            break;
+          // comparisons pop their lhs first (see IntegerOps)
+          case DecodedFunction.ILT:
+            if (verified) {
+              state.pushBooleanUnchecked(state.popIntUnchecked() < state.popIntUnchecked());
+            } else {
+              state.pushBoolean(state.popInt() < state.popInt());
+            }
+            ++pc;
+            break;
+          case DecodedFunction.ILE:
+            if (verified) {
+              state.pushBooleanUnchecked(state.popIntUnchecked() <= state.popIntUnchecked());
+            } else {
+              state.pushBoolean(state.popInt() <= state.popInt());
+            }
+            ++pc;
+            break;
+          case DecodedFunction.IEQ:
+            if (verified) {
+              state.pushBooleanUnchecked(state.popIntUnchecked() == state.popIntUnchecked());
+            } else {
+              state.pushBoolean(state.popInt() == state.popInt());
+            }
+            ++pc;
+            break;
+          case DecodedFunction.INE:
+            if (verified) {
+              state.pushBooleanUnchecked(state.popIntUnchecked() != state.popIntUnchecked());
+            } else {
+              state.pushBoolean(state.popInt() != state.popInt());
+            }
+            ++pc;
+            break;
+          case DecodedFunction.IGE:
+            if (verified) {
+              state.pushBooleanUnchecked(state.popIntUnchecked() >= state.popIntUnchecked());
+            } else {
+              state.pushBoolean(state.popInt() >= state.popInt());
+            }
+            ++pc;
+            break;
+          case DecodedFunction.IGT:
+            if (verified) {
+              state.pushBooleanUnchecked(state.popIntUnchecked() > state.popIntUnchecked());
+            } else {
+              state.pushBoolean(state.popInt() > state.popInt());
+            }
+            ++pc;
+            break;
+          case DecodedFunction.GENERIC: {
+            regPc.set(function, pc);
+            PcMove next = ((Operation) constants[operand]).apply(state);
+            if (next == PcMove.next()) {
+              ++pc;
+            } else {
+              next.accept(regPc);
+              function = regPc.getCurrentFunction();
+              code = function.decoded().code;
+              constants = function.decoded().constants;
+              verified = function.isVerified();
+              pc = regPc.getOpIdx();
+            }
+            break;
+          }
+          default:
+            throw new IllegalStateException("unknown opcode: " + code[pc * 2]);
+        }
+        ++steps;
+      }
+    } catch (Exception e) {
+      this.steps += steps;
+      throw opFailed(state, function, pc, e);
+    }
+  }
+
+  /**
+   * Creates the exception for an op that failed, and points the state's pc at that op.
+   *
+   * If the failure came from a nested frame (whether interpreted or compiled), it's already been reported against the op that actually failed. In that
+   * case, this just returns it as-is, and leaves the pc alone.
+   */
+  public static EffesRuntimeException opFailed(EffesState state, EffesFunction function, int pc, Exception e) {
+    if (e instanceof OpFailedException) {
+      return (OpFailedException) e;
+    }
+    ProgramCounter regPc = state.pc();
+    regPc.set(function, pc);
+    String message = "with pc " + regPc;
+    String lastSeenLabel = state.lastSeenLabel();
+    if (lastSeenLabel != null) {
+      message += " after " + lastSeenLabel;
+    }
+    message += ": " + function.opAt(pc);
+    return new OpFailedException(message, e);
+  }
+
+  private static class OpFailedException extends EffesRuntimeException {
+    OpFailedException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -1,13 +1,17 @@
 package com.yuvalshavit.effesvm.runtime.coverage;
 
-import java.io.File;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
@@ -22,19 +26,38 @@ import com.yuvalshavit.effesvm.runtime.EffesState;
 import com.yuvalshavit.effesvm.runtime.ProgramCounter;
 import com.yuvalshavit.effesvm.util.Average;
 
+/**
+ * Counts how many times each op runs, and writes a report of that when it's closed. Counts are kept from one run to the next in a cumulative data
+ * file, as long as the function hasn't changed. Each run adds its own counts to that through a {@link CoverageStore}, so runs that share an output file
+ * base can run at the same time.
+ *
+ * Writing a run's counts is cheap, but merging them into the cumulative data means reading every shard written since the last merge, so only runs
+ * that write the report merge. Many runs that share an output file base can skip the report (see {@link #REPORT_PROPERTY}), and leave the merge to a
+ * last run that writes it.
+ *
+ * The counters live on each {@link EffesFunction} (see {@link EffesFunction#hitCounts()}), so counting an op is just an array increment.
+ */
 public class CodeCoverageDebugServer implements DebugServer {
 
+  /** Set this to <code>false</code> to only write this run's counts, without merging them or writing the report. */
+  public static final String REPORT_PROPERTY = "coverage.report";
   private static final String HASH_ALGORITHM = "SHA-1";
   private static final String REPORT_SUFFIX = ".txt";
   private static final String CUMULATIVE_DATA_SUFFIX = ".data";
 
   private final String outFileBase;
-  private final FunctionDataSummaries previous;
+  private final CoverageStore store;
+  private final boolean report;
   private final Map<EffesFunctionId, FunctionData> functions;
 
   public CodeCoverageDebugServer(DebugServerContext context, String outFileBase) {
+    this(context, outFileBase, true);
+  }
+
+  public CodeCoverageDebugServer(DebugServerContext context, String outFileBase, boolean report) {
     this.outFileBase = outFileBase;
-    previous = FunctionDataSummaries.read(cumulativeFileNme(outFileBase));
+    this.report = report;
+    store = new CoverageStore(outFileBase);
     MessageDigest messageDigest;
     try {
       messageDigest = MessageDigest.getInstance(HASH_ALGORITHM);
@@ -43,7 +66,7 @@ public class CodeCoverageDebugServer implements DebugServer {
     }
     functions = context.modules().values().stream().flatMap(m -> m.functions().stream()).collect(Collectors.toMap(
       EffesFunction::id,
-      f -> createFunctionData(f, previous, messageDigest)
+      f -> createFunctionData(f, messageDigest)
     ));
   }
 
@@ -51,67 +74,74 @@ public class CodeCoverageDebugServer implements DebugServer {
     return outFileBase + CUMULATIVE_DATA_SUFFIX;
   }
 
-  private static FunctionData createFunctionData(EffesFunction f, FunctionDataSummaries previous, MessageDigest digest) {
+  private static FunctionData createFunctionData(EffesFunction f, MessageDigest digest) {
     digest.reset();
     for (int i = 0; i < f.nOps(); ++i) {
       digest.update(f.opAt(i).info().toString().getBytes(StandardCharsets.UTF_8));
     }
     String hash = digest.getAlgorithm() + '$' + Base64.getEncoder().encodeToString(digest.digest());
-
-    FunctionDataSummary previousData = previous.get(f.id());
-    boolean[] seenOps = previousData != null && previousData.seenOps.length == f.nOps() && previousData.hash.equals(hash)
-      ? previousData.seenOps
-      : new boolean[f.nOps()];
-    return new FunctionData(hash, seenOps, f);
+    long[] hitCounts = new long[f.nOps()];
+    f.setHitCounts(hitCounts);
+    return new FunctionData(hash, hitCounts, f);
   }
 
   @Override
   public void beforeAction(EffesState state) {
     ProgramCounter pc = state.pc();
-    boolean[] ops = functions.get(pc.getCurrentFunction().id()).seenOps;
-    ops[pc.getOpIdx()] = true;
+    ++pc.getCurrentFunction().hitCounts()[pc.getOpIdx()];
   }
 
   @Override
   public void close() throws IOException {
-    writeCumulativeData();
-    writeReport();
-  }
-
-  private void writeCumulativeData() {
-    previous.update(functions);
-    previous.write();
+    store.writeShard(functions);
+    if (report) {
+      writeReport(store.merge());
+    }
   }
 
-  private void writeReport() throws IOException {
-    Report report = generateReport();
-    try (FileWriter fw = new FileWriter(new File(outFileBase + REPORT_SUFFIX));
-         PrintWriter printer = new PrintWriter(fw))
-    {
-      report.print(printer);
+  private void writeReport(FunctionDataSummaries cumulative) throws IOException {
+    Report report = generateReport(cumulative);
+    // other runs may be writing the same report, so write it whole and then move it into place
+    Path reportFile = Paths.get(outFileBase + REPORT_SUFFIX).toAbsolutePath();
+    Path temp = Files.createTempFile(reportFile.getParent(), reportFile.getFileName().toString(), ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+           PrintWriter printer = new PrintWriter(writer))
+      {
+        report.print(printer);
+      }
+      Files.move(temp, reportFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
     }
   }
 
-  private Report generateReport() {
+  private Report generateReport(FunctionDataSummaries cumulative) {
     Average overall = new Average();
     NavigableMap<EffesFunctionId,Average> functionsAverages = new TreeMap<>();
+    Map<EffesFunctionId,FunctionData> reported = new HashMap<>();
     NavigableMap<EffesModule.Id,Average> modulesAverages = new TreeMap<>();
-    functions.forEach((functionId, functionData) -> {
-      boolean[] ops = functionData.seenOps;
-      int nSeen = countSeen(ops);
-      int nOps = ops.length;
+    functions.forEach((functionId, thisRun) -> {
+      // this run's counts are in the cumulative data, unless another run has since merged counts for a different version of the function
+      FunctionDataSummary merged = cumulative.get(functionId);
+      FunctionData functionData = merged != null && merged.hash.equals(thisRun.hash) && merged.hitCounts.length == thisRun.hitCounts.length
+        ? new FunctionData(thisRun.hash, merged.hitCounts, thisRun.function)
+        : thisRun;
+      reported.put(functionId, functionData);
+      int nSeen = countSeen(functionData.hitCounts);
+      int nOps = functionData.hitCounts.length;
       functionsAverages.put(functionId, new Average().add(nSeen, nOps));
       EffesModule.Id moduleId = functionId.getScope().getModuleId();
       modulesAverages.computeIfAbsent(moduleId, x -> new Average()).add(nSeen, nOps);
       overall.add(nSeen, nOps);
     });
-    return new Report(overall, functionsAverages, modulesAverages, functions::get);
+    return new Report(overall, functionsAverages, modulesAverages, reported::get);
   }
 
-  private int countSeen(boolean[] ops) {
+  private int countSeen(long[] hitCounts) {
     int count = 0;
-    for (boolean op : ops) {
-      if (op) {
+    for (long hits : hitCounts) {
+      if (hits > 0) {
         ++count;
       }
     }
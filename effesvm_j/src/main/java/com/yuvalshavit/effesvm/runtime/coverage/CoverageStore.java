@@ -0,0 +1,124 @@
+package com.yuvalshavit.effesvm.runtime.coverage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+
+/**
+ * The cumulative coverage data for one output file base, which any number of runs, in this process or others, can add to at once.
+ *
+ * Each run writes only its own counts, to a new shard file in a directory next to the data file. A shard is written to a temp file and then moved into
+ * place, so nothing ever sees half of one. Merging folds the shards into the data file while holding a lock on a lock file, and then deletes them; so
+ * each merge only reads what's been written since the last one. The shards are read in parallel, but added in the order they were written, so that
+ * if a function changed between runs, the counts for its newest hash win (see {@link FunctionDataSummaries#add(Map)}).
+ *
+ * The data file names the shards it was just merged from, and is replaced atomically before any of them are deleted. If a merge dies partway
+ * through deleting them, the next merge deletes the rest without counting them again.
+ */
+public class CoverageStore {
+  private static final String SHARDS_DIR_SUFFIX = ".shards";
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final String SHARD_SUFFIX = ".shard";
+  private static final String TEMP_SUFFIX = ".tmp";
+  /** File locks are held by the whole process, so threads within it also need to take turns. */
+  private static final Object processLock = new Object();
+
+  private final Path dataFile;
+  private final Path shardsDir;
+  private final Path lockFile;
+
+  public CoverageStore(String outFileBase) {
+    dataFile = Paths.get(CodeCoverageDebugServer.cumulativeFileNme(outFileBase)).toAbsolutePath();
+    shardsDir = Paths.get(dataFile + SHARDS_DIR_SUFFIX);
+    lockFile = Paths.get(dataFile + LOCK_SUFFIX);
+  }
+
+  /**
+   * Writes one run's counts as a new shard. This doesn't take the lock, so it never waits on a merge.
+   */
+  public Path writeShard(Map<EffesFunctionId, ? extends FunctionDataSummary> functions) throws IOException {
+    FunctionDataSummaries shardData = FunctionDataSummaries.empty();
+    shardData.add(functions);
+    Files.createDirectories(shardsDir);
+    // shards are merged in name order, so start each name with when it was written
+    Path temp = Files.createTempFile(shardsDir, String.format("%013d-", System.currentTimeMillis()), TEMP_SUFFIX);
+    try {
+      shardData.write(temp);
+      String tempName = temp.getFileName().toString();
+      Path shard = shardsDir.resolve(tempName.substring(0, tempName.length() - TEMP_SUFFIX.length()) + SHARD_SUFFIX);
+      Files.move(temp, shard, StandardCopyOption.ATOMIC_MOVE);
+      return shard;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Merges all shards into the data file, and returns the merged data.
+   */
+  public FunctionDataSummaries merge() throws IOException {
+    synchronized (processLock) {
+      try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+           FileLock ignored = lockChannel.lock())
+      {
+        FunctionDataSummaries merged = FunctionDataSummaries.read(dataFile);
+        for (String alreadyMerged : merged.mergedShards()) {
+          Files.deleteIfExists(shardsDir.resolve(alreadyMerged));
+        }
+        List<Path> shards = listShards();
+        if (shards.isEmpty()) {
+          return merged;
+        }
+        List<FunctionDataSummaries> shardsData;
+        try {
+          shardsData = shards.parallelStream().map(CoverageStore::readShard).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+        shardsData.forEach(merged::add);
+        merged.setMergedShards(shards.stream().map(shard -> shard.getFileName().toString()).collect(Collectors.toList()));
+        Path temp = Files.createTempFile(dataFile.getParent(), dataFile.getFileName().toString(), TEMP_SUFFIX);
+        try {
+          merged.write(temp);
+          Files.move(temp, dataFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          Files.deleteIfExists(temp);
+        }
+        for (Path shard : shards) {
+          Files.delete(shard);
+        }
+        return merged;
+      }
+    }
+  }
+
+  private List<Path> listShards() throws IOException {
+    try (Stream<Path> files = Files.list(shardsDir)) {
+      return files.filter(f -> f.getFileName().toString().endsWith(SHARD_SUFFIX)).sorted().collect(Collectors.toList());
+    } catch (NoSuchFileException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  private static FunctionDataSummaries readShard(Path shard) {
+    try {
+      return FunctionDataSummaries.read(shard);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
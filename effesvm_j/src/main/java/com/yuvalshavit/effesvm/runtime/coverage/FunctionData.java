@@ -5,8 +5,8 @@ import com.yuvalshavit.effesvm.load.EffesFunction;
 class FunctionData extends FunctionDataSummary {
   public final EffesFunction function;
 
-  public FunctionData(String hash, boolean[] seenOps, EffesFunction function) {
-    super(hash, seenOps);
+  public FunctionData(String hash, long[] hitCounts, EffesFunction function) {
+    super(hash, hitCounts);
     this.function = function;
   }
 }
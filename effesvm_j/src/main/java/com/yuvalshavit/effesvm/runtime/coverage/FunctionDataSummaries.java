@@ -1,78 +1,168 @@
 package com.yuvalshavit.effesvm.runtime.coverage;
 
-import java.io.File;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.stream.Stream;
 
 import com.yuvalshavit.effesvm.load.EffesFunctionId;
 
 import lombok.AllArgsConstructor;
 
+/**
+ * Coverage data for a set of functions, as kept in the cumulative data file and in each run's shard (see {@link CoverageStore}). Each line is a
+ * function id, the hash of its ops, a string with a <code>+</code> for each op that's run and a <code>0</code> for each that hasn't, and then each op's
+ * hit count, separated by commas. Files from before hit counts were kept don't have that last column; each op that was seen in one of those counts as
+ * having run once.
+ *
+ * The cumulative data file also names the shards that its latest merge folded in, each on a line of its own that starts with
+ * <code>{@value #MERGED_SHARD_PREFIX}</code>.
+ */
 @AllArgsConstructor
 public class FunctionDataSummaries {
   private static final char SEEN = '+';
   private static final char NOT_SEEN = '0';
+  private static final char HIT_COUNTS_SEPARATOR = ',';
+  private static final String MERGED_SHARD_PREFIX = "#merged ";
 
-  private final File file;
   private final NavigableMap<EffesFunctionId, FunctionDataSummary> functions;
+  private final SortedSet<String> mergedShards = new TreeSet<>();
 
-  public static FunctionDataSummaries read(String file) {
+  public static FunctionDataSummaries empty() {
+    return new FunctionDataSummaries(new TreeMap<>());
+  }
+
+  /**
+   * Reads a file in the format above. A file that doesn't exist has no functions.
+   */
+  public static FunctionDataSummaries read(Path file) throws IOException {
     NavigableMap<EffesFunctionId,FunctionDataSummary> previous = new TreeMap<>();
-    File outFileCumulative = new File(file);
-    if (outFileCumulative.exists()) {
-      Path path = outFileCumulative.toPath();
-      try (Stream<String> lines = Files.lines(path, StandardCharsets.UTF_8)) {
-        lines.forEach(line -> {
-          String[] split = line.split("\\s+", 3);
-          String functionIdString = split[0];
-          String hashString = split[1];
-          String oldSeenStr = split[2];
-          EffesFunctionId functionId = EffesFunctionId.tryParse(functionIdString);
-          if (functionId != null) {
-            boolean[] oldOpsSeen = new boolean[oldSeenStr.length()];
+    SortedSet<String> mergedShards = new TreeSet<>();
+    try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+      lines.forEach(line -> {
+        if (line.startsWith(MERGED_SHARD_PREFIX)) {
+          mergedShards.add(line.substring(MERGED_SHARD_PREFIX.length()));
+          return;
+        }
+        String[] split = line.split("\\s+", 4);
+        if (split.length < 3) {
+          return;
+        }
+        String functionIdString = split[0];
+        String hashString = split[1];
+        String oldSeenStr = split[2];
+        EffesFunctionId functionId = EffesFunctionId.tryParse(functionIdString);
+        if (functionId != null) {
+          long[] oldHitCounts = split.length > 3
+            ? parseHitCounts(split[3], oldSeenStr.length())
+            : null;
+          if (oldHitCounts == null) {
+            oldHitCounts = new long[oldSeenStr.length()];
             for (int i = 0; i < oldSeenStr.length(); ++i) {
-              oldOpsSeen[i] = oldSeenStr.charAt(i) == SEEN;
+              oldHitCounts[i] = oldSeenStr.charAt(i) == SEEN ? 1 : 0;
             }
-            FunctionDataSummary functionData = new FunctionDataSummary(hashString, oldOpsSeen);
-            previous.put(functionId, functionData);
           }
-        });
-      } catch (IOException e) {
-        System.err.printf("Couldn't read previous code coverage from %s: %s", outFileCumulative, e.getMessage());
+          FunctionDataSummary functionData = new FunctionDataSummary(hashString, oldHitCounts);
+          previous.put(functionId, functionData);
+        }
+      });
+    } catch (NoSuchFileException e) {
+      // nothing written yet
+    }
+    FunctionDataSummaries result = new FunctionDataSummaries(previous);
+    result.mergedShards.addAll(mergedShards);
+    return result;
+  }
+
+  /**
+   * Parses the hit counts column, or returns null if it's malformed or doesn't have the expected number of counts.
+   */
+  private static long[] parseHitCounts(String column, int nOps) {
+    String[] counts = column.trim().split(String.valueOf(HIT_COUNTS_SEPARATOR));
+    if (counts.length != nOps) {
+      return null;
+    }
+    long[] result = new long[nOps];
+    try {
+      for (int i = 0; i < nOps; ++i) {
+        result[i] = Long.parseLong(counts[i]);
       }
+    } catch (NumberFormatException e) {
+      return null;
     }
-    return new FunctionDataSummaries(outFileCumulative, previous);
+    return result;
   }
 
   public FunctionDataSummary get(EffesFunctionId id) {
     return functions.get(id);
   }
 
-  public void update(Map<EffesFunctionId, ? extends FunctionDataSummary> functions) {
-    this.functions.putAll(functions);
+  /**
+   * Adds newer data to this. A function whose hash matches what's already here has its counts summed; one whose hash doesn't (because its ops
+   * changed) has its counts replaced, since the old counts are for ops that no longer exist.
+   */
+  public void add(Map<EffesFunctionId, ? extends FunctionDataSummary> newer) {
+    newer.forEach((fid, data) -> {
+      FunctionDataSummary existing = functions.get(fid);
+      long[] hitCounts = data.hitCounts.clone();
+      if (existing != null && existing.hash.equals(data.hash) && existing.hitCounts.length == hitCounts.length) {
+        for (int i = 0; i < hitCounts.length; ++i) {
+          hitCounts[i] += existing.hitCounts[i];
+        }
+      }
+      functions.put(fid, new FunctionDataSummary(data.hash, hitCounts));
+    });
+  }
+
+  public void add(FunctionDataSummaries newer) {
+    add(newer.functions);
+  }
+
+  /**
+   * The file names of the shards that were last merged into this data.
+   */
+  public SortedSet<String> mergedShards() {
+    return Collections.unmodifiableSortedSet(mergedShards);
   }
 
-  public void write() {
-    try (FileWriter fw = new FileWriter(file);
-         PrintWriter printer = new PrintWriter(fw))
+  public void setMergedShards(Collection<String> shardNames) {
+    mergedShards.clear();
+    mergedShards.addAll(shardNames);
+  }
+
+  public void write(Path file) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+         PrintWriter printer = new PrintWriter(writer))
     {
+      mergedShards.forEach(shard -> printer.println(MERGED_SHARD_PREFIX + shard));
       functions.forEach((fid, data) -> {
         printer.printf("%s %s ", fid, data.hash);
-        for (boolean seen : data.seenOps) {
-          printer.print(seen ? SEEN : NOT_SEEN);
+        for (int i = 0; i < data.hitCounts.length; ++i) {
+          printer.print(data.seen(i) ? SEEN : NOT_SEEN);
+        }
+        printer.print(' ');
+        for (int i = 0; i < data.hitCounts.length; ++i) {
+          if (i > 0) {
+            printer.print(HIT_COUNTS_SEPARATOR);
+          }
+          printer.print(data.hitCounts[i]);
         }
         printer.println();
       });
-    } catch (IOException e) {
-      e.printStackTrace();
+      if (printer.checkError()) {
+        throw new IOException("couldn't write " + file);
+      }
     }
   }
 }
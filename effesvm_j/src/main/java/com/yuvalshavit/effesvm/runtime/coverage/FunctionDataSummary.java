@@ -5,5 +5,9 @@ import lombok.AllArgsConstructor;
 @AllArgsConstructor
 class FunctionDataSummary {
   public final String hash;
-  public final boolean[] seenOps;
+  public final long[] hitCounts;
+
+  boolean seen(int op) {
+    return hitCounts[op] > 0;
+  }
 }
@@ -9,6 +9,7 @@ import java.util.TreeSet;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import com.yuvalshavit.effesvm.load.EffesFunctionId;
 import com.yuvalshavit.effesvm.load.EffesModule;
@@ -75,11 +76,13 @@ class Report {
       //noinspection ReplaceAllDot
       printer.println(functionHeader.replaceAll(".", "-"));
       FunctionData functionData = functions.apply(functionId);
+      int countWidth = Long.toString(LongStream.of(functionData.hitCounts).max().orElse(0)).length();
+      String countFormat = "%c %" + countWidth + "d %s%n";
       for (int i = 0; i < functionData.function.nOps(); ++i) {
-        char seenMarker = functionData.seenOps[i]
+        char seenMarker = functionData.seen(i)
           ? '+'
           : ' ';
-        printer.append(seenMarker).append(' ').println(functionData.function.opAt(i).info().toString());
+        printer.format(countFormat, seenMarker, functionData.hitCounts[i], functionData.function.opAt(i).info());
       }
       printer.println();
     });
@@ -71,7 +71,7 @@ public class SourceDebugPane extends AbstractDebugLinePane<SourceDebugPane.Sourc
           int functionLastLine = Integer.MIN_VALUE;
           for (OpInfo opInfo : functionInfo.ops()) {
             int opLineNumber = opInfo.sourceLineNumberIndexedAt0();
-            if (opLineNumber >= 0) {
+            if (opLineNumber >= 0 && opInfo.inlinedFrom() == null) { // inlined ops' lines are from the function they were inlined from
               functionFirstLine = Math.min(opLineNumber, functionFirstLine);
               functionLastLine = Math.max(opLineNumber, functionLastLine);
             }
@@ -101,7 +101,7 @@ public class SourceDebugPane extends AbstractDebugLinePane<SourceDebugPane.Sourc
     int lowestPositionInLine = Integer.MAX_VALUE;
     for (int i = 0; i < ops.size(); ++i) {
       OpInfo op = ops.get(i);
-      if (op.sourceLineNumberIndexedAt0() == clickedItemInList && op.sourcePositionInLine() < lowestPositionInLine) {
+      if (op.sourceLineNumberIndexedAt0() == clickedItemInList && op.sourcePositionInLine() < lowestPositionInLine && op.inlinedFrom() == null) {
         opIndex = i;
         lowestPositionInLine = op.sourcePositionInLine();
       }
@@ -129,7 +129,11 @@ public class SourceDebugPane extends AbstractDebugLinePane<SourceDebugPane.Sourc
       return -1;
     }
 
+    // An inlined op's line is from the function it was inlined from, so show the line of the call it was inlined at instead
     OpInfo opInfo = info.ops().get(opIdxWithinFunction);
+    while (opInfo.inlinedFrom() != null && opIdxWithinFunction > 0) {
+      opInfo = info.ops().get(--opIdxWithinFunction);
+    }
     return opInfo.sourceLineNumberIndexedAt0();
   }
 
@@ -0,0 +1,394 @@
+package com.yuvalshavit.effesvm.runtime.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JVM classfile writer: just enough of the format to emit simple classes with fields, methods and exception handlers.
+ *
+ * Classes are written at version 49 (Java 5). That predates the StackMapTable attribute, so the JVM verifies them by type inference, and we don't have to
+ * compute stack frames. Branch offsets are 16 bits, so a method's code must stay under 32k; callers should check {@link MethodWriter#size()}.
+ */
+public class ClassFileWriter {
+  public static final int ACC_PUBLIC = 0x0001;
+  public static final int ACC_PRIVATE = 0x0002;
+  public static final int ACC_STATIC = 0x0008;
+  public static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  public static final int ACONST_NULL = 0x01;
+  public static final int ICONST_0 = 0x03;
+  public static final int ICONST_1 = 0x04;
+  public static final int BIPUSH = 0x10;
+  public static final int SIPUSH = 0x11;
+  public static final int LDC = 0x12;
+  public static final int LDC_W = 0x13;
+  public static final int ILOAD = 0x15;
+  public static final int ALOAD = 0x19;
+  public static final int AALOAD = 0x32;
+  public static final int ISTORE = 0x36;
+  public static final int ASTORE = 0x3a;
+  public static final int POP = 0x57;
+  public static final int DUP = 0x59;
+  public static final int SWAP = 0x5f;
+  public static final int IADD = 0x60;
+  public static final int ISUB = 0x64;
+  public static final int IMUL = 0x68;
+  public static final int IDIV = 0x6c;
+  public static final int IFEQ = 0x99;
+  public static final int IFNE = 0x9a;
+  public static final int IF_ICMPEQ = 0x9f;
+  public static final int IF_ICMPNE = 0xa0;
+  public static final int IF_ICMPLT = 0xa1;
+  public static final int IF_ICMPGE = 0xa2;
+  public static final int IF_ICMPGT = 0xa3;
+  public static final int IF_ICMPLE = 0xa4;
+  public static final int GOTO = 0xa7;
+  public static final int ARETURN = 0xb0;
+  public static final int RETURN = 0xb1;
+  public static final int GETSTATIC = 0xb2;
+  public static final int PUTSTATIC = 0xb3;
+  public static final int GETFIELD = 0xb4;
+  public static final int PUTFIELD = 0xb5;
+  public static final int INVOKEVIRTUAL = 0xb6;
+  public static final int INVOKESPECIAL = 0xb7;
+  public static final int INVOKESTATIC = 0xb8;
+  public static final int INVOKEINTERFACE = 0xb9;
+  public static final int NEW = 0xbb;
+  public static final int ATHROW = 0xbf;
+  public static final int CHECKCAST = 0xc0;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream pool = new DataOutputStream(poolBytes);
+  private final Map<String,Integer> poolIndexes = new HashMap<>();
+  private int poolCount = 1;
+
+  private final int thisClass;
+  private final int superClass;
+  private final List<Integer> interfaces = new ArrayList<>();
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<MethodWriter> methods = new ArrayList<>();
+
+  /**
+   * @param internalName the class's name, in internal form (for instance, <code>com/example/Foo</code>)
+   * @param superName the superclass's name, in internal form
+   * @param interfaceNames the names of any interfaces this class implements, in internal form
+   */
+  public ClassFileWriter(String internalName, String superName, String... interfaceNames) {
+    thisClass = classRef(internalName);
+    superClass = classRef(superName);
+    for (String interfaceName : interfaceNames) {
+      interfaces.add(classRef(interfaceName));
+    }
+  }
+
+  public void addField(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  public MethodWriter addMethod(int access, String name, String descriptor, int maxStack, int maxLocals) {
+    MethodWriter method = new MethodWriter(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+    methods.add(method);
+    return method;
+  }
+
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    int codeAttributeName = utf8("Code"); // before we write the pool out!
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); // minor version
+      out.writeShort(49); // major version
+      out.writeShort(poolCount);
+      pool.flush();
+      poolBytes.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.size());
+      for (int anInterface : interfaces) {
+        out.writeShort(anInterface);
+      }
+      out.writeShort(fields.size());
+      for (byte[] field : fields) {
+        out.write(field);
+      }
+      out.writeShort(methods.size());
+      for (MethodWriter method : methods) {
+        method.writeTo(out, codeAttributeName);
+      }
+      out.writeShort(0); // class attributes
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public int classRef(String internalName) {
+    int name = utf8(internalName);
+    return constant("Class:" + internalName, CONSTANT_CLASS, out -> out.writeShort(name));
+  }
+
+  public int methodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  public int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+  }
+
+  public int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  public int intConstant(int value) {
+    return constant("Integer:" + value, CONSTANT_INTEGER, out -> out.writeInt(value));
+  }
+
+  public int stringConstant(String value) {
+    int utf8 = utf8(value);
+    return constant("String:" + value, CONSTANT_STRING, out -> out.writeShort(utf8));
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int ownerIdx = classRef(owner);
+    int nameIdx = utf8(name);
+    int descriptorIdx = utf8(descriptor);
+    int nameAndType = constant("NameAndType:" + name + ':' + descriptor, CONSTANT_NAME_AND_TYPE, out -> {
+      out.writeShort(nameIdx);
+      out.writeShort(descriptorIdx);
+    });
+    return constant(tag + ":" + owner + '.' + name + ':' + descriptor, tag, out -> {
+      out.writeShort(ownerIdx);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  private int utf8(String value) {
+    return constant("Utf8:" + value, CONSTANT_UTF8, out -> out.writeUTF(value));
+  }
+
+  private int constant(String key, int tag, PoolWriter writer) {
+    Integer existing = poolIndexes.get(key);
+    if (existing != null) {
+      return existing;
+    }
+    try {
+      pool.writeByte(tag);
+      writer.write(pool);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    int idx = poolCount++;
+    if (idx > 0xFFFF) {
+      throw new IllegalStateException("too many constants");
+    }
+    poolIndexes.put(key, idx);
+    return idx;
+  }
+
+  public static class Label {
+    private int position = -1;
+    private final List<int[]> fixups = new ArrayList<>(); // {instruction start, offset position}
+  }
+
+  public class MethodWriter {
+    private final int access;
+    private final int name;
+    private final int descriptor;
+    private final int maxStack;
+    private final int maxLocals;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private final List<Label[]> handlers = new ArrayList<>();
+    private final List<Integer> handlerTypes = new ArrayList<>();
+
+    private MethodWriter(int access, int name, int descriptor, int maxStack, int maxLocals) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.maxStack = maxStack;
+      this.maxLocals = maxLocals;
+    }
+
+    public int size() {
+      return code.size();
+    }
+
+    public Label newLabel() {
+      Label label = new Label();
+      labels.add(label);
+      return label;
+    }
+
+    public void mark(Label label) {
+      if (label.position >= 0) {
+        throw new IllegalStateException("label already marked");
+      }
+      label.position = code.size();
+    }
+
+    public void op(int opcode) {
+      code.write(opcode);
+    }
+
+    public void varOp(int opcode, int var) {
+      code.write(opcode);
+      code.write(var);
+    }
+
+    public void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        code.write(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        code.write(BIPUSH);
+        code.write(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        code.write(SIPUSH);
+        writeShort(value);
+      } else {
+        code.write(LDC_W);
+        writeShort(intConstant(value));
+      }
+    }
+
+    public void pushString(String value) {
+      code.write(LDC_W);
+      writeShort(stringConstant(value));
+    }
+
+    public void pushClass(String internalName) {
+      code.write(LDC_W);
+      writeShort(classRef(internalName));
+    }
+
+    public void typeOp(int opcode, String internalName) {
+      code.write(opcode);
+      writeShort(classRef(internalName));
+    }
+
+    public void fieldOp(int opcode, String owner, String name, String descriptor) {
+      code.write(opcode);
+      writeShort(fieldRef(owner, name, descriptor));
+    }
+
+    public void invoke(int opcode, String owner, String name, String descriptor) {
+      if (opcode == INVOKEINTERFACE) {
+        code.write(opcode);
+        writeShort(interfaceMethodRef(owner, name, descriptor));
+        code.write(argSlots(descriptor) + 1);
+        code.write(0);
+      } else {
+        code.write(opcode);
+        writeShort(methodRef(owner, name, descriptor));
+      }
+    }
+
+    public void jump(int opcode, Label target) {
+      target.fixups.add(new int[] { code.size(), code.size() + 1 });
+      code.write(opcode);
+      writeShort(0);
+    }
+
+    /**
+     * Adds an exception handler over the code between <code>start</code> (inclusive) and <code>end</code> (exclusive).
+     *
+     * @param type the handled exception's internal name, or null to catch everything
+     */
+    public void tryCatch(Label start, Label end, Label handler, String type) {
+      handlers.add(new Label[] { start, end, handler });
+      handlerTypes.add(type == null ? 0 : classRef(type));
+    }
+
+    private void writeShort(int value) {
+      code.write(value >>> 8);
+      code.write(value);
+    }
+
+    private void writeTo(DataOutputStream out, int codeAttributeName) throws IOException {
+      byte[] bytes = code.toByteArray();
+      if (bytes.length > Short.MAX_VALUE) {
+        throw new IllegalStateException("method too large: " + bytes.length + " bytes");
+      }
+      for (Label label : labels) {
+        if (label.position < 0 && !label.fixups.isEmpty()) {
+          throw new IllegalStateException("unmarked label");
+        }
+        for (int[] fixup : label.fixups) {
+          int offset = label.position - fixup[0];
+          bytes[fixup[1]] = (byte) (offset >>> 8);
+          bytes[fixup[1] + 1] = (byte) offset;
+        }
+      }
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1); // attributes: just Code
+      out.writeShort(codeAttributeName);
+      out.writeInt(12 + bytes.length + 8 * handlers.size());
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.writeShort(handlers.size());
+      for (int i = 0; i < handlers.size(); ++i) {
+        Label[] handler = handlers.get(i);
+        out.writeShort(handler[0].position);
+        out.writeShort(handler[1].position);
+        out.writeShort(handler[2].position);
+        out.writeShort(handlerTypes.get(i));
+      }
+      out.writeShort(0); // code attributes
+    }
+  }
+
+  private static int argSlots(String descriptor) {
+    int slots = 0;
+    int i = 1; // skip the '('
+    while (descriptor.charAt(i) != ')') {
+      char c = descriptor.charAt(i);
+      if (c == 'J' || c == 'D') {
+        slots += 2;
+        ++i;
+      } else {
+        ++slots;
+        while (descriptor.charAt(i) == '[') {
+          ++i;
+        }
+        i = (descriptor.charAt(i) == 'L') ? descriptor.indexOf(';', i) + 1 : i + 1;
+      }
+    }
+    return slots;
+  }
+
+  private interface PoolWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+}
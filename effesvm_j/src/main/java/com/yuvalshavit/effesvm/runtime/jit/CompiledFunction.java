@@ -0,0 +1,21 @@
+package com.yuvalshavit.effesvm.runtime.jit;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.SwitchInterpreter;
+
+/**
+ * A function body that's been compiled to JVM bytecode by {@link FunctionCompiler}.
+ */
+public interface CompiledFunction {
+  /**
+   * Runs the function's body. The function's frame must already be open. By the time this method returns normally, either the frame will have been
+   * closed (and the state's pc restored to the call site), or the function will have made a tail call to some other function: in that case, the
+   * frame now belongs to that function, and it's up to the caller to run it. This keeps chains of tail calls from growing the JVM stack.
+   *
+   * @param state the state to run against
+   * @param interpreter the interpreter to fall back on for any calls to functions that haven't been compiled
+   * @return null if the frame was closed, or else the function that the frame was handed off to via a tail call
+   */
+  EffesFunction run(EffesState state, SwitchInterpreter interpreter);
+}
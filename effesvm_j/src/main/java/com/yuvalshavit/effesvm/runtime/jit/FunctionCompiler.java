@@ -0,0 +1,353 @@
+package com.yuvalshavit.effesvm.runtime.jit;
+
+import static com.yuvalshavit.effesvm.runtime.jit.ClassFileWriter.*;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.runtime.DecodedFunction;
+import com.yuvalshavit.effesvm.runtime.IntegerOps;
+import com.yuvalshavit.effesvm.runtime.jit.ClassFileWriter.Label;
+import com.yuvalshavit.effesvm.runtime.jit.ClassFileWriter.MethodWriter;
+
+/**
+ * Compiles a function's {@link DecodedFunction} into a JVM class that implements {@link CompiledFunction}.
+ *
+ * Each op becomes a short, straight-line bytecode sequence against the {@link com.yuvalshavit.effesvm.runtime.EffesState EffesState}, and jumps become
+ * JVM branches, so there's no dispatch left at all. Ops that don't have a dedicated opcode are run through their linked
+ * {@link com.yuvalshavit.effesvm.ops.Operation Operation}, just as the interpreter would. The generated method keeps the current op index in a local, so
+ * that a single catch-all handler can report a failure against the right op.
+ *
+ * Functions that passed the {@link com.yuvalshavit.effesvm.load.StackVerifier StackVerifier} are compiled against the state's unchecked primitives, with
+ * their int arithmetic and comparisons done inline. Their callers reserve their max stack depth when they open the frame (see
+ * {@link com.yuvalshavit.effesvm.runtime.SwitchInterpreter SwitchInterpreter}).
+ *
+ * Tail calls (see {@link com.yuvalshavit.effesvm.load.TailCallPass TailCallPass}) to the function itself become a jump back to its first op, so that
+ * self-recursive loops stay within one JVM frame. Other tail calls return the callee to the caller, to run next (see {@link CompiledFunction#run}).
+ *
+ * Each class gets its own class loader, so that it can be unloaded along with the function it was compiled from.
+ */
+public class FunctionCompiler {
+  /** Leave some headroom under the 32k that 16-bit branch offsets can reach. */
+  static final int MAX_CODE_SIZE = 30_000;
+
+  private static final AtomicInteger classCounter = new AtomicInteger();
+
+  private static final String STATE = "com/yuvalshavit/effesvm/runtime/EffesState";
+  private static final String INTERPRETER = "com/yuvalshavit/effesvm/runtime/SwitchInterpreter";
+  private static final String FUNCTION = "com/yuvalshavit/effesvm/load/EffesFunction";
+  private static final String TYPE = "com/yuvalshavit/effesvm/runtime/EffesType";
+  private static final String REF = "com/yuvalshavit/effesvm/runtime/EffesRef";
+  private static final String SUPPORT = "com/yuvalshavit/effesvm/runtime/jit/JitSupport";
+  private static final String COMPILED = "com/yuvalshavit/effesvm/runtime/jit/CompiledFunction";
+
+  private static final String STATE_DESC = 'L' + STATE + ';';
+  private static final String FUNCTION_DESC = 'L' + FUNCTION + ';';
+  private static final String REF_DESC = 'L' + REF + ';';
+  private static final String SUPPORT_OP_DESC = '(' + STATE_DESC + ")V";
+
+  // locals in the run method
+  private static final int THIS = 0;
+  private static final int STATE_VAR = 1;
+  private static final int INTERPRETER_VAR = 2;
+  private static final int CONSTANTS_VAR = 3;
+  private static final int FUNCTION_VAR = 4;
+  private static final int PC_VAR = 5;
+  private static final int ERROR_VAR = 6;
+
+  private FunctionCompiler() {}
+
+  /**
+   * Compiles the given function, which must already be decoded.
+   *
+   * @throws UnsupportedOperationException if the function can't be compiled (for instance, if it's too large)
+   */
+  public static CompiledFunction compile(EffesFunction function) {
+    DecodedFunction decoded = function.decoded();
+    String className = "com/yuvalshavit/effesvm/runtime/jit/generated/Fn" + classCounter.incrementAndGet();
+    byte[] bytes = generate(className, decoded, function.isVerified());
+    Object[] constants = new Object[decoded.nConstants()];
+    for (int i = 0; i < constants.length; ++i) {
+      constants[i] = decoded.constantAt(i);
+    }
+    try {
+      Class<?> cls = new FunctionClassLoader().define(className.replace('/', '.'), bytes);
+      Constructor<?> constructor = cls.getConstructor(EffesFunction.class, Object[].class);
+      return (CompiledFunction) constructor.newInstance(function, constants);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      throw new IllegalStateException("couldn't load compiled " + function, e);
+    }
+  }
+
+  static byte[] generate(String className, DecodedFunction decoded, boolean unchecked) {
+    ClassFileWriter cls = new ClassFileWriter(className, "java/lang/Object", COMPILED);
+    cls.addField(ACC_PRIVATE | ACC_FINAL, "function", FUNCTION_DESC);
+    cls.addField(ACC_PRIVATE | ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+    MethodWriter init = cls.addMethod(ACC_PUBLIC, "<init>", '(' + FUNCTION_DESC + "[Ljava/lang/Object;)V", 2, 3);
+    init.varOp(ALOAD, THIS);
+    init.invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+    init.varOp(ALOAD, THIS);
+    init.varOp(ALOAD, 1);
+    init.fieldOp(PUTFIELD, className, "function", FUNCTION_DESC);
+    init.varOp(ALOAD, THIS);
+    init.varOp(ALOAD, 2);
+    init.fieldOp(PUTFIELD, className, "constants", "[Ljava/lang/Object;");
+    init.op(RETURN);
+
+    MethodWriter run = cls.addMethod(ACC_PUBLIC, "run", '(' + STATE_DESC + 'L' + INTERPRETER + ";)" + FUNCTION_DESC, 8, ERROR_VAR + 1);
+    run.varOp(ALOAD, THIS);
+    run.fieldOp(GETFIELD, className, "constants", "[Ljava/lang/Object;");
+    run.varOp(ASTORE, CONSTANTS_VAR);
+    run.varOp(ALOAD, THIS);
+    run.fieldOp(GETFIELD, className, "function", FUNCTION_DESC);
+    run.varOp(ASTORE, FUNCTION_VAR);
+    run.pushInt(0);
+    run.varOp(ISTORE, PC_VAR);
+
+    int nOps = decoded.nOps();
+    Label[] opLabels = new Label[nOps];
+    for (int i = 0; i < nOps; ++i) {
+      opLabels[i] = run.newLabel();
+    }
+    Label tryEnd = run.newLabel();
+    Label handler = run.newLabel();
+
+    for (int i = 0; i < nOps; ++i) {
+      run.mark(opLabels[i]);
+      run.pushInt(i);
+      run.varOp(ISTORE, PC_VAR);
+      emitOp(run, decoded, i, opLabels, unchecked);
+      if (run.size() > MAX_CODE_SIZE) {
+        throw new UnsupportedOperationException("function too large to compile");
+      }
+    }
+    run.mark(tryEnd);
+    run.varOp(ALOAD, FUNCTION_VAR);
+    run.invoke(INVOKESTATIC, SUPPORT, "fellOffEnd", '(' + FUNCTION_DESC + ")Ljava/lang/Throwable;");
+    run.op(ATHROW);
+
+    run.mark(handler);
+    run.varOp(ASTORE, ERROR_VAR);
+    run.varOp(ALOAD, STATE_VAR);
+    run.varOp(ALOAD, FUNCTION_VAR);
+    run.varOp(ILOAD, PC_VAR);
+    run.varOp(ALOAD, ERROR_VAR);
+    run.invoke(INVOKESTATIC, SUPPORT, "fail", '(' + STATE_DESC + FUNCTION_DESC + "ILjava/lang/Throwable;)Ljava/lang/Throwable;");
+    run.op(ATHROW);
+    if (nOps > 0) {
+      run.tryCatch(opLabels[0], tryEnd, handler, null);
+    }
+    return cls.toBytes();
+  }
+
+  private static void emitOp(MethodWriter run, DecodedFunction decoded, int op, Label[] opLabels, boolean unchecked) {
+    int operand = decoded.operandAt(op);
+    String suffix = unchecked ? "Unchecked" : "";
+    switch (decoded.opcodeAt(op)) {
+      case DecodedFunction.PUSH_CONST:
+        run.varOp(ALOAD, STATE_VAR);
+        loadConstant(run, operand, REF);
+        invokeState(run, "push" + suffix, '(' + REF_DESC + ")V");
+        break;
+      case DecodedFunction.PUSH_INT:
+        run.varOp(ALOAD, STATE_VAR);
+        run.pushInt(operand);
+        invokeState(run, "pushInt" + suffix, "(I)V");
+        break;
+      case DecodedFunction.POP:
+        run.varOp(ALOAD, STATE_VAR);
+        invokeState(run, "pop" + suffix, "()" + REF_DESC);
+        run.op(POP);
+        break;
+      case DecodedFunction.COPY:
+        run.varOp(ALOAD, STATE_VAR);
+        invokeState(run, "dup" + suffix, "()V");
+        break;
+      case DecodedFunction.PVAR:
+        varOp(run, "pushVar" + suffix, operand);
+        break;
+      case DecodedFunction.SVAR:
+        varOp(run, "popToVar" + suffix, operand);
+        break;
+      case DecodedFunction.SVAR_COPY:
+        varOp(run, "copyToVar" + suffix, operand);
+        break;
+      case DecodedFunction.GOTO:
+        run.jump(GOTO, opLabels[operand]);
+        break;
+      case DecodedFunction.GOIF:
+        run.varOp(ALOAD, STATE_VAR);
+        invokeState(run, "popBoolean" + suffix, "()Z");
+        run.jump(IFNE, opLabels[operand]);
+        break;
+      case DecodedFunction.GOFI:
+        run.varOp(ALOAD, STATE_VAR);
+        invokeState(run, "popBoolean" + suffix, "()Z");
+        run.jump(IFEQ, opLabels[operand]);
+        break;
+      case DecodedFunction.CALL:
+      case DecodedFunction.CALL_COMPILED:
+        run.varOp(ALOAD, INTERPRETER_VAR);
+        run.varOp(ALOAD, FUNCTION_VAR);
+        run.pushInt(op);
+        loadConstant(run, operand, FUNCTION);
+        run.invoke(INVOKEVIRTUAL, INTERPRETER, "call", '(' + FUNCTION_DESC + 'I' + FUNCTION_DESC + ")V");
+        break;
+      case DecodedFunction.CALL_INSTANCE:
+      case DecodedFunction.CALL_INSTANCE_COMPILED:
+        run.varOp(ALOAD, INTERPRETER_VAR);
+        run.varOp(ALOAD, FUNCTION_VAR);
+        run.pushInt(op);
+        loadConstant(run, operand, FUNCTION);
+        loadConstant(run, operand + 1, TYPE);
+        run.invoke(INVOKEVIRTUAL, INTERPRETER, "callInstance", '(' + FUNCTION_DESC + 'I' + FUNCTION_DESC + 'L' + TYPE + ";)V");
+        break;
+      case DecodedFunction.TAIL_CALL:
+      case DecodedFunction.TAIL_CALL_INSTANCE: {
+        // A tail call to this same function is just a jump back to the top, in the replaced frame. Any other tail call hands the callee back to
+        // whoever is running this function, so that it runs without growing the JVM stack.
+        EffesFunction callee = (EffesFunction) decoded.constantAt(operand);
+        boolean selfCall = callee.decoded() == decoded;
+        run.varOp(ALOAD, INTERPRETER_VAR);
+        loadConstant(run, operand, FUNCTION);
+        if (decoded.opcodeAt(op) == DecodedFunction.TAIL_CALL_INSTANCE) {
+          loadConstant(run, operand + 1, TYPE);
+        } else {
+          run.op(ACONST_NULL);
+        }
+        run.invoke(INVOKEVIRTUAL, INTERPRETER, "replaceFrame", '(' + FUNCTION_DESC + 'L' + TYPE + ";)V");
+        if (selfCall) {
+          run.jump(GOTO, opLabels[0]);
+        } else {
+          loadConstant(run, operand, FUNCTION);
+          run.op(ARETURN);
+        }
+        break;
+      }
+      case DecodedFunction.RTRN:
+        run.varOp(ALOAD, STATE_VAR);
+        invokeState(run, "closeFrame" + suffix, "()V");
+        run.op(ACONST_NULL);
+        run.op(ARETURN);
+        break;
+      case DecodedFunction.IADD:
+        intOp(run, unchecked, "iadd", IADD);
+        break;
+      case DecodedFunction.ISUB:
+        intOp(run, unchecked, "isub", ISUB);
+        break;
+      case DecodedFunction.IMUL:
+        intOp(run, unchecked, "imul", IMUL);
+        break;
+      case DecodedFunction.IDIV:
+        intOp(run, unchecked, "idiv", IDIV);
+        break;
+      case DecodedFunction.ILT:
+        intCmp(run, unchecked, "ilt", IF_ICMPLT);
+        break;
+      case DecodedFunction.ILE:
+        intCmp(run, unchecked, "ile", IF_ICMPLE);
+        break;
+      case DecodedFunction.IEQ:
+        intCmp(run, unchecked, "ieq", IF_ICMPEQ);
+        break;
+      case DecodedFunction.INE:
+        intCmp(run, unchecked, "ine", IF_ICMPNE);
+        break;
+      case DecodedFunction.IGE:
+        intCmp(run, unchecked, "ige", IF_ICMPGE);
+        break;
+      case DecodedFunction.IGT:
+        intCmp(run, unchecked, "igt", IF_ICMPGT);
+        break;
+      case DecodedFunction.GENERIC:
+        run.varOp(ALOAD, STATE_VAR);
+        run.varOp(ALOAD, FUNCTION_VAR);
+        run.pushInt(op);
+        loadConstant(run, operand, null);
+        run.invoke(INVOKESTATIC, SUPPORT, "generic", '(' + STATE_DESC + FUNCTION_DESC + "ILjava/lang/Object;)V");
+        break;
+      default:
+        throw new UnsupportedOperationException("unknown opcode: " + decoded.opcodeAt(op));
+    }
+  }
+
+  private static void loadConstant(MethodWriter run, int idx, String type) {
+    run.varOp(ALOAD, CONSTANTS_VAR);
+    run.pushInt(idx);
+    run.op(AALOAD);
+    if (type != null) {
+      run.typeOp(CHECKCAST, type);
+    }
+  }
+
+  private static void varOp(MethodWriter run, String method, int var) {
+    run.varOp(ALOAD, STATE_VAR);
+    run.pushInt(var);
+    invokeState(run, method, "(I)V");
+  }
+
+  /**
+   * Emits an int arithmetic op: either a call to its {@link JitSupport} helper, or for unchecked code, the arithmetic itself.
+   */
+  private static void intOp(MethodWriter run, boolean unchecked, String supportMethod, int arithOpcode) {
+    if (!unchecked) {
+      supportOp(run, supportMethod);
+      return;
+    }
+    run.varOp(ALOAD, STATE_VAR);
+    popIntUnchecked(run); // rhs
+    popIntUnchecked(run); // lhs
+    run.op(SWAP);
+    run.op(arithOpcode);
+    invokeState(run, "pushIntUnchecked", "(I)V");
+  }
+
+  /**
+   * Like {@link #intOp}, but for comparisons, which pop their operands in the other order (see {@link IntegerOps}).
+   */
+  private static void intCmp(MethodWriter run, boolean unchecked, String supportMethod, int cmpOpcode) {
+    if (!unchecked) {
+      supportOp(run, supportMethod);
+      return;
+    }
+    Label isTrue = run.newLabel();
+    Label done = run.newLabel();
+    run.varOp(ALOAD, STATE_VAR);
+    popIntUnchecked(run); // lhs
+    popIntUnchecked(run); // rhs
+    run.jump(cmpOpcode, isTrue);
+    run.op(ICONST_0);
+    run.jump(GOTO, done);
+    run.mark(isTrue);
+    run.op(ICONST_1);
+    run.mark(done);
+    invokeState(run, "pushBooleanUnchecked", "(Z)V");
+  }
+
+  private static void popIntUnchecked(MethodWriter run) {
+    run.varOp(ALOAD, STATE_VAR);
+    invokeState(run, "popIntUnchecked", "()I");
+  }
+
+  private static void supportOp(MethodWriter run, String method) {
+    run.varOp(ALOAD, STATE_VAR);
+    run.invoke(INVOKESTATIC, SUPPORT, method, SUPPORT_OP_DESC);
+  }
+
+  private static void invokeState(MethodWriter run, String method, String descriptor) {
+    run.invoke(INVOKEVIRTUAL, STATE, method, descriptor);
+  }
+
+  private static class FunctionClassLoader extends ClassLoader {
+    FunctionClassLoader() {
+      super(FunctionCompiler.class.getClassLoader());
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.yuvalshavit.effesvm.runtime.jit;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.PcMove;
+import com.yuvalshavit.effesvm.runtime.SwitchInterpreter;
+
+/**
+ * Static helpers that compiled code calls into, whether it was compiled by the JIT tier or ahead of time. These are public only because the generated
+ * classes live in their own class loaders; nothing else should use them.
+ */
+public class JitSupport {
+  private JitSupport() {}
+
+  public static void generic(EffesState state, EffesFunction function, int pc, Object op) {
+    state.pc().set(function, pc);
+    PcMove next = ((Operation) op).apply(state);
+    if (next != PcMove.next()) {
+      throw new IllegalStateException("compiled code can't move the pc: " + next);
+    }
+  }
+
+  public static void iadd(EffesState state) {
+    int rhs = state.popInt();
+    int lhs = state.popInt();
+    state.pushInt(lhs + rhs);
+  }
+
+  public static void isub(EffesState state) {
+    int rhs = state.popInt();
+    int lhs = state.popInt();
+    state.pushInt(lhs - rhs);
+  }
+
+  public static void imul(EffesState state) {
+    int rhs = state.popInt();
+    int lhs = state.popInt();
+    state.pushInt(lhs * rhs);
+  }
+
+  public static void idiv(EffesState state) {
+    int rhs = state.popInt();
+    int lhs = state.popInt();
+    state.pushInt(lhs / rhs);
+  }
+
+  // comparisons pop their lhs first (see IntegerOps)
+
+  public static void ilt(EffesState state) {
+    state.pushBoolean(state.popInt() < state.popInt());
+  }
+
+  public static void ile(EffesState state) {
+    state.pushBoolean(state.popInt() <= state.popInt());
+  }
+
+  public static void ieq(EffesState state) {
+    state.pushBoolean(state.popInt() == state.popInt());
+  }
+
+  public static void ine(EffesState state) {
+    state.pushBoolean(state.popInt() != state.popInt());
+  }
+
+  public static void ige(EffesState state) {
+    state.pushBoolean(state.popInt() >= state.popInt());
+  }
+
+  public static void igt(EffesState state) {
+    state.pushBoolean(state.popInt() > state.popInt());
+  }
+
+  /**
+   * Translates a failure within compiled code into the exception that should be thrown. This also points the state's pc at the failed op, so that
+   * {@link EffesState#getStackTrace()} looks just as it would have in the interpreter.
+   */
+  public static Throwable fail(EffesState state, EffesFunction function, int pc, Throwable error) {
+    if (error instanceof Exception) {
+      return SwitchInterpreter.opFailed(state, function, pc, (Exception) error);
+    }
+    return error;
+  }
+
+  public static Throwable fellOffEnd(EffesFunction function) {
+    return new IllegalStateException("fell off the end of " + function);
+  }
+}
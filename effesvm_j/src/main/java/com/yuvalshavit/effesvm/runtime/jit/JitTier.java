@@ -0,0 +1,78 @@
+package com.yuvalshavit.effesvm.runtime.jit;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.runtime.DecodedFunction;
+
+/**
+ * Decides when a function is hot enough to compile, and compiles it.
+ *
+ * Every invocation of a function bumps its count. Once the count reaches the threshold, the function is compiled via {@link FunctionCompiler}. If that
+ * fails for any reason, the function is marked as uncompilable and just stays in the interpreter.
+ *
+ * Compiled code calls other functions by nesting JVM frames, so a deep enough recursion would overflow the JVM stack well before the Effes stack. To
+ * keep that from happening, only so many compiled functions can be running at once on the JVM stack (the nesting limit); calls past that are
+ * interpreted instead, in a single loop that doesn't grow the JVM stack.
+ */
+public class JitTier {
+  public static final String THRESHOLD_PROPERTY = "jit.threshold";
+  public static final int DEFAULT_THRESHOLD = 1000;
+  public static final String NESTING_PROPERTY = "jit.nesting";
+  public static final int DEFAULT_NESTING = 256;
+
+  private final int threshold;
+  private final int maxNesting;
+  private int nCompiled;
+
+  public JitTier(int threshold) {
+    this(threshold, DEFAULT_NESTING);
+  }
+
+  public JitTier(int threshold, int maxNesting) {
+    if (threshold < 1) {
+      throw new IllegalArgumentException("threshold must be at least 1: " + threshold);
+    }
+    if (maxNesting < 1) {
+      throw new IllegalArgumentException("nesting limit must be at least 1: " + maxNesting);
+    }
+    this.threshold = threshold;
+    this.maxNesting = maxNesting;
+  }
+
+  public static JitTier fromSystemProperties() {
+    return new JitTier(Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD), Integer.getInteger(NESTING_PROPERTY, DEFAULT_NESTING));
+  }
+
+  /**
+   * Records an invocation of the given function, and returns its compiled form if it has one (possibly compiled just now).
+   *
+   * @return the compiled function, or null if it should be interpreted
+   */
+  public CompiledFunction onInvoke(EffesFunction function) {
+    DecodedFunction decoded = function.decoded();
+    CompiledFunction compiled = decoded.compiled();
+    if (compiled != null || decoded.isUncompilable() || decoded.countInvocation() < threshold) {
+      return compiled;
+    }
+    try {
+      compiled = FunctionCompiler.compile(function);
+    } catch (RuntimeException | LinkageError e) {
+      System.err.printf("couldn't compile %s; it will stay interpreted: %s%n", function, e);
+      decoded.markUncompilable();
+      return null;
+    }
+    decoded.setCompiled(compiled);
+    ++nCompiled;
+    return compiled;
+  }
+
+  /**
+   * How many compiled functions can be running at once on the JVM stack.
+   */
+  public int maxNesting() {
+    return maxNesting;
+  }
+
+  public int nCompiled() {
+    return nCompiled;
+  }
+}
@@ -0,0 +1,257 @@
+package com.yuvalshavit.effesvm.runtime.profiler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.runtime.DebugServer;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+
+/**
+ * An exact profiler. For each function, it counts calls, the ops it ran itself (self) and the ops that ran while it was on the stack (total), and
+ * likewise the wall time. It also counts how many times each opcode ran. It hooks into frames opening and closing through
+ * {@link EffesState.FrameListener}, and counts ops in {@link #beforeAction}.
+ *
+ * When it's closed, it writes two files: a text report, sorted by total ops, and a tab-separated data file for comparing builds. The data file only has
+ * the op and call counts, which are the same from one run of a program to the next given the same input; wall times aren't, so they're only in the
+ * report. A recursive function's totals only count its outermost call, so that the inner ones aren't counted more than once.
+ */
+public class InstrumentingProfiler implements DebugServer, EffesState.FrameListener {
+  public static final String PROPERTY = "profile.instrumented";
+  public static final String REPORT_SUFFIX = ".txt";
+  public static final String DATA_SUFFIX = ".tsv";
+
+  private final String outFileBase;
+  private final Map<EffesFunction, FunctionStats> stats = new IdentityHashMap<>();
+  private final Deque<Activation> activations = new ArrayDeque<>();
+  private EffesState state;
+  private boolean entering;
+  private long ops;
+
+  public InstrumentingProfiler(String outFileBase) {
+    this.outFileBase = outFileBase;
+  }
+
+  /**
+   * Creates a profiler from the system properties, or returns null if {@value #PROPERTY} isn't set.
+   */
+  public static InstrumentingProfiler fromSystemProperties() {
+    String outFileBase = System.getProperty(PROPERTY);
+    return outFileBase == null || outFileBase.isEmpty()
+      ? null
+      : new InstrumentingProfiler(outFileBase);
+  }
+
+  @Override
+  public void beforeAction(EffesState state) {
+    if (this.state != state) {
+      // a new run, whose first frame was opened before we could listen to it; it's entered now, like any other
+      if (this.state != null) {
+        this.state.setFrameListener(null);
+        exitAll();
+      }
+      this.state = state;
+      state.setFrameListener(this);
+      entering = true;
+    }
+    ProgramCounter pc = state.pc();
+    if (entering) {
+      entering = false;
+      enter(pc.getCurrentFunction());
+    }
+    ++ops;
+    ++activations.peek().stats.opCounts[pc.getOpIdx()];
+  }
+
+  @Override
+  public void frameOpened() {
+    // the pc is still at the call; the callee is whatever the next op is in
+    entering = true;
+  }
+
+  @Override
+  public void frameReplaced() {
+    exit(System.nanoTime());
+    entering = true;
+  }
+
+  @Override
+  public void frameClosed() {
+    exit(System.nanoTime());
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (state != null) {
+      state.setFrameListener(null);
+    }
+    exitAll();
+    List<FunctionSummary> summaries = summarize();
+    writeReport(summaries);
+    writeData(summaries);
+  }
+
+  /**
+   * Exits any functions that are still running, which is to say those that never returned because the program failed.
+   */
+  private void exitAll() {
+    long now = System.nanoTime();
+    while (!activations.isEmpty()) {
+      exit(now);
+    }
+  }
+
+  private void enter(EffesFunction function) {
+    FunctionStats functionStats = stats.computeIfAbsent(function, FunctionStats::new);
+    ++functionStats.calls;
+    ++functionStats.active;
+    activations.push(new Activation(functionStats, ops, System.nanoTime()));
+  }
+
+  private void exit(long now) {
+    if (activations.isEmpty()) {
+      return; // a frame that was open before we were
+    }
+    Activation activation = activations.pop();
+    FunctionStats functionStats = activation.stats;
+    long elapsedNanos = now - activation.startNanos;
+    functionStats.selfNanos += elapsedNanos - activation.childNanos;
+    if (--functionStats.active == 0) {
+      functionStats.totalOps += ops - activation.startOps;
+      functionStats.totalNanos += elapsedNanos;
+    }
+    Activation caller = activations.peek();
+    if (caller != null) {
+      caller.childNanos += elapsedNanos;
+    }
+  }
+
+  private List<FunctionSummary> summarize() {
+    NavigableMap<EffesFunctionId, FunctionSummary> byId = new TreeMap<>();
+    stats.values().forEach(s -> {
+      FunctionSummary summary = byId.computeIfAbsent(s.function.id(), FunctionSummary::new);
+      summary.calls += s.calls;
+      summary.totalOps += s.totalOps;
+      summary.selfNanos += s.selfNanos;
+      summary.totalNanos += s.totalNanos;
+      for (long opCount : s.opCounts) {
+        summary.selfOps += opCount;
+      }
+    });
+    return new ArrayList<>(byId.values());
+  }
+
+  private NavigableMap<String, Long> opcodeCounts() {
+    NavigableMap<String, Long> counts = new TreeMap<>();
+    stats.values().forEach(s -> {
+      for (int i = 0; i < s.opCounts.length; ++i) {
+        if (s.opCounts[i] != 0) {
+          counts.merge(s.function.opAt(i).info().opcode(), s.opCounts[i], Long::sum);
+        }
+      }
+    });
+    return counts;
+  }
+
+  private void writeReport(List<FunctionSummary> summaries) throws IOException {
+    List<FunctionSummary> sorted = new ArrayList<>(summaries);
+    sorted.sort(Comparator.comparingLong((FunctionSummary s) -> s.totalOps).reversed().thenComparing(s -> s.id));
+    int idWidth = sorted.stream().mapToInt(s -> s.id.toString().length()).max().orElse(0);
+    idWidth = Math.max(idWidth, "function".length());
+    String headerFormat = "%-" + idWidth + "s %10s %14s %14s %12s %12s%n";
+    String rowFormat = "%-" + idWidth + "s %10d %14d %14d %12.3f %12.3f%n";
+    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(outFileBase + REPORT_SUFFIX), StandardCharsets.UTF_8);
+         PrintWriter printer = new PrintWriter(writer))
+    {
+      printer.format(headerFormat, "function", "calls", "self ops", "total ops", "self ms", "total ms");
+      for (FunctionSummary s : sorted) {
+        printer.format(rowFormat, s.id, s.calls, s.selfOps, s.totalOps, millis(s.selfNanos), millis(s.totalNanos));
+      }
+      printer.println();
+
+      List<Map.Entry<String, Long>> opcodes = new ArrayList<>(opcodeCounts().entrySet());
+      opcodes.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+      int opcodeWidth = opcodes.stream().mapToInt(e -> e.getKey().length()).max().orElse(0);
+      opcodeWidth = Math.max(opcodeWidth, "opcode".length());
+      printer.format("%-" + opcodeWidth + "s %14s %7s%n", "opcode", "count", "%");
+      for (Map.Entry<String, Long> opcode : opcodes) {
+        printer.format("%-" + opcodeWidth + "s %14d %6.2f%%%n", opcode.getKey(), opcode.getValue(), 100.0 * opcode.getValue() / Math.max(ops, 1));
+      }
+    }
+  }
+
+  private void writeData(List<FunctionSummary> summaries) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(outFileBase + DATA_SUFFIX), StandardCharsets.UTF_8);
+         PrintWriter printer = new PrintWriter(writer))
+    {
+      printer.println("# function\tid\tcalls\tself ops\ttotal ops");
+      for (FunctionSummary s : summaries) {
+        printer.printf("function\t%s\t%d\t%d\t%d%n", s.id, s.calls, s.selfOps, s.totalOps);
+      }
+      printer.println("# opcode\topcode\tcount");
+      opcodeCounts().forEach((opcode, count) -> printer.printf("opcode\t%s\t%d%n", opcode, count));
+    }
+  }
+
+  private static double millis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static class FunctionStats {
+    final EffesFunction function;
+    final long[] opCounts;
+    long calls;
+    long totalOps;
+    long selfNanos;
+    long totalNanos;
+    /** How many of this function's activations are on the stack. */
+    int active;
+
+    FunctionStats(EffesFunction function) {
+      this.function = function;
+      this.opCounts = new long[function.nOps()];
+    }
+  }
+
+  private static class Activation {
+    final FunctionStats stats;
+    final long startOps;
+    final long startNanos;
+    long childNanos;
+
+    Activation(FunctionStats stats, long startOps, long startNanos) {
+      this.stats = stats;
+      this.startOps = startOps;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private static class FunctionSummary {
+    final EffesFunctionId id;
+    long calls;
+    long selfOps;
+    long totalOps;
+    long selfNanos;
+    long totalNanos;
+
+    FunctionSummary(EffesFunctionId id) {
+      this.id = id;
+    }
+  }
+}
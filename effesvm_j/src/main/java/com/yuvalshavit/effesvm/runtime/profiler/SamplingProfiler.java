@@ -0,0 +1,131 @@
+package com.yuvalshavit.effesvm.runtime.profiler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+import com.yuvalshavit.effesvm.runtime.SamplingDebugServer;
+
+/**
+ * A sampling profiler. A background thread asks for a sample every so often, and the interpreter takes it the next time it checks (see
+ * {@link SamplingDebugServer}); so the only cost is reading one volatile flag, and the stack is never read while it's changing. Since the profiler
+ * doesn't need to see each op, the program runs with the same optimizations as it would without it. Time spent blocked outside of ops, such as waiting
+ * for input, isn't sampled.
+ *
+ * When it's closed, it writes the samples as collapsed stacks: one line per distinct stack, with its frames from the outermost in, separated by
+ * <code>;</code>, followed by a space and the number of samples. Each frame is a function id, and the source line of the op it's at if that's known.
+ * Ops that were inlined show up as their own frame, within the function they were inlined into. This is the input format that flamegraph tools expect.
+ */
+public class SamplingProfiler implements SamplingDebugServer {
+  public static final String PROPERTY = "profile";
+  public static final String INTERVAL_PROPERTY = "profile.interval.ms";
+  public static final int DEFAULT_INTERVAL_MS = 10;
+
+  private static final char FRAME_SEPARATOR = ';';
+
+  private final String outFile;
+  private final Map<String, Long> samples = new HashMap<>();
+  private final Thread sampler;
+  private volatile boolean sampleRequested;
+
+  public SamplingProfiler(String outFile, long intervalMs) {
+    if (intervalMs <= 0) {
+      throw new IllegalArgumentException("interval must be positive: " + intervalMs);
+    }
+    this.outFile = outFile;
+    sampler = new Thread(() -> {
+      try {
+        while (true) {
+          TimeUnit.MILLISECONDS.sleep(intervalMs);
+          sampleRequested = true;
+        }
+      } catch (InterruptedException e) {
+        // closed
+      }
+    }, "effes-profiler");
+    sampler.setDaemon(true);
+    sampler.start();
+  }
+
+  /**
+   * Creates a profiler from the system properties, or returns null if {@value #PROPERTY} isn't set.
+   */
+  public static SamplingProfiler fromSystemProperties() {
+    String outFile = System.getProperty(PROPERTY);
+    if (outFile == null || outFile.isEmpty()) {
+      return null;
+    }
+    return new SamplingProfiler(outFile, Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_MS));
+  }
+
+  @Override
+  public boolean sampleRequested() {
+    return sampleRequested;
+  }
+
+  @Override
+  public void sample(EffesState state) {
+    sampleRequested = false;
+    samples.merge(collapse(state.getStackTrace()), 1L, Long::sum);
+  }
+
+  /**
+   * The samples taken so far, by collapsed stack. This must only be called from the thread that runs the program.
+   */
+  public Map<String, Long> samples() {
+    return new TreeMap<>(samples);
+  }
+
+  @Override
+  public void close() throws IOException {
+    sampler.interrupt();
+    try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(outFile), StandardCharsets.UTF_8);
+         PrintWriter printer = new PrintWriter(writer))
+    {
+      samples().forEach((stack, count) -> printer.printf("%s %d%n", stack, count));
+    }
+  }
+
+  static String collapse(List<ProgramCounter.State> stackTrace) {
+    StringBuilder sb = new StringBuilder();
+    // the stack trace starts at the innermost frame, and collapsed stacks start at the outermost
+    for (int i = stackTrace.size() - 1; i >= 0; --i) {
+      ProgramCounter.State frame = stackTrace.get(i);
+      EffesFunction function = frame.function();
+      OpInfo info = frame.pc() < function.nOps()
+        ? function.opAt(frame.pc()).info()
+        : null;
+      if (info != null && info.inlinedFrom() != null) {
+        // the op's line is in the function it came from, and we don't know which line of this one called that
+        appendFrame(sb, function.id().toString(), null);
+        appendFrame(sb, info.inlinedFrom().toString(), info);
+      } else {
+        appendFrame(sb, function.id().toString(), info);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void appendFrame(StringBuilder sb, String functionName, OpInfo info) {
+    if (sb.length() > 0) {
+      sb.append(FRAME_SEPARATOR);
+    }
+    sb.append(functionName);
+    int sourceLine = info == null ? -1 : info.sourceLineNumberIndexedAt0() + 1;
+    if (sourceLine > 0) {
+      sb.append(':').append(sourceLine);
+    }
+  }
+}
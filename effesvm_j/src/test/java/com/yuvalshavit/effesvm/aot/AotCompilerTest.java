@@ -0,0 +1,193 @@
+package com.yuvalshavit.effesvm.aot;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.program;
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+
+public class AotCompilerTest {
+  private static final EffesModule.Id MAIN = new EffesModule.Id("main");
+
+  @Test
+  public void recursionAndStdin() throws Exception {
+    Map<EffesModule.Id,List<String>> modules = program(MAIN,
+      "FUNC : main 1 1 0",
+      "call_Stream:stdinLine",
+      "typp False",
+      "goif 10",
+      "call_Integer:parse",
+      "call : fib",
+      "call_native:toString",
+      "call_String:sout",
+      "str   \"\\n\"",
+      "call_String:sout",
+      "goto 0",
+      "pop",
+      "int 0",
+      "rtrn",
+      "",
+      "FUNC : fib 1 1 0",
+      "int  1",
+      "pvar 0",
+      "call_Integer:le",
+      "gofi 6",
+      "pvar 0",
+      "rtrn",
+      "pvar 0",
+      "int  1",
+      "call_Integer:sub",
+      "call : fib",
+      "pvar 0",
+      "int  2",
+      "call_Integer:sub",
+      "call : fib",
+      "call_Integer:add",
+      "rtrn");
+    Result result = compileAndRun(modules, "1\n5\n20\n");
+    assertEquals(result.out, "1\n5\n6765\n");
+    assertEquals(result.exitCode, 0);
+  }
+
+  @Test
+  public void typesInstanceFunctionsAndLabels() throws Exception {
+    Map<EffesModule.Id,List<String>> modules = program(MAIN,
+      "TYPE 0 House nDoors nWindows",
+      "FUNC : main 1 1 0",
+      "goto $start",
+      "debug-print",
+      "labl $start",
+      "int  12",
+      "int  2",
+      "call :House House",
+      "call :House describe",
+      "call_native:toString",
+      "call_String:sout",
+      "int  3",
+      "rtrn",
+      "",
+      "FUNC :House describe 0 1 0",
+      "pvar 0",
+      "pfld :House nDoors",
+      "pvar 0",
+      "pfld :House nWindows",
+      "call_Integer:add",
+      "rtrn");
+    Result result = compileAndRun(modules, "");
+    assertEquals(result.out, "14");
+    assertEquals(result.exitCode, 3);
+  }
+
+  @Test
+  public void crossModuleCall() throws Exception {
+    EffesModule.Id other = new EffesModule.Id("other");
+    Map<EffesModule.Id,List<String>> modules = program(MAIN,
+      "FUNC : main 1 1 0",
+      "str hello",
+      "call other: shout",
+      "call_String:sout",
+      "int 0",
+      "rtrn");
+    modules.putAll(program(other,
+      "FUNC : shout 1 1 0",
+      "pvar 0",
+      "str \"!\"",
+      "call_String:concat",
+      "rtrn"));
+    Result result = compileAndRun(modules, "");
+    assertEquals(result.out, "hello!");
+    assertEquals(result.exitCode, 0);
+  }
+
+  @Test
+  public void tailCalls() throws Exception {
+    Map<EffesModule.Id,List<String>> modules = program(MAIN,
+      "FUNC : main 1 1 0",
+      "int  50000",
+      "int  0",
+      "call : sumTo",
+      "call : show",
+      "int  0",
+      "rtrn",
+      "",
+      "FUNC : sumTo 2 1 0",
+      "int  0",
+      "pvar 0",
+      "call_Integer:le",
+      "gofi 6",
+      "pvar 1",
+      "rtrn",
+      "pvar 0",
+      "int  1",
+      "call_Integer:sub",
+      "pvar 1",
+      "pvar 0",
+      "call_Integer:add",
+      "call : sumTo",
+      "rtrn",
+      "",
+      "FUNC : show 1 0 0",
+      "pvar 0",
+      "call_native:toString",
+      "call : print",
+      "rtrn",
+      "",
+      "FUNC : print 1 0 0",
+      "pvar 0",
+      "call_String:sout",
+      "rtrn");
+    Result result = compileAndRun(modules, "");
+    assertEquals(result.out, "1250025000");
+    assertEquals(result.exitCode, 0);
+  }
+
+  private static Result compileAndRun(Map<EffesModule.Id,List<String>> modules, String stdin) throws IOException, InterruptedException {
+    Path jar = Files.createTempFile("effes-aot", ".jar");
+    try {
+      try (OutputStream out = Files.newOutputStream(jar)) {
+        AotCompiler.compile(modules, MAIN, out);
+      }
+      String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      Process process = new ProcessBuilder(Arrays.asList(java, "-jar", jar.toString())).redirectErrorStream(true).start();
+      try (OutputStream in = process.getOutputStream()) {
+        in.write(stdin.getBytes(StandardCharsets.UTF_8));
+      }
+      String out = readAll(process.getInputStream());
+      return new Result(out, process.waitFor());
+    } finally {
+      Files.delete(jar);
+    }
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    for (int n; (n = in.read(buf)) > 0; ) {
+      bytes.write(buf, 0, n);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static class Result {
+    final String out;
+    final int exitCode;
+
+    Result(String out, int exitCode) {
+      this.out = out;
+      this.exitCode = exitCode;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.yuvalshavit.effesvm.load;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.link;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesNativeObject;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EffesRef;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+
+public class ConstantFoldingPassTest {
+  private static final EffesModule.Id MODULE = new EffesModule.Id("main");
+  private static final Function<String,OperationFactories.ReflectiveOperationBuilder> opBuilders =
+    OperationFactories.fromInstance(new EffesOpsImpl(EffesIo.stdio()));
+
+  @Test
+  public void arithmeticIntoBranch() {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(),
+      "FUNC : main 1 1 0",
+      "int  2",
+      "int  3",
+      "call_Integer:mult",
+      "int  6",
+      "call_Integer:eq",
+      "gofi 8",
+      "int  1",
+      "rtrn",
+      "int  2",
+      "rtrn");
+
+    Map<EffesFunctionId,ConstantFoldingPass.OpCounts> report = ConstantFoldingPass.apply(modules, opBuilders);
+    assertEquals(report.keySet(), Collections.singleton(function(modules).id()));
+    assertEquals(report.values().iterator().next().toString(), "10 -> 2");
+    assertEquals(infos(function(modules)), "int 1; rtrn");
+    assertEquals(run(modules), EffesNativeObject.forInt(1));
+  }
+
+  @Test
+  public void operandOrder() {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(),
+      "FUNC : main 1 1 0",
+      "int  10",
+      "int  4",
+      "call_Integer:sub", // 10 - 4
+      "int  7",
+      "call_Integer:lt",  // 7 < 6
+      "bool True",
+      "call_Boolean:xor",
+      "gofi 12",
+      "str  \"yes, \"",
+      "str  \"sir\"",
+      "call_String:concat",
+      "rtrn",
+      "fail \"folded wrong\"");
+
+    ConstantFoldingPass.apply(modules, opBuilders);
+    assertEquals(infos(function(modules)), "str yes, sir; rtrn");
+    assertEquals(run(modules), EffesNativeObject.forString("yes, sir"));
+  }
+
+  @Test
+  public void deadCodeAndGotoNext() {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(),
+      "FUNC : main 1 1 0",
+      "int  5",
+      "goto 3",
+      "int  4",
+      "int  2",
+      "call_Integer:sub",
+      "rtrn");
+
+    // the first pass removes the dead "int 4", and then the goto that now just goes to the next op; the second pass can then fold the subtraction
+    assertEquals(ConstantFoldingPass.apply(modules, opBuilders).values().iterator().next().toString(), "6 -> 2");
+    assertEquals(infos(function(modules)), "int 3; rtrn");
+  }
+
+  @Test
+  public void jumpIntoSequence() {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(),
+      "FUNC : main 1 1 0",
+      "pvar 0",
+      "call_Array:len",
+      "int  0",
+      "call_Integer:eq",
+      "goif 7",
+      "int  10",
+      "goto 8",
+      "int  20",
+      "int  1", // the goto lands here, so this can't be folded with the int before it
+      "call_Integer:add",
+      "int  1",
+      "int  0",
+      "call_Integer:div", // division by zero is left for runtime
+      "pop",
+      "rtrn");
+
+    assertTrue(ConstantFoldingPass.apply(modules, opBuilders).isEmpty());
+    assertEquals(function(modules).nOps(), 15);
+  }
+
+  private static String infos(EffesFunction function) {
+    List<String> result = new ArrayList<>(function.nOps());
+    for (int i = 0; i < function.nOps(); ++i) {
+      OpInfo info = function.opAt(i).info();
+      result.add(info.arguments().isEmpty() ? info.opcode() : (info.opcode() + " " + String.join(" ", info.arguments())));
+    }
+    return String.join("; ", result);
+  }
+
+  private static EffesRef<?> run(Map<EffesModule.Id,EffesModule> modules) {
+    EffesFunction main = function(modules);
+    EffesState state = new EffesState(ProgramCounter.start(), 500, main.nVars() + 1);
+    state.pc().restore(ProgramCounter.firstLineOfFunction(main));
+    state.push(new EffesNativeObject.EffesArray(0));
+    state.popToVar(0);
+    while (!state.pc().isAt(ProgramCounter.end())) {
+      state.pc().getOp().apply(state).accept(state.pc());
+    }
+    return state.getFinalPop();
+  }
+
+  private static EffesFunction function(Map<EffesModule.Id,EffesModule> modules) {
+    return modules.get(MODULE).getFunction(new EffesFunctionId(EfctScope.ofStatic(MODULE), "main"));
+  }
+}
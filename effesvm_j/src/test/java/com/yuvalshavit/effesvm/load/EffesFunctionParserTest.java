@@ -0,0 +1,94 @@
+package com.yuvalshavit.effesvm.load;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.efct;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+
+public class EffesFunctionParserTest {
+  private static final int N_MODULES = 50;
+
+  @Test
+  public void linksAcrossModules() {
+    // each module's function calls the next module's
+    Map<EffesModule.Id,List<String>> inputs = new HashMap<>();
+    for (int i = 0; i < N_MODULES; ++i) {
+      if (i + 1 < N_MODULES) {
+        inputs.put(module(i), efct(
+          "FUNC : f 0 1 0",
+          "call " + module(i + 1) + ": f",
+          "rtrn"));
+      } else {
+        inputs.put(module(i), efct(
+          "FUNC : f 0 1 0",
+          "int  " + i,
+          "rtrn"));
+      }
+    }
+    Map<EffesModule.Id,EffesModule> linked = link(inputs);
+    assertEquals(linked.size(), N_MODULES);
+    for (int i = 0; i < N_MODULES; ++i) {
+      EffesFunction f = linked.get(module(i)).getFunction(new EffesFunctionId(EfctScope.ofStatic(module(i)), "f"));
+      assertEquals(f.nOps(), 2, f.toString());
+    }
+  }
+
+  @Test
+  public void outlineFailureIsFromFirstModule() {
+    Map<EffesModule.Id,List<String>> inputs = new HashMap<>();
+    for (int i = 0; i < N_MODULES; ++i) {
+      inputs.put(module(i), efct("BOGUS"));
+    }
+    for (int attempt = 0; attempt < 10; ++attempt) {
+      try {
+        Parser.parseAll(inputs);
+        fail("expected an exception");
+      } catch (EffesLoadException e) {
+        assertTrue(e.getMessage().endsWith(" of " + module(0)), e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void linkFailureIsFromLowestLine() {
+    EffesModule.Id module = module(0);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < N_MODULES; ++i) {
+      Collections.addAll(lines,
+        "FUNC : f" + i + " 0 1 0",
+        "call : missing" + i,
+        "rtrn",
+        "");
+    }
+    Map<EffesModule.Id,List<String>> inputs = Collections.singletonMap(module, efct(lines.toArray(new String[0])));
+    for (int attempt = 0; attempt < 10; ++attempt) {
+      try {
+        link(inputs);
+        fail("expected an exception");
+      } catch (NoSuchElementException e) {
+        assertEquals(e.getMessage(), "method " + new EffesFunctionId(EfctScope.ofStatic(module), "missing0"));
+      }
+    }
+  }
+
+  private static EffesModule.Id module(int i) {
+    return new EffesModule.Id(String.format("m%02d", i));
+  }
+
+  private static Map<EffesModule.Id,EffesModule> link(Map<EffesModule.Id,List<String>> inputs) {
+    return EffesFunctionParser.parse(Parser.parseAll(inputs), OperationFactories.fromInstance(new EffesOpsImpl(EffesIo.stdio())));
+  }
+}
@@ -0,0 +1,155 @@
+package com.yuvalshavit.effesvm.load;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.link;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.ops.FusedOperation;
+import com.yuvalshavit.effesvm.ops.Operation;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesNativeObject;
+import com.yuvalshavit.effesvm.runtime.EffesRef;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+
+public class FusionPassTest {
+  private static final EffesModule.Id MODULE = new EffesModule.Id("main");
+
+  private static final String[] fib = {
+    "FUNC : main 1 1 0",
+    "int 15",
+    "call : fib",
+    "rtrn",
+    "",
+    "FUNC : fib 1 1 0",
+    "int  1",
+    "pvar 0",
+    "call_Integer:le",
+    "gofi 6",
+    "pvar 0",
+    "rtrn",
+    "pvar 0",
+    "int  1",
+    "call_Integer:sub",
+    "call : fib",
+    "pvar 0",
+    "int  2",
+    "call_Integer:sub",
+    "call : fib",
+    "call_Integer:add",
+    "rtrn",
+  };
+
+  @Test
+  public void fib() {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(), fib);
+    List<String> originalInfos = infos(function(modules, "fib"));
+
+    Map<EffesFunctionId,Integer> report = FusionPass.apply(modules);
+    assertEquals(report, Collections.singletonMap(function(modules, "fib").id(), 3));
+    EffesFunction fib = function(modules, "fib");
+    assertEquals(infos(fib), originalInfos);
+    assertEquals(fusedLengths(fib), Arrays.asList(4, 0, 0, 0, 0, 0, 3, 0, 0, 0, 3, 0, 0, 0, 0, 0));
+    assertEquals(run(modules), EffesNativeObject.forInt(610));
+  }
+
+  @Test
+  public void loopWithLabelsAndTypeCheck() {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(),
+      "FUNC : main 1 1 0",
+      "bool False",
+      "type False",
+      "gofi 24",
+      "int  0",
+      "svar 1",
+      "int  0",
+      "svar 2",
+      "labl top",
+      "int  10",
+      "pvar 2",
+      "call_Integer:ge",
+      "goif done",
+      "pvar 1",
+      "pvar 2",
+      "call_Integer:add",
+      "svar 1",
+      "pvar 2",
+      "int  1",
+      "call_Integer:add",
+      "svar 2",
+      "goto top",
+      "labl done",
+      "pvar 1",
+      "rtrn",
+      "fail \"type check failed\"");
+    EffesFunction main = function(modules, "main");
+    List<String> originalInfos = infos(main);
+
+    assertEquals(FusionPass.fuse(main), 4);
+    assertEquals(infos(main), originalInfos);
+    assertTrue(main.opAt(1) instanceof FusedOperation);
+    assertTrue(main.opAt(7) instanceof FusedOperation, "labels aren't ops, so the loop condition right after one is fused");
+    assertEquals(main.labelBefore(7), "top");
+    assertEquals(run(modules), EffesNativeObject.forInt(45));
+  }
+
+  @Test
+  public void jumpIntoFusedSequence() {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(),
+      "FUNC : main 1 1 0",
+      "int  7",
+      "svar 1",
+      "int  5",
+      "goto 5",
+      "pvar 1",
+      "int  3",
+      "call_Integer:sub",
+      "rtrn");
+    // ops 4-6 are fused, but the goto skips the pvar and lands on the int: 5 - 3
+    EffesFunction main = function(modules, "main");
+    assertEquals(FusionPass.fuse(main), 1);
+    assertTrue(main.opAt(4) instanceof FusedOperation);
+    assertEquals(run(modules), EffesNativeObject.forInt(2));
+  }
+
+  private static EffesRef<?> run(Map<EffesModule.Id,EffesModule> modules) {
+    EffesFunction main = function(modules, "main");
+    EffesState state = new EffesState(ProgramCounter.start(), 500, main.nVars() + 1);
+    state.pc().restore(ProgramCounter.firstLineOfFunction(main));
+    state.push(new EffesNativeObject.EffesArray(0));
+    state.popToVar(0);
+    while (!state.pc().isAt(ProgramCounter.end())) {
+      state.pc().getOp().apply(state).accept(state.pc());
+    }
+    return state.getFinalPop();
+  }
+
+  private static List<String> infos(EffesFunction function) {
+    List<String> result = new ArrayList<>(function.nOps());
+    for (int i = 0; i < function.nOps(); ++i) {
+      result.add(function.opAt(i).info().toString());
+    }
+    return result;
+  }
+
+  private static List<Integer> fusedLengths(EffesFunction function) {
+    List<Integer> result = new ArrayList<>(function.nOps());
+    for (int i = 0; i < function.nOps(); ++i) {
+      Operation op = function.opAt(i);
+      result.add(op instanceof FusedOperation ? ((FusedOperation) op).components().size() : 0);
+    }
+    return result;
+  }
+
+  private static EffesFunction function(Map<EffesModule.Id,EffesModule> modules, String name) {
+    return modules.get(MODULE).getFunction(new EffesFunctionId(EfctScope.ofStatic(MODULE), name));
+  }
+}
@@ -0,0 +1,196 @@
+package com.yuvalshavit.effesvm.load;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.efct;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.ops.OpInfo;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesNativeObject;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EffesRef;
+import com.yuvalshavit.effesvm.runtime.EffesRuntimeException;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+
+public class InlinerTest {
+  private static final EffesModule.Id MAIN = new EffesModule.Id("main");
+  private static final EffesModule.Id OTHER = new EffesModule.Id("other");
+  private static final Function<String,OperationFactories.ReflectiveOperationBuilder> opBuilders =
+    OperationFactories.fromInstance(new EffesOpsImpl(EffesIo.stdio()));
+
+  @Test
+  public void getterFromOtherModule() {
+    Map<EffesModule.Id,List<String>> efct = new HashMap<>();
+    efct.put(MAIN, efct(
+      "FUNC : main 1 1 0",
+      "int  3",
+      "int  4",
+      "call other:House House",
+      "call other:House doors",
+      "rtrn"));
+    efct.put(OTHER, efct(
+      "TYPE 0 House nDoors nWindows",
+      "FUNC :House doors 0 1 0",
+      "pvar 0",
+      "pfld :House nDoors",
+      "rtrn"));
+    Map<EffesModule.Id,EffesModule> modules = load(efct);
+
+    assertEquals(Inliner.apply(modules, opBuilders, Inliner.DEFAULT_MAX_OPS), 1);
+    EffesFunction main = function(modules, "main");
+    // if "this" has the wrong type, it falls back to the original call
+    assertEquals(opcodes(main), "int int call svar pvar type goif pvar call goto pvar pfld rtrn");
+    assertNull(main.opAt(8).info().inlinedFrom(), "the fallback call stands in for the call");
+    OpInfo pfld = main.opAt(11).info();
+    assertEquals(pfld.arguments(), Arrays.asList("other:House", "nDoors"));
+    assertEquals(pfld.inlinedFrom().toString(), "other:House[doors]");
+    assertTrue(pfld.toString().endsWith("(inlined from other:House[doors])"), pfld.toString());
+    assertNull(main.opAt(3).info().inlinedFrom(), "binding the args stands in for the call");
+    assertEquals(main.nVars(), 1);
+    assertEquals(run(modules), EffesNativeObject.forInt(4));
+  }
+
+  @Test
+  public void staticFunctionWithLabelsAndTwoReturns() {
+    Map<EffesModule.Id,EffesModule> modules = load(MAIN,
+      "FUNC : main 1 1 0",
+      "int  3",
+      "int  8",
+      "call : max",
+      "svar 1",
+      "goto after",
+      "fail \"skipped\"",
+      "labl after",
+      "int  20",
+      "pvar 1",
+      "call : max",
+      "rtrn",
+      "",
+      "FUNC : max 2 1 0",
+      "pvar 1",
+      "pvar 0",
+      "call_Integer:lt",
+      "goif bIsBigger",
+      "pvar 0",
+      "rtrn",
+      "labl bIsBigger",
+      "pvar 1",
+      "rtrn");
+
+    assertEquals(Inliner.apply(modules, opBuilders, 9), 2);
+    EffesFunction main = function(modules, "main");
+    assertFalse(Arrays.asList(opcodes(main).split(" ")).contains("call"), opcodes(main));
+    assertEquals(main.nVars(), 3);
+    assertEquals(run(modules), EffesNativeObject.forInt(20));
+  }
+
+  @Test
+  public void instanceCheck() {
+    Map<EffesModule.Id,EffesModule> modules = load(MAIN,
+      "TYPE 0 Box value",
+      "TYPE 0 Crate value",
+      "FUNC : main 1 1 0",
+      "int  5",
+      "call :Crate Crate",
+      "call :Box unwrapped",
+      "rtrn",
+      "",
+      "FUNC :Box unwrapped 0 1 0",
+      "int  1",
+      "pvar 0",
+      "pfld :Box value",
+      "call_Integer:add",
+      "rtrn");
+
+    assertEquals(Inliner.apply(modules, opBuilders, Inliner.DEFAULT_MAX_OPS), 1);
+    assertEquals(opcodes(function(modules, "main")), "int call svar pvar type goif pvar call goto int pvar pfld call_Integer:add rtrn");
+    // the same failure as the call would have had
+    try {
+      run(modules);
+      fail("expected an exception");
+    } catch (EffesRuntimeException e) {
+      assertTrue(e.getMessage().startsWith("instance function invoked on wrong EffesObject instance: "), e.getMessage());
+    }
+  }
+
+  @Test
+  public void notInlined() {
+    Map<EffesModule.Id,EffesModule> modules = load(MAIN,
+      "FUNC : main 1 1 0",
+      "int  5",
+      "call : forever",
+      "call : big",
+      "call : noisy",
+      "rtrn",
+      "",
+      "FUNC : forever 1 1 0", // recursive
+      "pvar 0",
+      "call : forever",
+      "rtrn",
+      "",
+      "FUNC : big 1 1 0", // more than 3 ops
+      "pvar 0",
+      "int  1",
+      "call_Integer:add",
+      "rtrn",
+      "",
+      "FUNC : noisy 1 1 0", // debug-print depends on the frame
+      "pvar 0",
+      "debug-print",
+      "rtrn");
+
+    assertEquals(Inliner.apply(modules, opBuilders, 3), 0);
+    assertEquals(opcodes(function(modules, "main")), "int call call call rtrn");
+  }
+
+  private static String opcodes(EffesFunction function) {
+    List<String> result = new ArrayList<>(function.nOps());
+    for (int i = 0; i < function.nOps(); ++i) {
+      result.add(function.opAt(i).info().opcode());
+    }
+    return String.join(" ", result);
+  }
+
+  private static EffesRef<?> run(Map<EffesModule.Id,EffesModule> modules) {
+    EffesFunction main = function(modules, "main");
+    EffesState state = new EffesState(ProgramCounter.start(), 500, main.nVars() + 1);
+    state.pc().restore(ProgramCounter.firstLineOfFunction(main));
+    state.push(new EffesNativeObject.EffesArray(0));
+    state.popToVar(0);
+    while (!state.pc().isAt(ProgramCounter.end())) {
+      state.pc().getOp().apply(state).accept(state.pc());
+    }
+    return state.getFinalPop();
+  }
+
+  private static EffesFunction function(Map<EffesModule.Id,EffesModule> modules, String name) {
+    return modules.get(MAIN).getFunction(new EffesFunctionId(EfctScope.ofStatic(MAIN), name));
+  }
+
+  private static Map<EffesModule.Id,EffesModule> load(EffesModule.Id module, String... lines) {
+    return load(Collections.singletonMap(module, efct(lines)));
+  }
+
+  private static Map<EffesModule.Id,EffesModule> load(Map<EffesModule.Id,List<String>> efct) {
+    Map<EffesModule.Id,OutlinedModule> outline = new HashMap<>();
+    efct.forEach((id, lines) -> outline.put(id, Parser.parse(id, lines)));
+    Map<EffesModule.Id,EffesModule> modules = EffesFunctionParser.parse(outline, opBuilders);
+    StackVerifier.verifyAll(modules);
+    return modules;
+  }
+}
@@ -0,0 +1,84 @@
+package com.yuvalshavit.effesvm.load;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.efct;
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+public class ReachableModulesTest {
+  private static final EffesModule.Id MAIN = new EffesModule.Id("main");
+
+  @Test
+  public void followsScopes() {
+    Map<EffesModule.Id,List<String>> inputs = new HashMap<>();
+    inputs.put(MAIN, efct(
+      "FUNC : main 1 1 0",
+      "call calls: f",
+      "pfld fields:Box value",
+      "type Integer",
+      "typp types:Thing",
+      "call missing: f",
+      "rtrn"));
+    inputs.put(new EffesModule.Id("calls"), efct(
+      "FUNC : f 0 1 0",
+      "12:3 call transitive: g",
+      "rtrn"));
+    inputs.put(new EffesModule.Id("fields"), efct("TYPE 0 Box value"));
+    inputs.put(new EffesModule.Id("types"), efct("TYPE 0 Thing"));
+    inputs.put(new EffesModule.Id("transitive"), efct(
+      "FUNC : g 0 1 0",
+      "call : g",
+      "rtrn"));
+    inputs.put(new EffesModule.Id("unused"), efct(
+      "FUNC : main 1 1 0",
+      "int  0",
+      "rtrn"));
+
+    List<EffesModule.Id> lookups = new ArrayList<>();
+    Map<EffesModule.Id,OutlinedModule> outline = ReachableModules.outline(MAIN, id -> {
+      lookups.add(id);
+      return inputs.get(id);
+    });
+    assertEquals(new TreeSet<>(outline.keySet()), ids("calls", "fields", "main", "transitive", "types"));
+    assertEquals(new TreeSet<>(lookups), ids("calls", "fields", "main", "missing", "transitive", "types"));
+    assertEquals(lookups.size(), 6, lookups.toString());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void mainIsMissing() {
+    ReachableModules.outline(MAIN, id -> null);
+  }
+
+  @Test
+  public void runsReachableModules() {
+    Map<EffesModule.Id,List<String>> inputs = new HashMap<>();
+    inputs.put(MAIN, efct(
+      "FUNC : main 1 1 0",
+      "call other: f",
+      "rtrn"));
+    inputs.put(new EffesModule.Id("other"), efct(
+      "FUNC : f 0 1 0",
+      "int  7",
+      "rtrn"));
+    inputs.put(new EffesModule.Id("broken"), Collections.singletonList("not efct"));
+    int exitCode = EvmRunner.run(inputs::get, MAIN, new String[0], EffesIo.stdio(), null, c -> Collections.emptyList(), EvmRunner.Engine.OPERATIONS);
+    assertEquals(exitCode, 7);
+  }
+
+  private static TreeSet<EffesModule.Id> ids(String... names) {
+    TreeSet<EffesModule.Id> ids = new TreeSet<>();
+    Arrays.stream(names).map(EffesModule.Id::new).forEach(ids::add);
+    return ids;
+  }
+}
@@ -0,0 +1,228 @@
+package com.yuvalshavit.effesvm.load;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.link;
+import static com.yuvalshavit.effesvm.util.ExtraAsserts.assertExceptionThrown;
+import static org.hamcrest.CoreMatchers.allOf;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.hamcrest.FeatureMatcher;
+import org.hamcrest.Matcher;
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+
+public class StackVerifierTest {
+  private static final EffesModule.Id MODULE = new EffesModule.Id("main");
+
+  @Test
+  public void recursionAndInstanceFunctions() {
+    Map<EffesModule.Id,EffesModule> modules = verify(
+      "TYPE 0 House nDoors",
+      "FUNC : main 1 1 0",
+      "int  12",
+      "call :House House",
+      "call :House doors",
+      "call : fib",
+      "rtrn",
+      "",
+      "FUNC :House doors 0 1 0",
+      "pvar 0",
+      "pfld :House nDoors",
+      "rtrn",
+      "",
+      "FUNC : fib 1 1 0",
+      "int  1",
+      "pvar 0",
+      "call_Integer:le",
+      "gofi 6",
+      "pvar 0",
+      "rtrn",
+      "pvar 0",
+      "int  1",
+      "call_Integer:sub",
+      "call : fib",
+      "pvar 0",
+      "int  2",
+      "call_Integer:sub",
+      "call : fib",
+      "call_Integer:add",
+      "rtrn");
+    assertEquals(function(modules, "main").maxStackDepth(), 1);
+    assertEquals(function(modules, "fib").maxStackDepth(), 3);
+    EffesFunction doors = modules.get(MODULE).getFunction(new EffesFunctionId(EfctScope.parse(":House", MODULE), "doors"));
+    assertEquals(doors.maxStackDepth(), 1);
+  }
+
+  @Test
+  public void loopWithLabels() {
+    Map<EffesModule.Id,EffesModule> modules = verify(
+      "FUNC : main 1 1 0",
+      "int  0",
+      "svar 1",
+      "labl top",
+      "pvar 1",
+      "int  1",
+      "call_Integer:add",
+      "Svar 1",
+      "int  10",
+      "call_Integer:lt",
+      "goif top",
+      "pvar 1",
+      "rtrn");
+    assertEquals(function(modules, "main").maxStackDepth(), 2);
+  }
+
+  @Test
+  public void typfFollowedByBranch() {
+    Map<EffesModule.Id,EffesModule> modules = verify(
+      "FUNC : main 1 1 0",
+      "pvar 0",
+      "typf False",
+      "goif 5",
+      "int  1",
+      "rtrn",
+      "pop",
+      "int  0",
+      "rtrn");
+    assertEquals(function(modules, "main").maxStackDepth(), 2);
+  }
+
+  @Test
+  public void typfNotFollowedByBranch() {
+    Map<EffesModule.Id,EffesModule> modules = verify(
+      "FUNC : main 1 1 0",
+      "pvar 0",
+      "typf False",
+      "pop",
+      "int  0",
+      "rtrn");
+    assertFalse(function(modules, "main").isVerified());
+  }
+
+  @Test
+  public void varMaybeUnset() {
+    Map<EffesModule.Id,EffesModule> modules = verify(
+      "FUNC : main 1 1 0",
+      "bool True",
+      "goif 4",
+      "int  1",
+      "svar 1",
+      "pvar 1",
+      "rtrn");
+    assertFalse(function(modules, "main").isVerified());
+  }
+
+  @Test
+  public void varSetOnAllPaths() {
+    Map<EffesModule.Id,EffesModule> modules = verify(
+      "FUNC : main 1 1 0",
+      "bool True",
+      "goif 5",
+      "int  1",
+      "svar 1",
+      "goto 7",
+      "int  2",
+      "svar 1",
+      "pvar 1",
+      "rtrn");
+    assertTrue(function(modules, "main").isVerified());
+  }
+
+  @Test
+  public void underflow() {
+    assertVerifyFails("main:[main], op #1 (#4 call_Integer:add): pops 2 value(s), but the local stack only has 1",
+      "FUNC : main 1 1 0",
+      "int  1",
+      "call_Integer:add",
+      "rtrn");
+  }
+
+  @Test
+  public void callUnderflow() {
+    assertVerifyFails("pops 2 value(s), but the local stack only has 1",
+      "FUNC : main 1 1 0",
+      "int  1",
+      "call : two",
+      "rtrn",
+      "",
+      "FUNC : two 2 1 0",
+      "pvar 0",
+      "rtrn");
+  }
+
+  @Test
+  public void inconsistentDepths() {
+    assertVerifyFails("reached with local stack depths of both 0 and 2",
+      "FUNC : main 1 1 0",
+      "bool True",
+      "goif 4",
+      "int  1",
+      "int  1",
+      "int  2",
+      "rtrn");
+  }
+
+  @Test
+  public void returnsTooMuch() {
+    assertVerifyFails("rtrn with 2 value(s) on the local stack, but expected 1",
+      "FUNC : main 1 1 0",
+      "int  1",
+      "int  2",
+      "rtrn");
+  }
+
+  @Test
+  public void returnsWithoutRv() {
+    assertVerifyFails("rtrn with 0 value(s) on the local stack, but expected 1",
+      "FUNC : main 1 1 0",
+      "rtrn");
+  }
+
+  @Test
+  public void fallsOffTheEnd() {
+    assertVerifyFails("falls off the end of the function",
+      "FUNC : main 1 1 0",
+      "int  1");
+  }
+
+  @Test
+  public void unreachableOpsAreIgnored() {
+    Map<EffesModule.Id,EffesModule> modules = verify(
+      "FUNC : main 1 1 0",
+      "int  1",
+      "rtrn",
+      "pop",
+      "pop");
+    assertTrue(function(modules, "main").isVerified());
+  }
+
+  private static void assertVerifyFails(String messageSubstring, String... lines) {
+    Matcher<Exception> matcher = allOf(instanceOf(EffesLoadException.class), messageContains(messageSubstring));
+    assertExceptionThrown(() -> verify(lines), matcher);
+  }
+
+  private static Matcher<Exception> messageContains(String substring) {
+    return new FeatureMatcher<Exception,String>(containsString(substring), "message", "message") {
+      @Override
+      protected String featureValueOf(Exception actual) {
+        return actual.getMessage();
+      }
+    };
+  }
+
+  private static EffesFunction function(Map<EffesModule.Id,EffesModule> modules, String name) {
+    return modules.get(MODULE).getFunction(new EffesFunctionId(EfctScope.ofStatic(MODULE), name));
+  }
+
+  private static Map<EffesModule.Id,EffesModule> verify(String... lines) {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(), lines);
+    StackVerifier.verifyAll(modules);
+    return modules;
+  }
+}
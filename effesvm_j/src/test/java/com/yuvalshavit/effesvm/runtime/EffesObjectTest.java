@@ -0,0 +1,66 @@
+package com.yuvalshavit.effesvm.runtime;
+
+import static com.yuvalshavit.effesvm.runtime.EffesNativeObject.forInt;
+import static com.yuvalshavit.effesvm.util.ExtraAsserts.assertExceptionThrown;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+
+public class EffesObjectTest {
+  private static final EffesModule.Id MODULE = new EffesModule.Id("MyModule");
+
+  @DataProvider(name = "nArgs")
+  public Object[][] nArgs() {
+    return new Object[][] { {0}, {1}, {2}, {3}, {4}, {5}, {7} };
+  }
+
+  @Test(dataProvider = "nArgs")
+  public void getAndStore(int nArgs) {
+    EffesRef<?>[] args = new EffesRef<?>[nArgs];
+    for (int i = 0; i < nArgs; ++i) {
+      args[i] = forInt(i);
+    }
+    EffesObject obj = EffesObject.create(type(nArgs), args);
+    for (int i = 0; i < nArgs; ++i) {
+      args[i] = forInt(-1); // the object shouldn't have retained the array
+    }
+    for (int i = 0; i < nArgs; ++i) {
+      assertEquals(obj.getArgAt(i), forInt(i));
+      obj.storeArgTo(i, forInt(i * 10));
+    }
+    for (int i = 0; i < nArgs; ++i) {
+      assertEquals(obj.getArgAt(i), forInt(i * 10));
+    }
+    assertExceptionThrown(() -> obj.getArgAt(nArgs), IndexOutOfBoundsException.class);
+    assertExceptionThrown(() -> obj.storeArgTo(nArgs, forInt(0)), IndexOutOfBoundsException.class);
+  }
+
+  @Test
+  public void nullaryTypesShareOneInstance() {
+    EffesType type = type(0);
+    assertSame(EffesObject.create(type), type.nullaryInstance());
+    assertSame(EffesObject.create(type, new EffesRef<?>[0]), type.nullaryInstance());
+    assertExceptionThrown(() -> type(1).nullaryInstance(), IllegalStateException.class);
+  }
+
+  @Test
+  public void wrongNumberOfArgs() {
+    assertExceptionThrown(() -> EffesObject.create(type(2), forInt(1)), EffesRuntimeException.class);
+    assertExceptionThrown(() -> EffesObject.create(type(5), new EffesRef<?>[4]), EffesRuntimeException.class);
+  }
+
+  private static EffesType type(int nArgs) {
+    List<String> args = new ArrayList<>(nArgs);
+    for (int i = 0; i < nArgs; ++i) {
+      args.add("arg" + i);
+    }
+    return new EffesType(MODULE, "Type" + nArgs, args);
+  }
+}
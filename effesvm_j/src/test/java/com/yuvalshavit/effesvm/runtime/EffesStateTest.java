@@ -1,10 +1,12 @@
 package com.yuvalshavit.effesvm.runtime;
 
+import static com.yuvalshavit.effesvm.runtime.EffesNativeObject.forInt;
 import static com.yuvalshavit.effesvm.runtime.EffesNativeObject.forString;
 import static com.yuvalshavit.effesvm.util.ExtraAsserts.assertExceptionThrown;
 import static com.yuvalshavit.effesvm.util.LambdaHelpers.consumeAndReturn;
 import static org.testng.Assert.*;
 
+import java.lang.management.ManagementFactory;
 import java.util.Collections;
 import java.util.List;
 
@@ -147,4 +149,195 @@ public class EffesStateTest {
     state.push(forString("zero spaces left"));
     assertExceptionThrown(() -> state.push(forString("no space left")), EffesState.EffesStackOverflowException.class);
   }
+
+  @Test
+  public void reserveLocalStack() {
+    EffesState state = new EffesState(ProgramCounter.end(), 5, 0);
+    state.reserveLocalStack(4); // one item is implicitly added for the first frame
+    assertExceptionThrown(() -> state.reserveLocalStack(5), EffesState.EffesStackOverflowException.class);
+  }
+
+  @Test
+  public void stackGrowsOnDemand() {
+    EffesState state = new EffesState(ProgramCounter.start(), 1000, 0);
+    assertEquals(state.stackCapacity(), EffesState.INITIAL_STACK_CAPACITY);
+    for (int i = 1; i < 1000; ++i) { // one item is implicitly added for the first frame
+      state.pushInt(i);
+    }
+    assertEquals(state.stackCapacity(), 1000);
+    assertExceptionThrown(() -> state.pushInt(1000), EffesState.EffesStackOverflowException.class);
+    for (int i = 999; i > 0; --i) {
+      assertEquals(state.popInt(), i);
+    }
+  }
+
+  @Test
+  public void stackShrinksAfterDeepCalls() {
+    EffesState state = new EffesState(ProgramCounter.start(), 100_000, 0);
+    EffesNativeObject.EffesString arg = forString("arg");
+    for (int i = 0; i < 10_000; ++i) {
+      state.push(arg);
+      state.openFrame(1, true, 0);
+    }
+    int deepCapacity = state.stackCapacity();
+    assertTrue(deepCapacity > 10_000, "capacity: " + deepCapacity);
+    state.pushVar(0);
+    for (int i = 0; i < 10_000; ++i) {
+      state.closeFrame(); // each frame returns its callee's rv
+    }
+    assertEquals(state.pop(), arg);
+    assertEquals(state.stackCapacity(), EffesState.INITIAL_STACK_CAPACITY);
+  }
+
+  @Test
+  public void stackDoesNotShrinkPastReservations() {
+    EffesState state = new EffesState(ProgramCounter.start(), 100_000, 0);
+    state.reserveLocalStack(1000);
+    for (int i = 0; i < 10_000; ++i) {
+      state.pushInt(i);
+      state.openFrame(1, true, 0);
+    }
+    for (int i = 0; i < 10_000; ++i) {
+      state.pushVar(0);
+      state.closeFrame();
+      state.popInt();
+    }
+    assertTrue(state.stackCapacity() > 1000, "capacity: " + state.stackCapacity());
+    for (int i = 0; i < 1000; ++i) {
+      state.pushIntUnchecked(i); // would throw ArrayIndexOutOfBoundsException if the stack had shrunk too far
+    }
+  }
+
+  @Test
+  public void uncheckedVarsAndFrames() {
+    EffesState state = new EffesState(1);
+    state.pushIntUnchecked(1234567);
+    state.popToVarUnchecked(0);
+    state.pushVarUnchecked(0);
+    state.openFrame(1, true, 0);
+    state.pushVarUnchecked(0);
+    state.copyToVarUnchecked(0);
+    state.closeFrameUnchecked();
+    assertEquals(state.popIntUnchecked(), 1234567);
+    state.pushVarUnchecked(0);
+    assertEquals(state.popUnchecked(), EffesNativeObject.forInt(1234567));
+    state.pushBooleanUnchecked(true);
+    assertTrue(state.popBooleanUnchecked());
+    assertEquals(state.getLocalStackSize(), 0);
+  }
+
+  @Test
+  public void tailCallFrameReusesSlots() {
+    // The stack is just big enough for the first frame (1 slot), this frame's arg and locals, and two values on the local stack. So if tail calls
+    // leaked any slots, this would overflow.
+    EffesState state = new EffesState(ProgramCounter.start(), 7, 0);
+    state.push(forString("arg"));
+    state.openFrame(1, true, 2);
+    state.push(forString("local"));
+    state.popToVar(2);
+    for (int i = 0; i < 100; ++i) {
+      state.pushInt(i);
+      state.pushVar(0);
+      state.tailCallFrame(2, true, 1);
+      assertEquals(state.frameDepth(), 1);
+      assertExceptionThrown(() -> state.pushVar(2), EffesRuntimeException.class); // the local var starts off unset
+      state.pushVar(1);
+      state.pushVar(0);
+      state.tailCallFrame(2, true, 1); // swap the args, so that "arg" is back at var 0
+    }
+    state.pushVar(1);
+    assertEquals(state.pop(), forInt(99));
+    assertTrue(state.fp().toString().endsWith("(200 frame(s) elided by tail calls)"), state.fp().toString());
+    state.pushVar(0);
+    state.closeFrame();
+    assertEquals(state.pop(), forString("arg"));
+    assertEquals(state.frameDepth(), 0);
+  }
+
+  @Test
+  public void tailCallFrameNeedsExactlyItsArgs() {
+    EffesState state = new EffesState(0);
+    state.push(forString("extra"));
+    state.push(forString("arg"));
+    assertExceptionThrown(() -> state.tailCallFrame(1, true, 0), EffesRuntimeException.class);
+    assertExceptionThrown(() -> state.tailCallFrame(2, false, 0), EffesRuntimeException.class);
+  }
+
+  @Test
+  public void unboxedIntThroughVarsAndFrames() {
+    EffesState state = new EffesState(1);
+    state.pushInt(1234567);
+    state.popToVar(0);
+    state.pushVar(0);
+    state.openFrame(1, true, 0);
+    state.pushVar(0);
+    state.closeFrame();
+    assertEquals(state.popInt(), 1234567);
+    state.pushVar(0);
+    assertEquals(state.pop(), EffesNativeObject.forInt(1234567));
+  }
+
+  @Test
+  public void dupDoesNotBox() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    EffesState state = new EffesState(0);
+    state.pushInt(1234567);
+    int nDups = 100_000;
+    for (int i = 0; i < nDups; ++i) { // warm up
+      state.dup();
+      state.dupUnchecked();
+      state.popInt();
+      state.popIntUnchecked();
+    }
+    long tid = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(tid);
+    for (int i = 0; i < nDups; ++i) {
+      state.dup();
+      state.dupUnchecked();
+      state.popInt();
+      state.popIntUnchecked();
+    }
+    long allocated = threads.getThreadAllocatedBytes(tid) - before;
+    assertTrue(allocated < nDups, "bytes allocated: " + allocated);
+    state.dup();
+    assertEquals(state.pop(), forInt(1234567));
+    assertEquals(state.pop(), forInt(1234567));
+    assertExceptionThrown(state::dup, EffesRuntimeException.class);
+  }
+
+  @Test
+  public void popIntOfBoxedInt() {
+    EffesState state = new EffesState(0);
+    state.push(EffesNativeObject.forInt(-5));
+    assertEquals(state.popInt(), -5);
+  }
+
+  @Test
+  public void openAndCloseFrameDoNotAllocate() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    EffesState state = new EffesState(0);
+    EffesNativeObject.EffesString arg = forString("arg");
+    int nCalls = 100_000;
+    callAndReturn(state, arg, nCalls); // warm up, and let the frame arrays reach their full size
+
+    long tid = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(tid);
+    callAndReturn(state, arg, nCalls);
+    long allocated = threads.getThreadAllocatedBytes(tid) - before;
+    double bytesPerCall = ((double) allocated) / nCalls;
+    assertTrue(bytesPerCall < 1.0, "bytes allocated per call: " + bytesPerCall);
+  }
+
+  private static void callAndReturn(EffesState state, EffesRef<?> arg, int nCalls) {
+    for (int i = 0; i < nCalls; ++i) {
+      state.push(arg);
+      state.openFrame(1, true, 1);
+      state.push(arg);
+      state.openFrame(1, true, 0);
+      state.pushVar(0);
+      state.closeFrame();
+      state.closeFrame();
+      state.pop();
+    }
+  }
 }
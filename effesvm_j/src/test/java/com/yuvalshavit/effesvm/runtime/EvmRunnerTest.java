@@ -0,0 +1,21 @@
+package com.yuvalshavit.effesvm.runtime;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Locale;
+
+import org.testng.annotations.Test;
+
+public class EvmRunnerTest {
+  @Test
+  public void engineIgnoresLocale() {
+    Locale original = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR")); // where "i".toUpperCase() is "İ"
+    try {
+      assertEquals(EvmRunner.Engine.fromProperty("jit"), EvmRunner.Engine.JIT);
+      assertEquals(EvmRunner.Engine.fromProperty("switch"), EvmRunner.Engine.SWITCH);
+    } finally {
+      Locale.setDefault(original);
+    }
+  }
+}
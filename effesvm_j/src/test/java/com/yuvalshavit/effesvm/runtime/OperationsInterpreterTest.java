@@ -0,0 +1,152 @@
+package com.yuvalshavit.effesvm.runtime;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.link;
+import static com.yuvalshavit.effesvm.test.EfctFixtures.newState;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+
+public class OperationsInterpreterTest {
+  private static final EffesModule.Id MODULE = new EffesModule.Id("main");
+  // 2 ops to set up, 10 per iteration, and 2 to return
+  private static final String[] countToThree = {
+    "FUNC : main 1 1 0",
+    "int  0",
+    "svar 1",
+    "labl top",
+    "str  x",
+    "call_String:sout",
+    "pvar 1",
+    "int  1",
+    "call_Integer:add",
+    "svar 1",
+    "int  3",
+    "pvar 1",
+    "call_Integer:lt",
+    "goif top",
+    "pvar 1",
+    "rtrn",
+  };
+
+  @Test
+  public void fastLoop() {
+    EffesState state = newState(MODULE, link(MODULE, new TestIo(text -> {}), countToThree));
+    OperationsInterpreter interpreter = new OperationsInterpreter(state, DebugServer.noop);
+    interpreter.run();
+    assertEquals(state.getFinalPop(), EffesNativeObject.forInt(3));
+    assertEquals(interpreter.steps(), -1);
+  }
+
+  @Test
+  public void instrumentedLoop() {
+    CountingDebugServer counter = new CountingDebugServer();
+    EffesState state = newState(MODULE, link(MODULE, new TestIo(text -> {}), countToThree));
+    OperationsInterpreter interpreter = new OperationsInterpreter(state, counter);
+    interpreter.run();
+    assertEquals(state.getFinalPop(), EffesNativeObject.forInt(3));
+    assertEquals(counter.count, 34);
+    assertEquals(interpreter.steps(), 35);
+  }
+
+  @Test
+  public void samplingInFastLoop() {
+    SamplingCounter sampler = new SamplingCounter();
+    EffesState state = newState(MODULE, link(MODULE, new TestIo(text -> {}), countToThree));
+    OperationsInterpreter interpreter = new OperationsInterpreter(state, sampler);
+    interpreter.run();
+    assertEquals(state.getFinalPop(), EffesNativeObject.forInt(3));
+    // only the two goifs that jump back to the top are sampled, each at the op it jumped to
+    assertEquals(sampler.pcs, Arrays.asList(2, 2));
+    assertEquals(interpreter.steps(), -1);
+  }
+
+  @Test
+  public void failureInFastLoop() {
+    EffesState state = newState(MODULE, link(MODULE, EffesIo.stdio(),
+      "FUNC : main 1 1 0",
+      "labl divide",
+      "int  1",
+      "int  0",
+      "call_Integer:div",
+      "rtrn"));
+    try {
+      new OperationsInterpreter(state, DebugServer.noop).run();
+      fail("expected an exception");
+    } catch (EffesRuntimeException e) {
+      assertTrue(e.getCause() instanceof ArithmeticException, String.valueOf(e.getCause()));
+      assertTrue(e.getMessage().startsWith("with pc main:[main@2] after divide: "), e.getMessage());
+    }
+  }
+
+  private static class CountingDebugServer implements DebugServer {
+    int count;
+
+    @Override
+    public void beforeAction(EffesState state) {
+      ++count;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static class SamplingCounter implements SamplingDebugServer {
+    final List<Integer> pcs = new ArrayList<>();
+
+    @Override
+    public boolean sampleRequested() {
+      return true;
+    }
+
+    @Override
+    public void sample(EffesState state) {
+      pcs.add(state.pc().getOpIdx());
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static class TestIo implements EffesIo {
+    private final EffesOutput out;
+
+    TestIo(EffesOutput out) {
+      this.out = out;
+    }
+
+    @Override
+    public EffesInput in() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public EffesOutput out() {
+      return out;
+    }
+
+    @Override
+    public EffesOutput err() {
+      return out;
+    }
+
+    @Override
+    public InputStream readFile(String name) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public OutputStream writeFile(String name) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package com.yuvalshavit.effesvm.runtime.coverage;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.program;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+public class CodeCoverageDebugServerTest {
+  private static final EffesModule.Id MAIN = new EffesModule.Id("main");
+  private static final Map<EffesModule.Id,List<String>> program = program(MAIN,
+    "FUNC : main 1 1 0",
+    "int  0",
+    "svar 1",
+    "labl top",
+    "pvar 1",
+    "int  1",
+    "call_Integer:add",
+    "svar 1",
+    "int  3",
+    "pvar 1",
+    "call_Integer:lt",
+    "goif top",
+    "pvar 0",
+    "call_Array:len",
+    "int  0",
+    "call_Integer:eq",
+    "goif done",
+    "fail \"expected no args\"",
+    "labl done",
+    "int  0",
+    "rtrn");
+
+  private Path dir;
+
+  @BeforeMethod
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("effes-coverage");
+  }
+
+  @AfterMethod
+  public void deleteDir() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Test
+  public void countsAccumulateAcrossRuns() throws IOException {
+    String outFileBase = dir.resolve("cov").toString();
+    run(outFileBase);
+    assertEquals(dataColumns(outFileBase)[2], "+++++++++++++++0++");
+    assertEquals(dataColumns(outFileBase)[3], "1,1,3,3,3,3,3,3,3,3,1,1,1,1,1,0,1,1");
+
+    run(outFileBase);
+    assertEquals(dataColumns(outFileBase)[3], "2,2,6,6,6,6,6,6,6,6,2,2,2,2,2,0,2,2");
+
+    List<String> report = Files.readAllLines(dir.resolve("cov.txt"), StandardCharsets.UTF_8);
+    assertTrue(report.stream().anyMatch(line -> line.matches("\\+ 6 #\\d+ pvar.*")), String.join("\n", report));
+    assertTrue(report.stream().anyMatch(line -> line.matches("  0 #\\d+ fail.*")), String.join("\n", report));
+  }
+
+  @Test
+  public void readsDataWithoutCounts() throws IOException {
+    String outFileBase = dir.resolve("cov").toString();
+    run(outFileBase);
+    String[] columns = dataColumns(outFileBase);
+    // as it would have been written before there were hit counts
+    String oldLine = String.format("%s %s %s%n", columns[0], columns[1], columns[2]);
+    Files.write(dir.resolve("cov.data"), oldLine.getBytes(StandardCharsets.UTF_8));
+
+    run(outFileBase);
+    assertEquals(dataColumns(outFileBase)[3], "2,2,4,4,4,4,4,4,4,4,2,2,2,2,2,0,2,2");
+  }
+
+  @Test
+  public void concurrentRuns() throws Exception {
+    String outFileBase = dir.resolve("cov").toString();
+    int nRuns = 16;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> runs = new ArrayList<>(nRuns);
+      for (int i = 0; i < nRuns; ++i) {
+        runs.add(executor.submit(() -> run(outFileBase)));
+      }
+      for (Future<?> run : runs) {
+        run.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(dataColumns(outFileBase)[3], "16,16,48,48,48,48,48,48,48,48,16,16,16,16,16,0,16,16");
+    try (Stream<Path> shards = Files.list(dir.resolve("cov.data.shards"))) {
+      assertEquals(shards.count(), 0L);
+    }
+  }
+
+  @Test
+  public void runsWithoutReportsOnlyWriteShards() throws IOException {
+    String outFileBase = dir.resolve("cov").toString();
+    for (int i = 0; i < 3; ++i) {
+      run(outFileBase, program, false);
+    }
+    assertFalse(Files.exists(dir.resolve("cov.data")));
+    assertFalse(Files.exists(dir.resolve("cov.txt")));
+    try (Stream<Path> shards = Files.list(dir.resolve("cov.data.shards"))) {
+      assertEquals(shards.count(), 3L);
+    }
+
+    run(outFileBase);
+    assertEquals(dataColumns(outFileBase)[3], "4,4,12,12,12,12,12,12,12,12,4,4,4,4,4,0,4,4");
+    assertTrue(Files.exists(dir.resolve("cov.txt")));
+  }
+
+  @Test
+  public void calleesAreNotInlined() throws IOException {
+    String outFileBase = dir.resolve("cov").toString();
+    run(outFileBase, program(MAIN,
+      "FUNC : main 1 1 0",
+      "int  2",
+      "call : twice",
+      "pop",
+      "int  0",
+      "rtrn",
+      "",
+      "FUNC : twice 1 1 0",
+      "pvar 0",
+      "pvar 0",
+      "call_Integer:add",
+      "rtrn"));
+    List<String> lines = dataLines(outFileBase);
+    assertEquals(lines.size(), 2, lines.toString());
+    for (String line : lines) {
+      String[] columns = line.split(" ");
+      if (columns[0].endsWith("[main]")) {
+        assertEquals(columns[3], "1,1,1,1,1");
+      } else {
+        assertEquals(columns[3], "1,1,1,1");
+      }
+    }
+  }
+
+  @Test
+  public void constantsAreNotFolded() throws IOException {
+    String outFileBase = dir.resolve("cov").toString();
+    run(outFileBase, program(MAIN,
+      "FUNC : main 1 1 0",
+      "int  1",
+      "int  2",
+      "call_Integer:add",
+      "pop",
+      "int  0",
+      "rtrn"));
+    assertEquals(dataColumns(outFileBase)[3], "1,1,1,1,1,1");
+  }
+
+  private static void run(String outFileBase) {
+    run(outFileBase, program);
+  }
+
+  private static void run(String outFileBase, Map<EffesModule.Id,List<String>> program) {
+    run(outFileBase, program, true);
+  }
+
+  private static void run(String outFileBase, Map<EffesModule.Id,List<String>> program, boolean report) {
+    int exitCode = EvmRunner.run(
+      program,
+      MAIN,
+      new String[0],
+      EffesIo.stdio(),
+      null,
+      context -> Collections.singletonList(new CodeCoverageDebugServer(context, outFileBase, report)),
+      EvmRunner.Engine.OPERATIONS);
+    assertEquals(exitCode, 0);
+  }
+
+  private static String[] dataColumns(String outFileBase) throws IOException {
+    List<String> lines = dataLines(outFileBase);
+    assertEquals(lines.size(), 1, lines.toString());
+    return lines.get(0).split(" ");
+  }
+
+  /**
+   * The data file's lines for functions, without the ones that name the shards it was merged from.
+   */
+  private static List<String> dataLines(String outFileBase) throws IOException {
+    List<String> lines = Files.readAllLines(Paths.get(CodeCoverageDebugServer.cumulativeFileNme(outFileBase)), StandardCharsets.UTF_8);
+    return lines.stream().filter(line -> !line.startsWith("#")).collect(Collectors.toList());
+  }
+}
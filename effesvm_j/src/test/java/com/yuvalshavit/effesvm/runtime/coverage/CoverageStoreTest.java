@@ -0,0 +1,91 @@
+package com.yuvalshavit.effesvm.runtime.coverage;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EfctScope;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.load.EffesModule;
+
+public class CoverageStoreTest {
+  private static final EffesFunctionId FOO = new EffesFunctionId(EfctScope.ofStatic(new EffesModule.Id("main")), "foo");
+  private static final EffesFunctionId BAR = new EffesFunctionId(EfctScope.ofStatic(new EffesModule.Id("main")), "bar");
+
+  private Path dir;
+  private CoverageStore store;
+
+  @BeforeMethod
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("effes-coverage");
+    store = new CoverageStore(dir.resolve("cov").toString());
+  }
+
+  @AfterMethod
+  public void deleteDir() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Test
+  public void sameHashSums() throws IOException {
+    store.writeShard(shard(FOO, "h1", 1, 0, 2));
+    store.writeShard(shard(FOO, "h1", 1, 1, 0));
+    store.merge();
+    store.writeShard(shard(FOO, "h1", 0, 0, 1));
+    FunctionDataSummaries merged = store.merge();
+    assertEquals(merged.get(FOO).hash, "h1");
+    assertEquals(merged.get(FOO).hitCounts, new long[] { 2, 1, 3 });
+    assertEquals(FunctionDataSummaries.read(dir.resolve("cov.data")).get(FOO).hitCounts, new long[] { 2, 1, 3 });
+  }
+
+  @Test
+  public void newerHashReplaces() throws IOException {
+    store.writeShard(shard(FOO, "h1", 5, 5));
+    store.writeShard(shard(BAR, "h1", 1));
+    store.merge();
+    store.writeShard(shard(FOO, "h2", 0, 1, 1));
+    FunctionDataSummaries merged = store.merge();
+    assertEquals(merged.get(FOO).hash, "h2");
+    assertEquals(merged.get(FOO).hitCounts, new long[] { 0, 1, 1 });
+    assertEquals(merged.get(BAR).hitCounts, new long[] { 1 });
+  }
+
+  @Test
+  public void interruptedMergeDoesNotCountShardsTwice() throws IOException {
+    Path shard = store.writeShard(shard(FOO, "h1", 1, 2));
+    Path copy = dir.resolve("copy");
+    Files.copy(shard, copy);
+    store.merge();
+    // as if the merge had died after replacing the data file, but before deleting the shard
+    Files.move(copy, shard);
+    store.writeShard(shard(FOO, "h1", 1, 0));
+    FunctionDataSummaries merged = store.merge();
+    assertEquals(merged.get(FOO).hitCounts, new long[] { 2, 2 });
+    assertFalse(Files.exists(shard));
+  }
+
+  @Test
+  public void mergeWithNothingWritten() throws IOException {
+    assertNull(store.merge().get(FOO));
+  }
+
+  private static Map<EffesFunctionId,FunctionDataSummary> shard(EffesFunctionId id, String hash, long... hitCounts) {
+    return Collections.singletonMap(id, new FunctionDataSummary(hash, hitCounts));
+  }
+}
@@ -0,0 +1,180 @@
+package com.yuvalshavit.effesvm.runtime.jit;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.link;
+import static com.yuvalshavit.effesvm.test.EfctFixtures.newState;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EfctScope;
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.runtime.DebugServer;
+import com.yuvalshavit.effesvm.runtime.DecodedFunction;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesNativeObject;
+import com.yuvalshavit.effesvm.runtime.EffesRuntimeException;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+import com.yuvalshavit.effesvm.runtime.SwitchInterpreter;
+
+public class JitTierTest {
+  private static final EffesModule.Id MODULE = new EffesModule.Id("main");
+
+  @Test
+  public void hotFunctionIsCompiled() {
+    Map<EffesModule.Id,EffesModule> modules = load(
+      "FUNC : main 1 1 0",
+      "int 15",
+      "call : fib",
+      "rtrn",
+      "",
+      "FUNC : fib 1 1 0",
+      "int  1",
+      "pvar 0",
+      "call_Integer:le",
+      "gofi 6",
+      "pvar 0",
+      "rtrn",
+      "pvar 0",
+      "int  1",
+      "call_Integer:sub",
+      "call : fib",
+      "pvar 0",
+      "int  2",
+      "call_Integer:sub",
+      "call : fib",
+      "call_Integer:add",
+      "rtrn");
+    JitTier jit = new JitTier(10);
+    EffesState state = newState(MODULE, modules);
+    new SwitchInterpreter(state, DebugServer.noop, jit).run();
+    assertEquals(state.getFinalPop(), EffesNativeObject.forInt(610));
+    assertEquals(jit.nCompiled(), 1);
+    assertNotNull(function(modules, "fib").decoded().compiled());
+    assertNull(function(modules, "main").decoded().compiled());
+  }
+
+  @Test
+  public void deepRecursionDoesNotOverflowTheJvmStack() {
+    Map<EffesModule.Id,EffesModule> modules = load(
+      "FUNC : main 1 1 0",
+      "int 50000",
+      "call : sum",
+      "rtrn",
+      "",
+      "FUNC : sum 1 1 0", // not a tail call, so each call is a frame
+      "int  0",
+      "pvar 0",
+      "call_Integer:le",
+      "gofi 6",
+      "int  0",
+      "rtrn",
+      "pvar 0",
+      "int  1",
+      "call_Integer:sub",
+      "call : sum",
+      "pvar 0",
+      "call_Integer:add",
+      "rtrn");
+    JitTier jit = new JitTier(10);
+    EffesState state = newState(MODULE, modules, 10_000_000);
+    new SwitchInterpreter(state, DebugServer.noop, jit).run();
+    assertEquals(state.getFinalPop(), EffesNativeObject.forInt(1_250_025_000));
+    assertEquals(jit.nCompiled(), 1);
+  }
+
+  @Test
+  public void failureInCompiledCodeLooksInterpreted() {
+    String[] efct = {
+      "FUNC : main 1 1 0",
+      "call : outer",
+      "rtrn",
+      "",
+      "FUNC : outer 0 1 0",
+      "labl start",
+      "call : inner",
+      "rtrn",
+      "",
+      "FUNC : inner 0 1 0",
+      "int 1",
+      "int 0",
+      "call_Integer:div",
+      "rtrn",
+    };
+    List<ProgramCounter.State> interpretedTrace = new ArrayList<>();
+    String interpretedMessage = failureMessage(load(efct), null, interpretedTrace);
+
+    List<ProgramCounter.State> compiledTrace = new ArrayList<>();
+    JitTier jit = new JitTier(1);
+    String compiledMessage = failureMessage(load(efct), jit, compiledTrace);
+
+    assertEquals(jit.nCompiled(), 2);
+    assertEquals(compiledMessage, interpretedMessage);
+    assertTrue(compiledMessage.startsWith("with pc main:[inner@2]: "), compiledMessage);
+    assertEquals(describe(compiledTrace), describe(interpretedTrace));
+    assertEquals(compiledTrace.size(), 3); // inner, outer, main
+  }
+
+  @Test
+  public void failureNamesLastLabel() {
+    String[] efct = {
+      "FUNC : main 1 1 0",
+      "goto 3", // efct jump targets count labels, even though they're not ops
+      "labl skipped",
+      "fail \"skipped\"",
+      "labl divide",
+      "int 1",
+      "int 0",
+      "call_Integer:div",
+      "rtrn",
+    };
+    Map<EffesModule.Id,EffesModule> modules = load(efct);
+    EffesFunction main = function(modules, "main");
+    assertEquals(main.nOps(), 6);
+    assertEquals(main.labels().toString(), "{skipped=1, divide=2}");
+
+    String interpretedMessage = failureMessage(modules, null, new ArrayList<>());
+    String compiledMessage = failureMessage(load(efct), new JitTier(1), new ArrayList<>());
+    assertTrue(interpretedMessage.startsWith("with pc main:[main@4] after divide: "), interpretedMessage);
+    assertEquals(compiledMessage, interpretedMessage);
+  }
+
+  private static String failureMessage(Map<EffesModule.Id,EffesModule> modules, JitTier jit, List<ProgramCounter.State> traceOut) {
+    EffesState state = newState(MODULE, modules);
+    try {
+      new SwitchInterpreter(state, DebugServer.noop, jit).run();
+      fail("expected an exception");
+      return null;
+    } catch (EffesRuntimeException e) {
+      assertTrue(e.getCause() instanceof ArithmeticException, String.valueOf(e.getCause()));
+      traceOut.addAll(state.getStackTrace());
+      return e.getMessage();
+    }
+  }
+
+  private static List<String> describe(List<ProgramCounter.State> trace) {
+    List<String> result = new ArrayList<>(trace.size());
+    trace.forEach(s -> result.add(s.toString()));
+    return result;
+  }
+
+  private static EffesFunction function(Map<EffesModule.Id,EffesModule> modules, String name) {
+    return modules.get(MODULE).getFunction(new EffesFunctionId(EfctScope.ofStatic(MODULE), name));
+  }
+
+  private static Map<EffesModule.Id,EffesModule> load(String... lines) {
+    Map<EffesModule.Id,EffesModule> modules = link(MODULE, EffesIo.stdio(), lines);
+    DecodedFunction.decodeAll(modules);
+    return modules;
+  }
+}
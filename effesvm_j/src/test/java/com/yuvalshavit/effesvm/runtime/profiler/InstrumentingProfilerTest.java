@@ -0,0 +1,154 @@
+package com.yuvalshavit.effesvm.runtime.profiler;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.program;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+public class InstrumentingProfilerTest {
+  private static final EffesModule.Id MAIN = new EffesModule.Id("main");
+
+  private Path dir;
+
+  @BeforeMethod
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("effes-profile");
+  }
+
+  @AfterMethod
+  public void deleteDir() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Test
+  public void recursion() throws IOException {
+    // down(n) adds 1 for each call until n is 0, so it isn't a tail call
+    String outFileBase = run(
+      "FUNC : main 1 1 0",
+      "int  3",
+      "call : down",
+      "pop",
+      "int  0",
+      "rtrn",
+      "",
+      "FUNC : down 1 1 0",
+      "pvar 0",
+      "int  0",
+      "call_Integer:eq",
+      "gofi recurse",
+      "int  0",
+      "rtrn",
+      "labl recurse",
+      "pvar 0",
+      "int  1",
+      "call_Integer:sub",
+      "call : down",
+      "int  1",
+      "call_Integer:add",
+      "rtrn");
+    // each of the three recursive calls runs 11 ops, and the last one runs 6
+    assertEquals(data(outFileBase), Arrays.asList(
+      "# function\tid\tcalls\tself ops\ttotal ops",
+      "function\tmain:[down]\t4\t39\t39",
+      "function\tmain:[main]\t1\t5\t44",
+      "# opcode\topcode\tcount",
+      "opcode\tcall\t4",
+      "opcode\tcall_Integer:add\t3",
+      "opcode\tcall_Integer:eq\t4",
+      "opcode\tcall_Integer:sub\t3",
+      "opcode\tgofi\t4",
+      "opcode\tint\t13",
+      "opcode\tpop\t1",
+      "opcode\tpvar\t7",
+      "opcode\trtrn\t5"));
+    List<String> report = Files.readAllLines(dir.resolve("prof" + InstrumentingProfiler.REPORT_SUFFIX), StandardCharsets.UTF_8);
+    assertTrue(report.get(1).matches("main:\\[main] +1 +5 +44 .*"), String.join("\n", report));
+    assertTrue(report.get(2).matches("main:\\[down] +4 +39 +39 .*"), String.join("\n", report));
+  }
+
+  @Test
+  public void tailCalls() throws IOException {
+    String outFileBase = run(
+      "FUNC : main 1 1 0",
+      "int  3",
+      "call : down",
+      "rtrn",
+      "",
+      "FUNC : down 1 1 0",
+      "pvar 0",
+      "int  0",
+      "call_Integer:eq",
+      "gofi recurse",
+      "int  0",
+      "rtrn",
+      "labl recurse",
+      "pvar 0",
+      "int  1",
+      "call_Integer:sub",
+      "call : down",
+      "rtrn");
+    // the tail calls each replace a frame, but they're still calls; 8 ops for each of three, and 6 for the last one. main's call is a tail call too,
+    // so main is done once it's made it, and its rtrn never runs
+    List<String> functions = data(outFileBase).subList(1, 3);
+    assertEquals(functions, Arrays.asList(
+      "function\tmain:[down]\t4\t30\t30",
+      "function\tmain:[main]\t1\t2\t2"));
+  }
+
+  @Test
+  public void severalRuns() throws IOException {
+    String outFileBase = dir.resolve("prof").toString();
+    InstrumentingProfiler profiler = new InstrumentingProfiler(outFileBase);
+    String[] lines = {
+      "FUNC : main 1 1 0",
+      "int  0",
+      "rtrn" };
+    run(profiler, lines);
+    run(profiler, lines);
+    assertEquals(data(outFileBase).get(1), "function\tmain:[main]\t2\t4\t4");
+  }
+
+  private String run(String... lines) {
+    String outFileBase = dir.resolve("prof").toString();
+    run(new InstrumentingProfiler(outFileBase), lines);
+    return outFileBase;
+  }
+
+  private static void run(InstrumentingProfiler profiler, String... lines) {
+    int exitCode = EvmRunner.run(
+      program(MAIN, lines),
+      MAIN,
+      new String[0],
+      EffesIo.stdio(),
+      null,
+      context -> Collections.singletonList(profiler),
+      EvmRunner.Engine.OPERATIONS);
+    assertEquals(exitCode, 0);
+  }
+
+  private static List<String> data(String outFileBase) throws IOException {
+    return Files.readAllLines(Paths.get(outFileBase + InstrumentingProfiler.DATA_SUFFIX), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,76 @@
+package com.yuvalshavit.effesvm.runtime.profiler;
+
+import static com.yuvalshavit.effesvm.test.EfctFixtures.program;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EvmRunner;
+
+public class SamplingProfilerTest {
+  private static final EffesModule.Id MAIN = new EffesModule.Id("main");
+  private static final Map<EffesModule.Id,List<String>> program = program(MAIN,
+    "FUNC : main 1 1 0",
+    "1:0 int  300000",
+    "1:0 call : spin",
+    "2:0 pop",
+    "2:0 int  0",
+    "2:0 rtrn",
+    "",
+    "FUNC : spin 1 1 0",
+    "10:0 int  0",
+    "10:0 svar 1",
+    "labl top",
+    "11:0 pvar 1",
+    "11:0 int  1",
+    "11:0 call_Integer:add",
+    "11:0 svar 1",
+    "12:0 pvar 0",
+    "12:0 pvar 1",
+    "12:0 call_Integer:lt",
+    "12:0 goif top",
+    "13:0 pvar 1",
+    "13:0 rtrn");
+
+  @Test
+  public void collapsedStacks() throws IOException {
+    Path outFile = Files.createTempFile("effes-profile", ".collapsed");
+    try {
+      int exitCode = EvmRunner.run(
+        program,
+        MAIN,
+        new String[0],
+        EffesIo.stdio(),
+        null,
+        context -> Collections.singletonList(new SamplingProfiler(outFile.toString(), 1)),
+        EvmRunner.Engine.OPERATIONS);
+      assertEquals(exitCode, 0);
+
+      List<String> lines = Files.readAllLines(outFile, StandardCharsets.UTF_8);
+      assertTrue(!lines.isEmpty(), "no samples");
+      for (String line : lines) {
+        // whether or not spin was inlined, its ops are attributed to it
+        assertTrue(line.matches("main:\\[main](:[12])?(;main:\\[spin]:1[0-3])? \\d+"), line);
+      }
+      assertTrue(lines.stream().anyMatch(line -> line.contains("main:[spin]:1")), String.join("\n", lines));
+    } finally {
+      Files.delete(outFile);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void nonPositiveInterval() {
+    new SamplingProfiler("unused", 0);
+  }
+}
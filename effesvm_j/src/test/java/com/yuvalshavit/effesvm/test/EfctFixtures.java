@@ -0,0 +1,65 @@
+package com.yuvalshavit.effesvm.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.yuvalshavit.effesvm.load.EfctScope;
+import com.yuvalshavit.effesvm.load.EffesFunction;
+import com.yuvalshavit.effesvm.load.EffesFunctionId;
+import com.yuvalshavit.effesvm.load.EffesFunctionParser;
+import com.yuvalshavit.effesvm.load.EffesModule;
+import com.yuvalshavit.effesvm.load.Parser;
+import com.yuvalshavit.effesvm.ops.OperationFactories;
+import com.yuvalshavit.effesvm.runtime.EffesIo;
+import com.yuvalshavit.effesvm.runtime.EffesOpsImpl;
+import com.yuvalshavit.effesvm.runtime.EffesState;
+import com.yuvalshavit.effesvm.runtime.ProgramCounter;
+
+/**
+ * Builds efct sources and modules for tests, from their lines without the header.
+ */
+public class EfctFixtures {
+  private EfctFixtures() {}
+
+  public static List<String> efct(String... lines) {
+    List<String> efct = new ArrayList<>(lines.length + 1);
+    efct.add(Parser.EFCT_0_HEADER);
+    Collections.addAll(efct, lines);
+    return efct;
+  }
+
+  /**
+   * A program of just the one module. The map is mutable, so that tests can add other modules.
+   */
+  public static Map<EffesModule.Id,List<String>> program(EffesModule.Id module, String... lines) {
+    Map<EffesModule.Id,List<String>> program = new HashMap<>();
+    program.put(module, efct(lines));
+    return program;
+  }
+
+  /**
+   * Parses and links just the one module, without anything else that EvmRunner does when it loads a program.
+   */
+  public static Map<EffesModule.Id,EffesModule> link(EffesModule.Id module, EffesIo io, String... lines) {
+    return EffesFunctionParser.parse(
+      Collections.singletonMap(module, Parser.parse(module, efct(lines))),
+      OperationFactories.fromInstance(new EffesOpsImpl(io)));
+  }
+
+  /**
+   * A state that's about to run the given module's main, with no args.
+   */
+  public static EffesState newState(EffesModule.Id module, Map<EffesModule.Id,EffesModule> modules) {
+    return newState(module, modules, EffesState.STACK_SIZE);
+  }
+
+  public static EffesState newState(EffesModule.Id module, Map<EffesModule.Id,EffesModule> modules, int stackSize) {
+    EffesFunction main = modules.get(module).getFunction(new EffesFunctionId(EfctScope.ofStatic(module), "main"));
+    EffesState state = EffesState.forMain(new String[0], stackSize, main.nVars() + 1);
+    state.pc().restore(ProgramCounter.firstLineOfFunction(main));
+    return state;
+  }
+}
@@ -12,27 +12,45 @@ import java.util.regex.Pattern;
 
 import org.reflections.Reflections;
 import org.reflections.scanners.ResourcesScanner;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.yaml.snakeyaml.Yaml;
 
 import com.google.common.base.Charsets;
 import com.yuvalshavit.effesvm.load.EffesModule;
-import com.yuvalshavit.effesvm.load.Parser;
 import com.yuvalshavit.effesvm.runtime.EffesInput;
 import com.yuvalshavit.effesvm.runtime.EffesIo;
 import com.yuvalshavit.effesvm.runtime.EffesOutput;
 import com.yuvalshavit.effesvm.runtime.EvmRunner;
+import com.yuvalshavit.effesvm.runtime.jit.JitTier;
 
 public class EndToEndTest {
   private static final String DEFAULT_MODULE_NAME = "main";
+  private String originalJitThreshold;
+
+  @BeforeClass
+  public void compileEagerly() {
+    // so that the JIT engine compiles every function on its first call, rather than leaving most of these short programs interpreted
+    originalJitThreshold = System.setProperty(JitTier.THRESHOLD_PROPERTY, "1");
+  }
+
+  @AfterClass(alwaysRun = true)
+  public void restoreJitThreshold() {
+    if (originalJitThreshold == null) {
+      System.clearProperty(JitTier.THRESHOLD_PROPERTY);
+    } else {
+      System.setProperty(JitTier.THRESHOLD_PROPERTY, originalJitThreshold);
+    }
+  }
 
   @DataProvider(name = "tests")
   public Iterator<Object[]> tests() {
     String packageName = getClass().getPackage().getName();
     Reflections reflections = new Reflections(packageName, new ResourcesScanner());
     Set<String> yamlPaths = reflections.getResources(Pattern.compile(".*\\.yaml"));
-    List<Object[]> tests = new ArrayList<>(yamlPaths.size() * 2);
+    List<Object[]> tests = new ArrayList<>(yamlPaths.size() * 2 * EvmRunner.Engine.values().length);
     Yaml yamlParser = new Yaml();
     for (String path : yamlPaths) {
       path = path.substring(packageName.length() + 1); // since it's relative to the package. +1 for the /
@@ -52,7 +70,9 @@ public class EndToEndTest {
           run.description = (run.description == null)
             ? path
             : (path + ": " + run.description);
-          tests.add(new Object[] { run });
+          for (EvmRunner.Engine engine : EvmRunner.Engine.values()) {
+            tests.add(new Object[] { run, engine });
+          }
         }
       } catch (Exception e) {
         System.err.println("for file: " + path);
@@ -63,19 +83,16 @@ public class EndToEndTest {
   }
 
   @Test(dataProvider = "tests")
-  public void run(Run run) {
+  public void run(Run run, EvmRunner.Engine engine) {
     Map<EffesModule.Id,List<String>> modules = new HashMap<>(run.efctByModule.size());
     for (Map.Entry<String,String> efctByModule : run.efctByModule.entrySet()) {
       EffesModule.Id module = new EffesModule.Id(efctByModule.getKey());
       String[] lines = efctByModule.getValue().split("\\n");
-      List<String> efct = new ArrayList<>(lines.length + 1);
-      efct.add(Parser.EFCT_0_HEADER);
-      Collections.addAll(efct, lines);
-      modules.put(module, efct);
+      modules.put(module, EfctFixtures.efct(lines));
     }
 
     InMemoryIo io = new InMemoryIo(run.in, run.filesIn);
-    int exitCode = EvmRunner.run(modules, new EffesModule.Id(DEFAULT_MODULE_NAME), run.args, io, run.stackSize, c -> Collections.emptyList());
+    int exitCode = EvmRunner.run(modules, new EffesModule.Id(DEFAULT_MODULE_NAME), run.args, io, run.stackSize, c -> Collections.emptyList(), engine);
     assertEquals(exitCode, run.exit, "exit code");
     assertEquals(io.out.toString().trim(), run.out.trim(), "stdout");
     assertEquals(io.err.toString().trim(), run.err.trim(), "stderr");